@@ -0,0 +1,171 @@
+package com.cpirvu;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of the tuning of {@link AdaptiveConcurrency} ([-M auto]) on two synthetic workloads, each task counting as
+ * an image of one megapixel:
+ * <ul>
+ * <li>cpu: each task computes for about the given milliseconds, so the best limit is the number of processors and
+ * more cycles only share them;</li>
+ * <li>io: each task waits for the given milliseconds on a device serving the given number of tasks at a time (as a
+ * disk or a network share), then computes for a tenth of that time, so the best limit is about the number of channels
+ * of the device.</li>
+ * </ul>
+ * Every workload is run for the given seconds from one cycle per processor, printing the limit and the throughput every
+ * second, then with a few fixed limits for comparison:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.AdaptiveConcurrencyBenchmark [-D &lt;seconds&gt;] [-M &lt;max threads&gt;] [-C &lt;channels&gt;] [-L &lt;milliseconds&gt;] [-W &lt;window milliseconds&gt;]
+ * </pre>
+ * The default is 20 seconds, at most 64 threads, 16 channels, tasks of 10 milliseconds and windows of 500 milliseconds.
+ */
+public class AdaptiveConcurrencyBenchmark {
+    private int seconds = 20;
+    private int maxThreads = 64;
+    private int channels = 16;
+    private int taskMillis = 10;
+
+    private final int processors = Runtime.getRuntime().availableProcessors();
+    private Semaphore device;
+    private long iterationsPerMilli;
+    private volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        AdaptiveConcurrencyBenchmark benchmark = new AdaptiveConcurrencyBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-D":
+                    benchmark.seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-M":
+                    benchmark.maxThreads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-C":
+                    benchmark.channels = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-L":
+                    benchmark.taskMillis = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-W":
+                    AdaptiveConcurrency.WINDOW_MILLIS = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws InterruptedException {
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+        device = new Semaphore(channels, true);
+        calibrate();
+        System.out.printf(Locale.ROOT, "%d processors, at most %d threads, tasks of %d ms, a device of %d channels,"
+                + " windows of %d ms%n", processors, maxThreads, taskMillis, channels, AdaptiveConcurrency.WINDOW_MILLIS);
+
+        for (boolean io : new boolean[]{false, true}) {
+            String name = io ? "io" : "cpu";
+            System.out.printf(Locale.ROOT, "%n%s workload, tuned:%n%8s %8s %14s%n", name, "second", "limit", "megapixels/s");
+            AdaptiveConcurrency concurrency = new AdaptiveConcurrency(processors, maxThreads);
+            double tuned = run(io, concurrency, 0, seconds, true);
+            concurrency.printStatistics();
+            EventLog.flush();
+            System.out.printf(Locale.ROOT, "%.1f megapixels/s over the whole run, with the convergence%n", tuned);
+
+            System.out.printf(Locale.ROOT, "%s workload, fixed:%n%8s %14s%n", name, "limit", "megapixels/s");
+            for (int limit : new TreeSet<>(Arrays.asList(1, processors, channels / 2, channels, 2 * channels, maxThreads))) {
+                if (limit >= 1 && limit <= maxThreads) {
+                    System.out.printf(Locale.ROOT, "%8d %14.1f%n", limit, run(io, null, limit, 3, false));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param concurrency the tuned limit, or null to run fixedLimit tasks at a time
+     * @return the throughput of the whole run, in megapixels per second
+     */
+    private double run(boolean io, AdaptiveConcurrency concurrency, int fixedLimit, int duration, boolean print)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(maxThreads);
+        Semaphore fixed = new Semaphore(fixedLimit);
+        AtomicLong completed = new AtomicLong();
+        long start = System.nanoTime();
+        long nextSecond = start + 1_000_000_000L;
+        long completedAtLastSecond = 0;
+        int second = 0;
+        while (second < duration) {
+            if (concurrency != null) {
+                concurrency.acquire();
+            } else {
+                fixed.acquire();
+            }
+            pool.execute(() -> {
+                try {
+                    if (io) {
+                        device.acquireUninterruptibly();
+                        try {
+                            Thread.sleep(taskMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            device.release();
+                        }
+                        compute(taskMillis / 10.0);
+                    } else {
+                        compute(taskMillis);
+                    }
+                    completed.incrementAndGet();
+                } finally {
+                    if (concurrency != null) {
+                        concurrency.release(1_000_000);
+                    } else {
+                        fixed.release();
+                    }
+                }
+            });
+            long now = System.nanoTime();
+            if (now >= nextSecond) {
+                second++;
+                long done = completed.get();
+                if (print) {
+                    System.out.printf(Locale.ROOT, "%8d %8d %14.1f%n", second, concurrency.getLimit(),
+                            (done - completedAtLastSecond) * 1e9 / (now - nextSecond + 1_000_000_000L));
+                }
+                completedAtLastSecond = done;
+                nextSecond = now + 1_000_000_000L;
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return completed.get() * 1e9 / (System.nanoTime() - start);
+    }
+
+    private void calibrate() {
+        long iterations = 1_000_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            spin(iterations);
+        }
+        iterationsPerMilli = Math.max(1, iterations * 5 * 1_000_000 / (System.nanoTime() - start));
+    }
+
+    private void compute(double millis) {
+        spin((long) (millis * iterationsPerMilli));
+    }
+
+    private void spin(long iterations) {
+        long x = 1;
+        for (long i = 0; i < iterations; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        sink = x;
+    }
+}
@@ -0,0 +1,161 @@
+package com.cpirvu;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmark of the archive mode ({@link ArchiveBatch}) against the same images processed as the files of a directory.
+ * <p>
+ * Many small synthetic gray 24bit BMP files are generated in a temporary directory, and packed in a ZIP archive
+ * (deflated) and in a TAR archive. The directory is walked by a {@link FileTraversal} and its files are processed by a
+ * pool of threads, as with [-M], each binary image being written next to its file. The archives are processed by
+ * {@link ArchiveBatch}, with as many binarization threads. The throughput in images per second is printed for each way:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.ArchiveBatchBenchmark [-F &lt;files&gt;] [-S &lt;width&gt;x&lt;height&gt;] [-T &lt;threads&gt;]
+ * </pre>
+ * The default is 5000 files of 160x120 pixels and one thread per processor.
+ */
+public class ArchiveBatchBenchmark {
+    private int numberOfFiles = 5000;
+    private int width = 160;
+    private int height = 120;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws Exception {
+        ArchiveBatchBenchmark benchmark = new ArchiveBatchBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-F":
+                    benchmark.numberOfFiles = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-S":
+                    String[] size = args[i + 1].split("x");
+                    benchmark.width = Integer.parseInt(size[0]);
+                    benchmark.height = Integer.parseInt(size[1]);
+                    break;
+                case "-T":
+                    benchmark.threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.FORCE = false;
+        ImageBinarization.PARALLELISM = 1;
+        ExecutionCycle.STREAMING = false;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        File root = File.createTempFile("image-processor-archive", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Could not create the directory " + root.getPath());
+        }
+        File directory = new File(root, "images");
+        File zip = new File(root, "images.zip");
+        File tar = new File(root, "images.tar");
+        try {
+            if (!directory.mkdir()) {
+                throw new IOException("Could not create the directory " + directory.getPath());
+            }
+            List<File> files = new ArrayList<>();
+            for (int i = 0; i < numberOfFiles; i++) {
+                File file = new File(directory, "image_" + i + ".bmp");
+                ExecutionStepBenchmark.writeSyntheticBmp(file, width, height, true);
+                files.add(file);
+            }
+            writeZip(files, zip);
+            writeTar(files, tar);
+
+            System.out.printf(Locale.ROOT, "%d processors, %d files of %dx%d pixels, %d threads%n",
+                    Runtime.getRuntime().availableProcessors(), numberOfFiles, width, height, threads);
+            // warm up every way
+            runDirectory(directory);
+            runArchive(zip);
+            runArchive(tar);
+
+            print("directory, a file per image", runDirectory(directory));
+            print("ZIP archive", runArchive(zip));
+            print("TAR archive", runArchive(tar));
+        } finally {
+            delete(root);
+        }
+    }
+
+    private long runDirectory(File directory) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (File file : new FileTraversal(directory)) {
+            executor.execute(new ExecutionCycle(file));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long nanos = System.nanoTime() - start;
+        // the next run must find the same files
+        File[] outputs = directory.listFiles((dir, name) -> FileTraversal.isOutputName(name));
+        if (outputs != null) {
+            for (File output : outputs) {
+                if (!output.delete()) {
+                    System.err.println("Could not delete " + output.getPath());
+                }
+            }
+        }
+        return nanos;
+    }
+
+    private long runArchive(File archive) {
+        long start = System.nanoTime();
+        new ArchiveBatch(archive, threads).process();
+        return System.nanoTime() - start;
+    }
+
+    private void print(String name, long nanos) {
+        System.out.printf(Locale.ROOT, "%-30s %10.1f images/s%n", name, numberOfFiles / (nanos / 1e9));
+    }
+
+    private static void writeZip(List<File> files, File zip) throws IOException {
+        try (ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip.toPath())))) {
+            for (File file : files) {
+                output.putNextEntry(new ZipEntry(file.getName()));
+                output.write(Files.readAllBytes(file.toPath()));
+                output.closeEntry();
+            }
+        }
+    }
+
+    private static void writeTar(List<File> files, File tar) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tar.toPath()))) {
+            TarArchive.Output archive = new TarArchive.Output(output);
+            for (File file : files) {
+                archive.write(file.getName(), file.lastModified(), Files.readAllBytes(file.toPath()));
+            }
+            archive.finish();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file.getPath());
+        }
+    }
+}
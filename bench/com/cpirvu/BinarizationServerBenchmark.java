@@ -0,0 +1,172 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the {@link BinarizationServer} (-H), running the server and its clients in the same JVM.
+ * <p>
+ * A synthetic colored 24bit BMP file is sent over and over by the given numbers of client threads, each keeping its
+ * connection alive, with force=true. The throughput, the percentiles of the latency seen by the clients and the number
+ * of requests shed with 503 are printed for each number of clients:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.BinarizationServerBenchmark [-C &lt;clients,...&gt;] [-D &lt;seconds&gt;] [-S &lt;width&gt;x&lt;height&gt;] [-Q &lt;queue&gt;]
+ * </pre>
+ * The default is 1 to 64 clients, 5 seconds each, images of 640x480 pixels and a queue of 16 requests, one request
+ * per processor being binarized at a time. With more clients than the processors and the queue can hold, some
+ * requests are shed: the latency of the others stays bounded instead of growing with the number of clients.
+ */
+public class BinarizationServerBenchmark {
+    private int[] clientCounts = {1, 4, 16, 64};
+    private long durationInSeconds = 5;
+    private int width = 640;
+    private int height = 480;
+    private int queueCapacity = 16;
+
+    public static void main(String[] args) throws Exception {
+        BinarizationServerBenchmark benchmark = new BinarizationServerBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-C":
+                    String[] counts = args[i + 1].split(",");
+                    benchmark.clientCounts = new int[counts.length];
+                    for (int j = 0; j < counts.length; j++) {
+                        benchmark.clientCounts[j] = Integer.parseInt(counts[j].trim());
+                    }
+                    break;
+                case "-D":
+                    benchmark.durationInSeconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "-S":
+                    String[] size = args[i + 1].split("x");
+                    benchmark.width = Integer.parseInt(size[0]);
+                    benchmark.height = Integer.parseInt(size[1]);
+                    break;
+                case "-Q":
+                    benchmark.queueCapacity = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.FORCE = false;
+        ImageBinarization.PARALLELISM = 1;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        File file = File.createTempFile("image-processor-server", ".bmp");
+        byte[] image;
+        try {
+            ExecutionStepBenchmark.writeSyntheticBmp(file, width, height, false);
+            image = Files.readAllBytes(file.toPath());
+        } finally {
+            if (!file.delete()) {
+                System.err.println("Could not delete " + file.getPath());
+            }
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        BinarizationServer server = new BinarizationServer(0, processors, queueCapacity,
+                HeapBudget.defaultBudget());
+        server.start();
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + BinarizationServer.PATH + "?force=true");
+            System.out.printf(Locale.ROOT, "%d processors, %dx%d pixels, a queue of %d requests, %d s per run%n",
+                    processors, width, height, queueCapacity, durationInSeconds);
+            System.out.printf(Locale.ROOT, "%8s %12s %10s %10s %10s %10s %10s%n",
+                    "clients", "requests/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "shed");
+            // warm up the server and the clients
+            run(url, image, processors, 2);
+            for (int clients : clientCounts) {
+                run(url, image, clients, durationInSeconds);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @param url      the address of the server
+     * @param image    the body of every request
+     * @param clients  the number of client threads, each sending a request after the other
+     * @param duration the seconds the clients send requests for
+     */
+    private void run(URL url, byte[] image, int clients, long duration) throws InterruptedException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder shed = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        CountDownLatch finished = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            new Thread(() -> {
+                byte[] response = new byte[64 * 1024];
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try {
+                        int status = send(url, image, response);
+                        if (status == 200) {
+                            latencies.record(System.nanoTime() - start);
+                        } else if (status == 503) {
+                            shed.increment();
+                        } else {
+                            failed.increment();
+                        }
+                    } catch (IOException e) {
+                        failed.increment();
+                    }
+                }
+                finished.countDown();
+            }, "client-" + c).start();
+        }
+        long start = System.nanoTime();
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "%8d %12.1f %10.2f %10.2f %10.2f %10.2f %10d%s%n", clients,
+                latencies.getCount() / seconds, millis(latencies.getPercentile(0.5)), millis(latencies.getPercentile(0.9)),
+                millis(latencies.getPercentile(0.99)), millis(latencies.getMax()), shed.sum(),
+                failed.sum() == 0 ? "" : " (" + failed.sum() + " failed)");
+    }
+
+    /**
+     * Method that sends a single request and reads the whole response, so that the connection can be reused.
+     *
+     * @return the status of the response
+     */
+    private static int send(URL url, byte[] image, byte[] buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(image.length);
+        connection.setRequestProperty("Content-Type", "image/bmp");
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(image);
+        }
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (input != null) {
+            try (InputStream body = input) {
+                while (body.read(buffer) >= 0) {
+                    // the content is not checked here, only its time
+                }
+            }
+        }
+        return status;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,142 @@
+package com.cpirvu;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmark of the console output of many threads, comparing the {@link EventLog} with the way the
+ * {@link ExecutionCycle}s used to print: a shared lock around {@link PrintStream#printf(String, Object...)}.
+ * <p>
+ * Each thread simulates the steps of small images: it does a little work, then prints the processing time of the
+ * step, many times. The output goes to the null device, through a print stream built like {@link System#out}, so
+ * every line is still written by a system call. The throughput of the threads is printed for each number of threads:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.EventLogBenchmark [-T &lt;threads,...&gt;] [-N &lt;events per thread&gt;] [-W &lt;work in nanoseconds&gt;]
+ * </pre>
+ * The default is 1 to 64 threads, 20000 events per thread and 2000 nanoseconds of work per event.
+ */
+public class EventLogBenchmark {
+    private static final String FORMAT = "This image binarization step took %d milliseconds.";
+
+    private static final Object LOCK = new Object();
+
+    private int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+    private int eventsPerThread = 20_000;
+    private long workInNanos = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        EventLogBenchmark benchmark = new EventLogBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-T":
+                    String[] counts = args[i + 1].split(",");
+                    benchmark.threadCounts = new int[counts.length];
+                    for (int j = 0; j < counts.length; j++) {
+                        benchmark.threadCounts[j] = Integer.parseInt(counts[j].trim());
+                    }
+                    break;
+                case "-N":
+                    benchmark.eventsPerThread = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-W":
+                    benchmark.workInNanos = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        PrintStream standardOutput = System.out;
+        File nullDevice = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+        // the same buffering and automatic flushing as System.out
+        PrintStream nullOutput = new PrintStream(new BufferedOutputStream(new FileOutputStream(nullDevice), 128), true);
+
+        standardOutput.printf(Locale.ROOT, "%d processors, %d events per thread, %d ns of work per event%n",
+                Runtime.getRuntime().availableProcessors(), eventsPerThread, workInNanos);
+        standardOutput.printf(Locale.ROOT, "%8s %22s %22s %22s%n",
+                "threads", "locked events/s", "event log events/s", "event log drained/s");
+        System.setOut(nullOutput);
+        try {
+            // warm up both ways of printing
+            run(4, true);
+            run(4, false);
+            EventLog.flush();
+
+            for (int threads : threadCounts) {
+                double locked = threads * (double) eventsPerThread / (run(threads, true) / 1e9);
+                long start = System.nanoTime();
+                double eventLog = threads * (double) eventsPerThread / (run(threads, false) / 1e9);
+                EventLog.flush();
+                double drained = threads * (double) eventsPerThread / ((System.nanoTime() - start) / 1e9);
+                standardOutput.printf(Locale.ROOT, "%8d %22.0f %22.0f %22.0f%n", threads, locked, eventLog, drained);
+            }
+        } finally {
+            System.setOut(standardOutput);
+            nullOutput.close();
+        }
+    }
+
+    /**
+     * @param threads the number of threads printing at the same time
+     * @param locked  true to print under a shared lock, false to print through the {@link EventLog}
+     * @return the nanoseconds until the last thread finished
+     */
+    private long run(int threads, boolean locked) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int cycle = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < eventsPerThread; i++) {
+                    long value = work();
+                    if (locked) {
+                        synchronized (LOCK) {
+                            System.out.print("[Execution Cycle: " + cycle + "] ");
+                            System.out.printf(FORMAT, value);
+                            System.out.println();
+                        }
+                    } else {
+                        EventLog.log(EventLog.Verbosity.STEPS, cycle, FORMAT, value);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return a value depending on the work, so that it cannot be optimized away
+     */
+    private long work() {
+        long end = System.nanoTime() + workInNanos;
+        long value = 0;
+        while (System.nanoTime() < end) {
+            value++;
+        }
+        return value & 0xff;
+    }
+
+    static {
+        // the class of the event log is initialized outside the measurements
+        EventLog.isEnabled(EventLog.Verbosity.QUIET);
+    }
+}
@@ -0,0 +1,366 @@
+package com.cpirvu;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmark of every {@link ExecutionStep} and of a whole {@link ExecutionCycle}, on synthetic 24bit BMP files.
+ * <p>
+ * For each resolution, a grayscale and a colored BMP file are generated in a temporary directory. Every benchmark is
+ * then executed a few times to warm up the JIT, then measured. The results are printed as a table and saved as JSON,
+ * so they can be compared between runs:
+ * <pre>
+ * java -Xmx4g -cp &lt;classes&gt; com.cpirvu.ExecutionStepBenchmark [-S &lt;megapixels,...&gt;] [-W &lt;warmups&gt;] [-I &lt;iterations&gt;] [-O &lt;json file&gt;]
+ * </pre>
+ * The default sizes are 1, 16 and 100 megapixels, with 3 warmup and 5 measured iterations, saved in benchmark.json.
+ * <p>
+ * The allocations are measured on the benchmark thread only, so {@link ImageBinarization#PARALLELISM} is kept at 1.
+ */
+public class ExecutionStepBenchmark {
+    /**
+     * A single operation to benchmark, executed on the calling thread.
+     */
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The result of a benchmark at a given resolution.
+     */
+    static class Result {
+        String name;
+        int megapixels;
+        int iterations;
+        double averageMillis;
+        double minMillis;
+        double megapixelsPerSecond;
+        double allocatedBytesPerOperation;
+        double allocationRateMegabytesPerSecond;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+    private static final PrintStream STANDARD_OUTPUT = System.out;
+    private static final PrintStream NULL_OUTPUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private int warmups = 3;
+    private int iterations = 5;
+    private int[] sizesInMegapixels = {1, 16, 100};
+    private File outputFile = new File("benchmark.json");
+    private final List<Result> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ExecutionStepBenchmark benchmark = new ExecutionStepBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-S":
+                    String[] sizes = args[i + 1].split(",");
+                    benchmark.sizesInMegapixels = new int[sizes.length];
+                    for (int j = 0; j < sizes.length; j++) {
+                        benchmark.sizesInMegapixels[j] = Integer.parseInt(sizes[j].trim());
+                    }
+                    break;
+                case "-W":
+                    benchmark.warmups = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-I":
+                    benchmark.iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-O":
+                    benchmark.outputFile = new File(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.PARALLELISM = 1;
+        ExecutionCycle.STREAMING = false;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        File directory = createTemporaryDirectory();
+        try {
+            for (int megapixels : sizesInMegapixels) {
+                // a 4:3 image of about the given number of megapixels
+                int width = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 4.0 / 3.0));
+                int height = megapixels * 1_000_000 / width;
+                File grayFile = new File(directory, "gray_" + megapixels + "mp.bmp");
+                File colorFile = new File(directory, "color_" + megapixels + "mp.bmp");
+                File pgmFile = new File(directory, "gray_" + megapixels + "mp.pgm");
+                writeSyntheticBmp(grayFile, width, height, true);
+                writeSyntheticBmp(colorFile, width, height, false);
+                writeSyntheticPgm(pgmFile, width, height);
+                runSize(megapixels, grayFile, colorFile, pgmFile, new File(directory, "output.bmp"));
+                delete(grayFile);
+                delete(colorFile);
+                delete(pgmFile);
+            }
+        } finally {
+            delete(directory);
+        }
+        printResults();
+        saveResults();
+    }
+
+    private void runSize(int megapixels, File grayFile, File colorFile, File pgmFile, File outputFile) throws Exception {
+        BufferedImage grayImage = ImageIO.read(grayFile);
+        BufferedImage colorImage = ImageIO.read(colorFile);
+
+        benchmark("ImageFileReading", megapixels, () -> {
+            ImageFileReading reading = new ImageFileReading(grayFile);
+            reading.execute();
+            check(reading);
+        });
+        benchmark("ImageFileReading+decode", megapixels, () -> {
+            ImageFileReading reading = new ImageFileReading(grayFile);
+            reading.execute();
+            check(reading);
+            reading.getImage();
+        });
+        // the same gray levels in a third of the bytes
+        benchmark("ImageFileReading PGM", megapixels, () -> {
+            ImageFileReading reading = new ImageFileReading(pgmFile);
+            reading.execute();
+            check(reading);
+        });
+        benchmark("ImageBinarization gray", megapixels, () -> binarize(grayImage, false, true));
+        benchmark("ImageBinarization gray FORCE", megapixels, () -> binarize(grayImage, true, true));
+        benchmark("ImageBinarization color", megapixels, () -> binarize(colorImage, false, false));
+        benchmark("ImageBinarization color FORCE", megapixels, () -> binarize(colorImage, true, true));
+
+        ImageBinarization.FORCE = false;
+        ImageBinarization binarization = new ImageBinarization(grayImage);
+        binarization.execute();
+        BufferedImage binaryImage = binarization.getImage();
+        benchmark("ImageFileWriting", megapixels, () -> {
+            ImageFileWriting writing = new ImageFileWriting(binaryImage, outputFile);
+            writing.execute();
+            check(writing);
+        });
+
+        benchmark("ExecutionCycle gray", megapixels, () -> {
+            ImageBinarization.FORCE = false;
+            new ExecutionCycle(grayFile).run();
+        });
+        benchmark("ExecutionCycle gray PGM", megapixels, () -> {
+            ImageBinarization.FORCE = false;
+            new ExecutionCycle(pgmFile).run();
+        });
+        benchmark("ExecutionCycle color FORCE", megapixels, () -> {
+            ImageBinarization.FORCE = true;
+            new ExecutionCycle(colorFile).run();
+        });
+
+        // a sweep of 8 thresholds should cost one conversion and 8 packing passes, not 8 whole binarizations
+        ImageBinarization.THRESHOLDS = new int[]{64, 80, 96, 112, 128, 144, 160, 176};
+        try {
+            benchmark("ImageBinarization color FORCE x8", megapixels, () -> binarize(colorImage, true, true));
+            benchmark("ExecutionCycle color FORCE x8", megapixels, () -> {
+                ImageBinarization.FORCE = true;
+                new ExecutionCycle(colorFile).run();
+            });
+        } finally {
+            ImageBinarization.THRESHOLDS = null;
+        }
+    }
+
+    static void binarize(BufferedImage image, boolean force, boolean expectedSuccess) {
+        ImageBinarization.FORCE = force;
+        PrintStream standardError = System.err;
+        System.setErr(NULL_OUTPUT); // the expected 'not grayscale' message
+        try {
+            ImageBinarization binarization = new ImageBinarization(image);
+            binarization.execute();
+            if (binarization.isFinishedSuccessfully() != expectedSuccess) {
+                throw new IllegalStateException("Unexpected binarization result!");
+            }
+        } finally {
+            System.setErr(standardError);
+        }
+    }
+
+    static void check(ExecutionStep step) {
+        if (!step.isFinishedSuccessfully()) {
+            throw new IllegalStateException("The step " + step.getClass().getSimpleName() + " failed!");
+        }
+    }
+
+    private void benchmark(String name, int megapixels, Operation operation) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            operation.run();
+        }
+        System.gc();
+
+        long totalNanos = 0;
+        long minNanos = Long.MAX_VALUE;
+        long allocatedBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            operation.run();
+            long nanos = System.nanoTime() - start;
+            allocatedBytes += allocatedBytes() - allocatedBefore;
+            totalNanos += nanos;
+            minNanos = Math.min(minNanos, nanos);
+        }
+
+        Result result = new Result();
+        result.name = name;
+        result.megapixels = megapixels;
+        result.iterations = iterations;
+        result.averageMillis = totalNanos / 1e6 / iterations;
+        result.minMillis = minNanos / 1e6;
+        result.megapixelsPerSecond = megapixels * iterations / (totalNanos / 1e9);
+        result.allocatedBytesPerOperation = THREAD_MX_BEAN == null ? Double.NaN : (double) allocatedBytes / iterations;
+        result.allocationRateMegabytesPerSecond = THREAD_MX_BEAN == null ? Double.NaN : allocatedBytes / 1e6 / (totalNanos / 1e9);
+        results.add(result);
+        STANDARD_OUTPUT.printf(Locale.ROOT, "%-32s %4d MP  %10.2f ms/op  %10.2f MP/s  %12.0f B/op%n",
+                name, megapixels, result.averageMillis, result.megapixelsPerSecond, result.allocatedBytesPerOperation);
+    }
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN == null ? 0 : THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void printResults() {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-32s %7s %12s %12s %12s %14s %12s%n",
+                "Benchmark", "MP", "avg ms/op", "min ms/op", "MP/s", "alloc B/op", "alloc MB/s");
+        for (Result result : results) {
+            System.out.printf(Locale.ROOT, "%-32s %7d %12.2f %12.2f %12.2f %14.0f %12.2f%n",
+                    result.name, result.megapixels, result.averageMillis, result.minMillis,
+                    result.megapixelsPerSecond, result.allocatedBytesPerOperation,
+                    result.allocationRateMegabytesPerSecond);
+        }
+    }
+
+    private void saveResults() throws IOException {
+        try (PrintWriter writer = new PrintWriter(outputFile, "UTF-8")) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                writer.printf(Locale.ROOT, "  {\"benchmark\": \"%s\", \"megapixels\": %d, \"iterations\": %d, " +
+                                "\"averageMillis\": %.3f, \"minMillis\": %.3f, \"megapixelsPerSecond\": %.3f, " +
+                                "\"allocatedBytesPerOperation\": %s, \"allocationRateMegabytesPerSecond\": %s}%s%n",
+                        result.name, result.megapixels, result.iterations, result.averageMillis, result.minMillis,
+                        result.megapixelsPerSecond, jsonNumber(result.allocatedBytesPerOperation),
+                        jsonNumber(result.allocationRateMegabytesPerSecond), i + 1 < results.size() ? "," : "");
+            }
+            writer.println("]");
+        }
+        System.out.println("Results saved at " + outputFile.getAbsolutePath());
+    }
+
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Method that writes an uncompressed 24bit BMP file, with a pattern of gradients and noise.
+     *
+     * @param file   the file to write
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @param gray   if true, all the pixels are gray
+     * @throws IOException if the file cannot be written
+     */
+    static void writeSyntheticBmp(File file, int width, int height, boolean gray) throws IOException {
+        int rowStride = (width * 3 + 3) & ~3;
+        ByteBuffer header = ByteBuffer.allocate(BmpHeader.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'B').put((byte) 'M');
+        header.putInt(BmpHeader.SIZE + rowStride * height);
+        header.putInt(0);
+        header.putInt(BmpHeader.SIZE);
+        header.putInt(BmpHeader.INFO_HEADER_SIZE);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        header.putInt(0);
+        header.putInt(rowStride * height);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        byte[] row = new byte[rowStride];
+        int seed = 12345;
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            output.write(header.array());
+            for (int y = 0; y < height; y++) {
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    seed = seed * 1103515245 + 12345;
+                    int value = ((x + y) * 255 / (width + height) + ((seed >>> 16) & 31)) & 0xff;
+                    row[i] = (byte) value;
+                    row[i + 1] = (byte) (gray ? value : value * 3);
+                    row[i + 2] = (byte) (gray ? value : 255 - value);
+                }
+                output.write(row);
+            }
+        }
+    }
+
+    /**
+     * Method that writes a binary PGM file with the same gray levels as the gray BMP file of
+     * {@link #writeSyntheticBmp(File, int, int, boolean)}.
+     */
+    static void writeSyntheticPgm(File file, int width, int height) throws IOException {
+        byte[] row = new byte[width];
+        int seed = 12345;
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            output.write(("P5\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    seed = seed * 1103515245 + 12345;
+                    row[x] = (byte) (((x + y) * 255 / (width + height) + ((seed >>> 16) & 31)) & 0xff);
+                }
+                output.write(row);
+            }
+        }
+    }
+
+    private static File createTemporaryDirectory() throws IOException {
+        File directory = File.createTempFile("image-processor-benchmark", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create the directory " + directory.getPath());
+        }
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file.getPath());
+        }
+    }
+}
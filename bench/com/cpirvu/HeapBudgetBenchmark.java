@@ -0,0 +1,148 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Benchmark of the admission of the cycles of a directory against a {@link HeapBudget}, as with [-M].
+ * <p>
+ * Two temporary directories are generated: one of many small synthetic gray 24bit BMP files, and the same with a few
+ * large ones added. The threshold of every image is computed with Otsu's method, as with [-T auto], so that each cycle
+ * holds a gray plane of a byte per pixel in the heap besides its binary image. Each directory is processed by
+ * {@link ImageProcessor#processInParallel(Iterable, int, HeapBudget, AdaptiveConcurrency)}, once with a budget so
+ * large that every file is admitted at once (as without admission control) and once with the default budget. The
+ * throughput of the small files and the peak heap used by the mixed directory are printed:
+ * <pre>
+ * java -Xmx256m -cp &lt;classes&gt; com.cpirvu.HeapBudgetBenchmark [-F &lt;files&gt;] [-L &lt;large files&gt;] [-X &lt;megapixels&gt;] [-T &lt;threads&gt;]
+ * </pre>
+ * The default is 4000 files of 160x120 pixels, 6 large files of 40 megapixels and 8 threads.
+ */
+public class HeapBudgetBenchmark {
+    private int numberOfFiles = 4000;
+    private int numberOfLargeFiles = 6;
+    private int largeMegapixels = 40;
+    private int threads = 8;
+
+    public static void main(String[] args) throws Exception {
+        HeapBudgetBenchmark benchmark = new HeapBudgetBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-F":
+                    benchmark.numberOfFiles = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-L":
+                    benchmark.numberOfLargeFiles = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-X":
+                    benchmark.largeMegapixels = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-T":
+                    benchmark.threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.AUTO_THRESHOLD = true;
+        ImageBinarization.FORCE = true;
+        ImageBinarization.PARALLELISM = 1;
+        ExecutionCycle.STREAMING = false;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        File root = File.createTempFile("image-processor-budget", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Could not create the directory " + root.getPath());
+        }
+        File small = new File(root, "small");
+        File mixed = new File(root, "mixed");
+        try {
+            if (!small.mkdir() || !mixed.mkdir()) {
+                throw new IOException("Could not create the directories in " + root.getPath());
+            }
+            for (int i = 0; i < numberOfFiles; i++) {
+                ExecutionStepBenchmark.writeSyntheticBmp(new File(small, "image_" + i + ".bmp"), 160, 120, true);
+                ExecutionStepBenchmark.writeSyntheticBmp(new File(mixed, "image_" + i + ".bmp"), 160, 120, true);
+            }
+            int side = (int) Math.sqrt(largeMegapixels * 1_000_000.0);
+            for (int i = 0; i < numberOfLargeFiles; i++) {
+                ExecutionStepBenchmark.writeSyntheticBmp(new File(mixed, "large_" + i + ".bmp"), side, side, true);
+            }
+
+            HeapBudget unlimited = new HeapBudget(Long.MAX_VALUE / 2, threads);
+            HeapBudget budget = new HeapBudget(HeapBudget.defaultBudget(), threads);
+            System.out.printf(Locale.ROOT, "%d processors, %d MB of heap, %d threads, %d files of 160x120 pixels,"
+                            + " %d large files of %dx%d pixels%n", Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory() >> 20, threads, numberOfFiles, numberOfLargeFiles, side, side);
+            // warm up both ways
+            run(small, unlimited);
+            run(small, budget);
+
+            System.out.printf(Locale.ROOT, "%-36s %12s %14s %8s%n", "run", "seconds", "peak heap MB", "failed");
+            run("small files, no admission control", small, unlimited);
+            run("small files, default budget", small, budget);
+            run("mixed files, no admission control", mixed, unlimited);
+            run("mixed files, default budget", mixed, budget);
+        } finally {
+            delete(root);
+        }
+    }
+
+    private void run(String name, File directory, HeapBudget budget) {
+        long failed = RunMetrics.FAILED_CYCLES.sum();
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long nanos = run(directory, budget);
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-36s %12.2f %14d %8d%n", name, nanos / 1e9, peak >> 20,
+                RunMetrics.FAILED_CYCLES.sum() - failed);
+    }
+
+    private long run(File directory, HeapBudget budget) {
+        long start = System.nanoTime();
+        try {
+            ImageProcessor.processInParallel(FileTraversal.largestFirstSized(new FileTraversal(directory), 1024), threads,
+                    budget, null);
+        } catch (OutOfMemoryError e) {
+            System.out.println("Out of memory!");
+        }
+        long nanos = System.nanoTime() - start;
+        // the next run must find the same files
+        File[] outputs = directory.listFiles((dir, name) -> FileTraversal.isOutputName(name));
+        if (outputs != null) {
+            for (File output : outputs) {
+                if (!output.delete()) {
+                    System.err.println("Could not delete " + output.getPath());
+                }
+            }
+        }
+        return nanos;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.cpirvu;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Check and benchmark of the lookup tables of {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)}
+ * against the luminance computed in double by {@link ImageBinarization#luminance(int, int, int)}.
+ * <p>
+ * The gray level of every one of the 2^24 colors is compared first, any difference being printed and making the exit
+ * status 1. Both are then timed on random rows:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.LuminanceBenchmark [-W &lt;width&gt;] [-R &lt;rows&gt;] [-I &lt;iterations&gt;]
+ * </pre>
+ * The default is 200 measured iterations of 64 rows of 4000 pixels, after as many warmup iterations.
+ */
+public class LuminanceBenchmark {
+    private int width = 4000;
+    private int rows = 64;
+    private int iterations = 200;
+
+    public static void main(String[] args) {
+        LuminanceBenchmark benchmark = new LuminanceBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-W":
+                    benchmark.width = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-R":
+                    benchmark.rows = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-I":
+                    benchmark.iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        long differences = check();
+        benchmark.time();
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the number of colors whose gray level differs
+     */
+    private static long check() {
+        // one row of 256 pixels per red and green pair, the blue going from 0 to 255
+        byte[] row = new byte[3 * 256];
+        byte[] gray = new byte[256];
+        long differences = 0;
+        for (int red = 0; red < 256; red++) {
+            for (int green = 0; green < 256; green++) {
+                for (int blue = 0; blue < 256; blue++) {
+                    row[3 * blue] = (byte) blue;
+                    row[3 * blue + 1] = (byte) green;
+                    row[3 * blue + 2] = (byte) red;
+                }
+                ImageBinarization.toGray(row, 0, 256, true, gray, 0);
+                for (int blue = 0; blue < 256; blue++) {
+                    int expected = ImageBinarization.luminance(red, green, blue);
+                    if ((gray[blue] & 0xff) != expected && differences++ < 10) {
+                        System.out.printf(Locale.ROOT, "Color %d,%d,%d: %d instead of %d%n",
+                                red, green, blue, gray[blue] & 0xff, expected);
+                    }
+                }
+            }
+        }
+        System.out.println(differences == 0 ? "The lookup tables give the same gray level as the double luminance for"
+                + " all the 2^24 colors." : "The lookup tables differ from the double luminance for " + differences + " colors!");
+        return differences;
+    }
+
+    private void time() {
+        byte[] pixels = new byte[3 * width * rows];
+        new Random(7).nextBytes(pixels);
+        byte[] gray = new byte[width * rows];
+
+        System.out.printf(Locale.ROOT, "%d rows of %d pixels, %d iterations%n", rows, width, iterations);
+        System.out.printf(Locale.ROOT, "%-10s %14s %14s%n", "code", "ns/pixel", "megapixels/s");
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int i = 0, out = 0; out < gray.length; i += 3) {
+                    gray[out++] = (byte) ImageBinarization.luminance(pixels[i + 2] & 0xff, pixels[i + 1] & 0xff, pixels[i] & 0xff);
+                }
+            }
+            long doubleNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int y = 0; y < rows; y++) {
+                    ImageBinarization.toGray(pixels, 3 * y * width, width, true, gray, y * width);
+                }
+            }
+            long tableNanos = System.nanoTime() - start;
+            if (pass == 1) {
+                print("double", doubleNanos);
+                print("tables", tableNanos);
+                System.out.printf(Locale.ROOT, "speed-up: %.2fx%n", (double) doubleNanos / tableNanos);
+            }
+        }
+    }
+
+    private void print(String name, long nanos) {
+        double pixels = (double) width * rows * iterations;
+        System.out.printf(Locale.ROOT, "%-10s %14.3f %14.1f%n", name, nanos / pixels, pixels / nanos * 1000);
+    }
+}
@@ -0,0 +1,185 @@
+package com.cpirvu;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Check and benchmark of the {@link RowKernel} selected on this JVM against the scalar code of
+ * {@link ImageBinarization}.
+ * <p>
+ * The check compares the bits given by the kernel with the ones of
+ * {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)} and
+ * {@link ImageBinarization#pack(byte[], int, int, int, byte[], int)}: for every one of the 2^24 colors with a few
+ * thresholds, for every color whose luminance is an integer (where the fixed point and the double computations are
+ * the closest) with every threshold, and for random rows of every width up to 100 pixels, gray or not. Any difference
+ * is printed and makes the exit status 1. The two are then timed on rows of the given width:
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp &lt;classes&gt; com.cpirvu.RowKernelBenchmark [-W &lt;width&gt;] [-R &lt;rows&gt;] [-I &lt;iterations&gt;]
+ * </pre>
+ * The default is 200 measured iterations of 64 rows of 4000 pixels, after as many warmup iterations.
+ */
+public class RowKernelBenchmark {
+    private static final int[] EXHAUSTIVE_THRESHOLDS = {0, 1, 63, 126, 127, 128, 200, 254, 255};
+
+    private int width = 4000;
+    private int rows = 64;
+    private int iterations = 200;
+    private long differences;
+
+    public static void main(String[] args) {
+        RowKernelBenchmark benchmark = new RowKernelBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-W":
+                    benchmark.width = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-R":
+                    benchmark.rows = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-I":
+                    benchmark.iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        RowKernel kernel = RowKernel.select();
+        if (kernel == null) {
+            System.err.println("No kernel can be used on this JVM, check that the classes of the folder vector are on"
+                    + " the class path and that the JVM runs with --add-modules jdk.incubator.vector.");
+            System.exit(2);
+        }
+        System.out.println("Kernel: " + kernel.describe());
+        benchmark.check(kernel);
+        benchmark.time(kernel);
+        if (benchmark.differences > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void check(RowKernel kernel) {
+        // every color, 4096 pixels per row
+        byte[] allColors = new byte[3 << 24];
+        int[] integerLuminanceColors = new int[1 << 24];
+        int integerLuminanceCount = 0;
+        for (int rgb = 0; rgb < 1 << 24; rgb++) {
+            int red = rgb >> 16;
+            int green = (rgb >> 8) & 0xff;
+            int blue = rgb & 0xff;
+            allColors[3 * rgb] = (byte) blue;
+            allColors[3 * rgb + 1] = (byte) green;
+            allColors[3 * rgb + 2] = (byte) red;
+            if ((2126 * red + 7152 * green + 722 * blue) % 10000 == 0) {
+                integerLuminanceColors[integerLuminanceCount++] = rgb;
+            }
+        }
+        for (int threshold : EXHAUSTIVE_THRESHOLDS) {
+            compareRows(kernel, "all colors", allColors, 4096, 1 << 12, true, threshold);
+        }
+        System.out.printf(Locale.ROOT, "All the colors checked with %d thresholds.%n", EXHAUSTIVE_THRESHOLDS.length);
+
+        // the colors of integer luminance, in rows of every phase against the groups of the kernel
+        byte[] integerLuminance = new byte[3 * integerLuminanceCount];
+        for (int i = 0; i < integerLuminanceCount; i++) {
+            int rgb = integerLuminanceColors[i];
+            integerLuminance[3 * i] = (byte) rgb;
+            integerLuminance[3 * i + 1] = (byte) (rgb >> 8);
+            integerLuminance[3 * i + 2] = (byte) (rgb >> 16);
+        }
+        for (int threshold = 0; threshold < 256; threshold++) {
+            for (int rowWidth = 61; rowWidth <= 67; rowWidth++) {
+                compareRows(kernel, "integer luminance", integerLuminance, rowWidth, integerLuminanceCount / rowWidth,
+                        true, threshold);
+            }
+        }
+        System.out.printf(Locale.ROOT, "The %d colors of integer luminance checked with every threshold.%n",
+                integerLuminanceCount);
+
+        // random rows, colored or gray, checked for grayscale too
+        Random random = new Random(42);
+        for (int rowWidth = 1; rowWidth <= 100; rowWidth++) {
+            byte[] colored = new byte[3 * rowWidth * 16];
+            random.nextBytes(colored);
+            byte[] gray = colored.clone();
+            for (int i = 0; i < gray.length; i += 3) {
+                gray[i + 1] = gray[i];
+                gray[i + 2] = gray[i];
+            }
+            for (int threshold = 0; threshold < 256; threshold += 15) {
+                compareRows(kernel, "random colored", colored, rowWidth, 16, true, threshold);
+                compareRows(kernel, "random colored", colored, rowWidth, 16, false, threshold);
+                compareRows(kernel, "random gray", gray, rowWidth, 16, false, threshold);
+            }
+        }
+        System.out.println(differences == 0 ? "The kernel gives the same bits as the scalar code."
+                : "The kernel differs from the scalar code in " + differences + " rows!");
+    }
+
+    /**
+     * Method that compares the kernel with the scalar code on the given rows, and counts the rows that differ.
+     */
+    private void compareRows(RowKernel kernel, String name, byte[] pixels, int rowWidth, int rowCount,
+                             boolean luminance, int threshold) {
+        int binaryStride = (rowWidth + 7) >> 3;
+        byte[] expected = new byte[binaryStride];
+        byte[] actual = new byte[binaryStride];
+        byte[] gray = new byte[rowWidth];
+        for (int y = 0; y < rowCount; y++) {
+            int rowOffset = 3 * y * rowWidth;
+            Arrays.fill(expected, (byte) 0);
+            Arrays.fill(actual, (byte) 0);
+            boolean expectedGray = ImageBinarization.toGray(pixels, rowOffset, rowWidth, luminance, gray, 0);
+            if (expectedGray) {
+                ImageBinarization.pack(gray, 0, rowWidth, threshold, expected, 0);
+            }
+            boolean actualGray = kernel.binarize(pixels, rowOffset, rowWidth, luminance, threshold, actual, 0);
+            // the bits of a row that is not gray are not used
+            if (expectedGray != actualGray || (expectedGray && !Arrays.equals(expected, actual))) {
+                if (differences++ < 10) {
+                    System.out.printf(Locale.ROOT, "%s: row %d of %d pixels differs with threshold %d, luminance %b%n",
+                            name, y, rowWidth, threshold, luminance);
+                }
+            }
+        }
+    }
+
+    private void time(RowKernel kernel) {
+        byte[] pixels = new byte[3 * width * rows];
+        new Random(7).nextBytes(pixels);
+        int binaryStride = (width + 7) >> 3;
+        byte[] binary = new byte[binaryStride * rows];
+        byte[] gray = new byte[width];
+
+        System.out.printf(Locale.ROOT, "%d rows of %d pixels, %d iterations%n", rows, width, iterations);
+        System.out.printf(Locale.ROOT, "%-10s %14s %14s%n", "code", "ns/pixel", "megapixels/s");
+        for (int pass = 0; pass < 2; pass++) {
+            boolean measured = pass == 1;
+            long start = System.nanoTime();
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int y = 0; y < rows; y++) {
+                    ImageBinarization.toGray(pixels, 3 * y * width, width, true, gray, 0);
+                    ImageBinarization.pack(gray, 0, width, 127, binary, y * binaryStride);
+                }
+            }
+            long scalarNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                for (int y = 0; y < rows; y++) {
+                    kernel.binarize(pixels, 3 * y * width, width, true, 127, binary, y * binaryStride);
+                }
+            }
+            long kernelNanos = System.nanoTime() - start;
+            if (measured) {
+                print("scalar", scalarNanos);
+                print("vector", kernelNanos);
+                System.out.printf(Locale.ROOT, "speed-up: %.2fx%n", (double) scalarNanos / kernelNanos);
+            }
+        }
+    }
+
+    private void print(String name, long nanos) {
+        double pixels = (double) width * rows * iterations;
+        System.out.printf(Locale.ROOT, "%-10s %14.3f %14.1f%n", name, nanos / pixels, pixels / nanos * 1000);
+    }
+}
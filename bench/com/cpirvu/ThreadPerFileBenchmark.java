@@ -0,0 +1,146 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link ThreadPerFileExecution} (-M virtual) against a fixed pool of platform threads (-M &lt;n&gt;), on a
+ * simulated slow storage.
+ * <p>
+ * Many small synthetic 24bit BMP files are generated in a temporary directory. The slow storage is simulated by
+ * cycles that sleep for the given latency before reading a file and before writing one, the way a thread blocks on a
+ * network share, while the actual work stays the same. The throughput in files per second is printed for each way:
+ * <pre>
+ * java -cp &lt;classes&gt; com.cpirvu.ThreadPerFileBenchmark [-F &lt;files&gt;] [-L &lt;latency in milliseconds&gt;] [-P &lt;pool sizes,...&gt;]
+ * </pre>
+ * The default is 400 files of 320x240 pixels, 20 milliseconds of latency and pools of 5 and 255 threads.
+ */
+public class ThreadPerFileBenchmark {
+    private int numberOfFiles = 400;
+    private long latencyInMillis = 20;
+    private int[] poolSizes = {5, 255};
+
+    public static void main(String[] args) throws Exception {
+        ThreadPerFileBenchmark benchmark = new ThreadPerFileBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-F":
+                    benchmark.numberOfFiles = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-L":
+                    benchmark.latencyInMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "-P":
+                    String[] sizes = args[i + 1].split(",");
+                    benchmark.poolSizes = new int[sizes.length];
+                    for (int j = 0; j < sizes.length; j++) {
+                        benchmark.poolSizes[j] = Integer.parseInt(sizes[j].trim());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        benchmark.runAll();
+    }
+
+    private void runAll() throws Exception {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.FORCE = false;
+        ImageBinarization.PARALLELISM = 1;
+        ExecutionCycle.STREAMING = false;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        File directory = File.createTempFile("image-processor-thread-per-file", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create the directory " + directory.getPath());
+        }
+        try {
+            List<File> files = new ArrayList<>();
+            for (int i = 0; i < numberOfFiles; i++) {
+                File file = new File(directory, "image_" + i + ".bmp");
+                ExecutionStepBenchmark.writeSyntheticBmp(file, 320, 240, true);
+                files.add(file);
+            }
+
+            int processors = Runtime.getRuntime().availableProcessors();
+            System.out.printf(Locale.ROOT, "%d processors, %d files, %d ms of latency per read and per write, %s threads%n",
+                    processors, numberOfFiles, latencyInMillis, ThreadPerFileExecution.isVirtual() ? "virtual" : "platform (no virtual threads before Java 21)");
+            // warm up both ways
+            runPool(files, processors);
+            runThreadPerFile(files, processors);
+
+            for (int poolSize : poolSizes) {
+                long nanos = runPool(files, poolSize);
+                System.out.printf(Locale.ROOT, "%-40s %10.1f files/s%n", "pool of " + poolSize + " threads", numberOfFiles / (nanos / 1e9));
+            }
+            long nanos = runThreadPerFile(files, processors);
+            System.out.printf(Locale.ROOT, "%-40s %10.1f files/s%n", "thread per file, " + processors + " binarizers",
+                    numberOfFiles / (nanos / 1e9));
+        } finally {
+            File[] children = directory.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (!child.delete()) {
+                        System.err.println("Could not delete " + child.getPath());
+                    }
+                }
+            }
+            if (!directory.delete()) {
+                System.err.println("Could not delete " + directory.getPath());
+            }
+        }
+    }
+
+    private long runPool(List<File> files, int poolSize) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        for (File file : files) {
+            executor.execute(newSlowCycle(file));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return System.nanoTime() - start;
+    }
+
+    private long runThreadPerFile(List<File> files, int binarizers) {
+        long start = System.nanoTime();
+        new ThreadPerFileExecution(binarizers, ThreadPerFileExecution.DEFAULT_FILES_IN_FLIGHT,
+                new HeapBudget(HeapBudget.defaultBudget(), binarizers)).process(files, this::newSlowCycle);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param file the file to process
+     * @return a cycle waiting for {@link #latencyInMillis} before reading and before writing, like on a slow storage
+     */
+    private ExecutionCycle newSlowCycle(File file) {
+        return new ExecutionCycle(file) {
+            @Override
+            boolean read() {
+                sleep();
+                return super.read();
+            }
+
+            @Override
+            void write() {
+                sleep();
+                super.write();
+            }
+        };
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(latencyInMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.cpirvu;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JMH version of {@link ExecutionStepBenchmark}: every {@link ExecutionStep} and a whole {@link ExecutionCycle}, on
+ * synthetic 24bit BMP files of 1, 16 and 100 megapixels, generated by
+ * {@link ExecutionStepBenchmark#writeSyntheticBmp(File, int, int, boolean)}. Besides the operations per second, each
+ * benchmark counts the megapixels it processed in {@link Megapixels}, which JMH reports per second as well:
+ * <pre>
+ * gradle jmh
+ * java -jar build/libs/ImageProcessor-jmh.jar -prof gc -rf json [-p megapixels=1,16] [&lt;benchmark regex&gt;]
+ * </pre>
+ * The gradle task runs them all with the GC profiler, and saves the results as JSON in build/results/jmh/results.json.
+ * <p>
+ * The binarization runs on the benchmark thread only, {@link ImageBinarization#PARALLELISM} being kept at 1, so that
+ * the allocation rate of the GC profiler is the one of the steps.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ExecutionStepJmhBenchmark {
+    @Param({"1", "16", "100"})
+    public int megapixels;
+
+    private File directory;
+    private File grayFile;
+    private File colorFile;
+    private File pgmFile;
+    private File outputFile;
+    private BufferedImage grayImage;
+    private BufferedImage colorImage;
+    private BufferedImage binaryImage;
+
+    /**
+     * The megapixels processed by a benchmark, reported by JMH per second, as megapixels/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megapixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generateFiles() throws IOException {
+        ImageBinarization.THRESHOLD = 127;
+        ImageBinarization.PARALLELISM = 1;
+        ExecutionCycle.STREAMING = false;
+        EventLog.VERBOSITY = EventLog.Verbosity.QUIET;
+
+        directory = File.createTempFile("image-processor-jmh", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create the directory " + directory.getPath());
+        }
+        // a 4:3 image of about the given number of megapixels, as ExecutionStepBenchmark does
+        int width = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 4.0 / 3.0));
+        int height = megapixels * 1_000_000 / width;
+        grayFile = new File(directory, "gray.bmp");
+        colorFile = new File(directory, "color.bmp");
+        pgmFile = new File(directory, "gray.pgm");
+        outputFile = new File(directory, "output.bmp");
+        ExecutionStepBenchmark.writeSyntheticBmp(grayFile, width, height, true);
+        ExecutionStepBenchmark.writeSyntheticBmp(colorFile, width, height, false);
+        ExecutionStepBenchmark.writeSyntheticPgm(pgmFile, width, height);
+
+        grayImage = ImageIO.read(grayFile);
+        colorImage = ImageIO.read(colorFile);
+        ImageBinarization.FORCE = false;
+        ImageBinarization binarization = new ImageBinarization(grayImage);
+        binarization.execute();
+        binaryImage = binarization.getImage();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    System.err.println("Could not delete " + file.getPath());
+                }
+            }
+        }
+        if (!directory.delete()) {
+            System.err.println("Could not delete " + directory.getPath());
+        }
+    }
+
+    @Benchmark
+    public ImageFileReading reading(Megapixels counter) {
+        ImageFileReading reading = new ImageFileReading(grayFile);
+        reading.execute();
+        ExecutionStepBenchmark.check(reading);
+        counter.megapixels += megapixels;
+        return reading;
+    }
+
+    @Benchmark
+    public BufferedImage readingAndDecoding(Megapixels counter) {
+        ImageFileReading reading = new ImageFileReading(grayFile);
+        reading.execute();
+        ExecutionStepBenchmark.check(reading);
+        counter.megapixels += megapixels;
+        return reading.getImage();
+    }
+
+    @Benchmark
+    public ImageFileReading readingPgm(Megapixels counter) {
+        ImageFileReading reading = new ImageFileReading(pgmFile);
+        reading.execute();
+        ExecutionStepBenchmark.check(reading);
+        counter.megapixels += megapixels;
+        return reading;
+    }
+
+    @Benchmark
+    public void binarizationGray(Megapixels counter) {
+        ExecutionStepBenchmark.binarize(grayImage, false, true);
+        counter.megapixels += megapixels;
+    }
+
+    @Benchmark
+    public void binarizationGrayForce(Megapixels counter) {
+        ExecutionStepBenchmark.binarize(grayImage, true, true);
+        counter.megapixels += megapixels;
+    }
+
+    /**
+     * The binarization of a colored image without FORCE, which stops at the first colored pixel.
+     */
+    @Benchmark
+    public void binarizationColor(Megapixels counter) {
+        ExecutionStepBenchmark.binarize(colorImage, false, false);
+        counter.megapixels += megapixels;
+    }
+
+    @Benchmark
+    public void binarizationColorForce(Megapixels counter) {
+        ExecutionStepBenchmark.binarize(colorImage, true, true);
+        counter.megapixels += megapixels;
+    }
+
+    @Benchmark
+    public void writing(Megapixels counter) {
+        ImageFileWriting writing = new ImageFileWriting(binaryImage, outputFile);
+        writing.execute();
+        ExecutionStepBenchmark.check(writing);
+        counter.megapixels += megapixels;
+    }
+
+    @Benchmark
+    public void cycleGray(Megapixels counter) {
+        ImageBinarization.FORCE = false;
+        new ExecutionCycle(grayFile).run();
+        counter.megapixels += megapixels;
+    }
+
+    @Benchmark
+    public void cycleColorForce(Megapixels counter) {
+        ImageBinarization.FORCE = true;
+        new ExecutionCycle(colorFile).run();
+        counter.megapixels += megapixels;
+    }
+}
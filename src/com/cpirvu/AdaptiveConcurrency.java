@@ -0,0 +1,215 @@
+package com.cpirvu;
+
+import java.util.Locale;
+
+/**
+ * The number of cycles of a directory that run at the same time with [-M auto], tuned while the files are processed.
+ * <p>
+ * Before starting a cycle, the dispatching thread calls {@link #acquire()}, which waits while {@link #getLimit()} cycles
+ * are running, and every cycle calls {@link #release(long)} with its number of pixels when it is over (the large files,
+ * which are not limited, call {@link #addCompleted(long)}). The pixels completed are measured over windows of at least
+ * {@link #WINDOW_MILLIS} and as many cycles as the limit, and at the end of each window the limit is moved by hill
+ * climbing:
+ * <ul>
+ * <li>a trial limit that gives more than {@link #GAIN} more megapixels per second than the current one is kept, and
+ * the next trial goes further in the same direction, twice as far (one cycle further if it only has fewer cycles);</li>
+ * <li>a trial limit that gives less, or the same with more cycles, is given up, and a trial half as far is tried, until
+ * a step of one cycle, then the other direction;</li>
+ * <li>when both directions are given up, the throughput has plateaued and the limit is held, being probed again
+ * after {@link #PROBE_WINDOWS} windows, so that the limit follows a workload or a host that changes.</li>
+ * </ul>
+ * Fewer cycles giving the same throughput are kept, as they need less memory. The limit stays between 1 and the
+ * maximum given to the constructor, which is also the size of the pool running the cycles.
+ */
+final class AdaptiveConcurrency {
+    /**
+     * The minimum duration of a window, in milliseconds.
+     */
+    static long WINDOW_MILLIS = 500;
+
+    /**
+     * The relative change of the throughput below which two limits are considered as good as each other.
+     */
+    static final double GAIN = 0.05;
+
+    /**
+     * The number of windows a plateau is held before the limit is probed again.
+     */
+    static final int PROBE_WINDOWS = 10;
+
+    private final int maxLimit;
+
+    /**
+     * The limit given by the last window, and its throughput in pixels per second.
+     */
+    private int limit;
+    private double throughput = -1;
+
+    /**
+     * The limit being tried, equal to {@link #limit} while the plateau is held.
+     */
+    private int trialLimit;
+    private int direction = 1;
+    private int step = 1;
+    private boolean otherDirectionTried;
+    private int heldWindows;
+
+    private int running;
+    private long windowStart = System.nanoTime();
+    private long windowPixels;
+    private int windowCycles;
+
+    private final int initialLimit;
+    private int decisions;
+    private int bestLimit;
+    private double bestThroughput;
+
+    /**
+     * @param initialLimit the limit before the first window, usually the number of processors
+     * @param maxLimit     the maximum limit
+     */
+    AdaptiveConcurrency(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.initialLimit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.limit = this.trialLimit = this.initialLimit;
+    }
+
+    /**
+     * @return the number of cycles that may run at the same time
+     */
+    synchronized int getLimit() {
+        return trialLimit;
+    }
+
+    /**
+     * Method that waits until fewer cycles than the limit are running, then counts one more.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (running >= trialLimit) {
+            wait();
+        }
+        running++;
+    }
+
+    /**
+     * Method that counts one cycle less, and ends the window if it is long enough.
+     *
+     * @param pixels the number of pixels of the cycle that ended
+     */
+    synchronized void release(long pixels) {
+        running--;
+        addCompleted(pixels);
+        notifyAll();
+    }
+
+    /**
+     * Method that counts a cycle that ended, without having been started through {@link #acquire()} (a large file,
+     * binarized by the large lane of the {@link HeapBudget}), and ends the window if it is long enough.
+     *
+     * @param pixels the number of pixels of the cycle that ended
+     */
+    synchronized void addCompleted(long pixels) {
+        windowPixels += pixels;
+        windowCycles++;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_MILLIS * 1_000_000 && windowCycles >= trialLimit) {
+            decide(windowPixels * 1e9 / elapsed);
+            windowStart = now;
+            windowPixels = 0;
+            windowCycles = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Method that moves the limit by hill climbing, see {@link AdaptiveConcurrency}.
+     *
+     * @param measured the pixels per second of the window that ended, with {@link #trialLimit} cycles
+     */
+    private void decide(double measured) {
+        if (measured > bestThroughput) {
+            bestThroughput = measured;
+            bestLimit = trialLimit;
+        }
+        if (trialLimit == limit) {
+            // holding: the throughput of the limit is refreshed, and the limit is probed at the start or after a while
+            boolean first = throughput < 0;
+            throughput = measured;
+            if (first || ++heldWindows >= PROBE_WINDOWS) {
+                heldWindows = 0;
+                step = 1;
+                otherDirectionTried = false;
+                if (!first) {
+                    direction = 1;
+                }
+                tryNext("probing");
+            }
+            return;
+        }
+        double gain = measured / throughput - 1;
+        String change = String.format(Locale.ROOT, "%.1f MP/s with %d cycles instead of %.1f MP/s with %d (%+.0f%%)",
+                measured / 1e6, trialLimit, throughput / 1e6, limit, gain * 100);
+        if (gain > GAIN || (gain >= -GAIN && trialLimit < limit)) {
+            limit = trialLimit;
+            throughput = measured;
+            // only a real gain speeds the climb up, fewer cycles for the same throughput are given up one at a time
+            step = gain > GAIN ? step * 2 : 1;
+            otherDirectionTried = false;
+            tryNext(change + ", kept");
+        } else if (step > 1) {
+            step /= 2;
+            tryNext(change + ", given up");
+        } else if (!otherDirectionTried) {
+            otherDirectionTried = true;
+            direction = -direction;
+            tryNext(change + ", given up");
+        } else {
+            hold(change + ", given up");
+        }
+    }
+
+    /**
+     * Method that starts the trial of the limit one step away in the current direction, or in the other one if the
+     * limit is already at that end, or holds the limit if it cannot move.
+     *
+     * @param reason why the limit moves, printed with the decision
+     */
+    private void tryNext(String reason) {
+        int next = Math.max(1, Math.min(maxLimit, limit + direction * step));
+        if (next == limit && !otherDirectionTried) {
+            otherDirectionTried = true;
+            direction = -direction;
+            step = 1;
+            next = Math.max(1, Math.min(maxLimit, limit + direction));
+        }
+        if (next == limit) {
+            hold(reason);
+            return;
+        }
+        trialLimit = next;
+        decisions++;
+        EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Concurrency] %s, trying %d cycles.", reason, trialLimit);
+    }
+
+    private void hold(String reason) {
+        if (trialLimit != limit) {
+            decisions++;
+        }
+        trialLimit = limit;
+        heldWindows = 0;
+        EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Concurrency] %s, holding %d cycles (%.1f MP/s).", reason, limit,
+                throughput / 1e6);
+    }
+
+    /**
+     * Method that prints where the limit settled.
+     */
+    synchronized void printStatistics() {
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Concurrency] %d cycles at the end, from %d (at most %d), after"
+                        + " %d changes. The best window was %.1f MP/s with %d cycles.", limit, initialLimit, maxLimit,
+                decisions, bestThroughput / 1e6, bestLimit);
+    }
+}
@@ -0,0 +1,552 @@
+package com.cpirvu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The archive mode: when the path given to [-P] is a ZIP or TAR archive, its entries are binarized in memory and their
+ * binary images are written in a single archive of the same format, as in images_BINARIZED.zip, see
+ * {@link #getOutputFile(File)}. No file is opened, checked or created for each image, which is what takes most of the
+ * time of a batch of many small images.
+ * <p>
+ * The entries are read one after the other by the calling thread and handed to a pool of binarization threads, each
+ * running a whole {@link ExecutionCycle} in memory. The entries of a ZIP archive are only listed by the calling thread,
+ * each being decompressed by the binarization thread processing it, so that the decompression is done in parallel too.
+ * The cycles are queued in the order of the entries, in a bounded
+ * queue, and a single writing thread takes them in that order, waiting for each one to finish. So the binary images
+ * are written in the order of the entries, whatever the order the cycles finish in, and the same archive always gives
+ * the same output archive, the time of each entry being copied from its input entry. When the writing thread falls
+ * behind, the queue fills up and the reading blocks, so that only a limited number of entries is held in memory.
+ * <p>
+ * The entries of the output archive are stored without compression, so that the writing thread only copies them. The
+ * directories, the hidden entries and the binary images of an earlier run are skipped, as by {@link FileTraversal}.
+ * An entry that cannot be binarized is reported and left out of the output archive.
+ */
+class ArchiveBatch {
+    /**
+     * The queue between the reading and the writing can hold this many entries for each binarization thread.
+     */
+    private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+
+    /**
+     * The size of the buffers of the input and output archives.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The largest entry read, a larger one being reported and skipped.
+     */
+    private static final long MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Marks the end of the entries in the queue of the writing thread.
+     */
+    private static final PendingEntry END = new PendingEntry(null, 0, null);
+
+    private final File archive;
+    private final File outputArchive;
+    private final boolean zip;
+    private final int binarizers;
+
+    /**
+     * The counts of the entries, each updated by a single thread and read once both threads are finished.
+     */
+    private long binarizedEntries;
+    private long failedEntries;
+    private long skippedEntries;
+
+    /**
+     * Set by the writing thread if the output archive cannot be written, the reading stopping then.
+     */
+    private volatile IOException writeFailure;
+
+    /**
+     * @param archive    a ZIP or TAR archive, see {@link #isArchive(File)}
+     * @param binarizers the number of threads binarizing the entries, usually the number of processors
+     * @throws IllegalArgumentException if the file is not an archive or binarizers is lesser than 1
+     */
+    ArchiveBatch(File archive, int binarizers) {
+        if (!isArchive(archive) || binarizers < 1) {
+            throw new IllegalArgumentException("A ZIP or TAR archive and at least one binarization thread are needed!");
+        }
+        this.archive = archive;
+        this.outputArchive = getOutputFile(archive);
+        this.zip = archive.getName().endsWith(".zip");
+        this.binarizers = binarizers;
+    }
+
+    /**
+     * @param file a file
+     * @return true if it has the extension of an archive whose entries are binarized: zip or tar
+     */
+    static boolean isArchive(File file) {
+        String name = file.getName();
+        return name.endsWith(".zip") || name.endsWith(".tar");
+    }
+
+    /**
+     * @param archive a ZIP or TAR archive
+     * @return the archive the binary images of its entries are written to, as in images_BINARIZED.zip
+     */
+    static File getOutputFile(File archive) {
+        String path = archive.getPath();
+        int extension = path.length() - 4;
+        return new File(path.substring(0, extension) + FileTraversal.OUTPUT_SUFFIX + path.substring(extension));
+    }
+
+    /**
+     * Method that binarizes all the entries of the archive and returns once the output archive is written.
+     * Every entry that failed counts as a failed cycle in {@link RunMetrics}, and so does the archive itself if it
+     * cannot be read to its end or the output archive cannot be written.
+     */
+    void process() {
+        EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Archive] Binarizing the entries of %s into %s with %d threads.",
+                archive.getPath(), outputArchive.getPath(), binarizers);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(binarizers,
+                task -> new Thread(task, "archive-binarization-" + threadCount.incrementAndGet()));
+        BlockingQueue<PendingEntry> pending = new ArrayBlockingQueue<>(binarizers * QUEUE_CAPACITY_PER_THREAD);
+
+        IOException readFailure = null;
+        try (EntryReader reader = zip ? new ZipEntryReader() : new TarEntryReader()) {
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(outputArchive.toPath()), BUFFER_SIZE)) {
+                EntryWriter writer = zip ? new ZipEntryWriter(output) : new TarEntryWriter(output);
+                Thread writingThread = new Thread(() -> write(pending, writer), "archive-write");
+                writingThread.start();
+                try {
+                    readFailure = read(reader, pending, pool);
+                } finally {
+                    putUninterruptibly(pending, END);
+                    joinUninterruptibly(writingThread);
+                }
+                if (writeFailure == null) {
+                    writer.finish();
+                }
+            } catch (IOException e) {
+                // the output archive could not be created, finished or closed
+                if (writeFailure == null) {
+                    writeFailure = e;
+                }
+            }
+        } catch (IOException e) {
+            readFailure = e;
+        } finally {
+            pool.shutdown();
+        }
+
+        if (readFailure != null) {
+            System.err.println("Could not read the whole archive " + archive.getPath() + "!");
+            readFailure.printStackTrace();
+            RunMetrics.FAILED_CYCLES.increment();
+        }
+        if (writeFailure != null) {
+            System.err.println("Could not write the archive " + outputArchive.getPath() + "!");
+            writeFailure.printStackTrace();
+            RunMetrics.FAILED_CYCLES.increment();
+        }
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Archive] %d entries were binarized into %s, %d failed and %d were skipped.",
+                binarizedEntries, outputArchive.getPath(), failedEntries, skippedEntries);
+    }
+
+    /**
+     * Method that reads the entries of the archive and hands them to the binarization threads, queuing their cycles
+     * for the writing thread in their order, until the end of the archive or a failure of the writing thread.
+     *
+     * @return the reason the archive could not be read to its end, or null
+     */
+    private IOException read(EntryReader reader, BlockingQueue<PendingEntry> pending, ExecutorService pool) {
+        try {
+            Entry entry;
+            while (writeFailure == null && (entry = reader.next()) != null) {
+                Entry binarized = entry;
+                FutureTask<ExecutionCycle> task = new FutureTask<>(() -> binarize(binarized));
+                // queued before it runs, so that the queue bounds the entries held in memory
+                pending.put(new PendingEntry(entry.name, entry.timeInMillis, task));
+                pool.execute(task);
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Method run by a binarization thread: reads the content of the given entry if not read yet and binarizes it.
+     *
+     * @return the finished cycle of the entry, or null if its content could not be read
+     */
+    private static ExecutionCycle binarize(Entry entry) {
+        byte[] content;
+        try {
+            content = entry.content.read();
+        } catch (IOException e) {
+            e.printStackTrace();
+            RunMetrics.FAILED_CYCLES.increment();
+            return null;
+        }
+        if (content == null) {
+            EventLog.logFormat(EventLog.Verbosity.QUIET, "[Archive] The entry %s is larger than %d bytes.",
+                    entry.name, MAX_ENTRY_SIZE);
+            RunMetrics.FAILED_CYCLES.increment();
+            return null;
+        }
+        ExecutionCycle cycle = new ExecutionCycle(entry.name, content);
+        try {
+            cycle.run();
+        } catch (RuntimeException e) {
+            // a single broken entry must not stop the others
+            e.printStackTrace();
+            RunMetrics.FAILED_CYCLES.increment();
+        }
+        return cycle;
+    }
+
+    /**
+     * Method run by the writing thread: writes the binary images of the queued cycles in their order, each once its
+     * cycle is finished. After a failure, the cycles are still taken from the queue, so that the reading never blocks.
+     */
+    private void write(BlockingQueue<PendingEntry> pending, EntryWriter writer) {
+        boolean interrupted = false;
+        while (true) {
+            PendingEntry entry;
+            try {
+                entry = pending.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                continue;
+            }
+            if (entry == END) {
+                break;
+            }
+            byte[][] outputs = null;
+            String[] names = null;
+            try {
+                ExecutionCycle cycle = getUninterruptibly(entry.cycle);
+                outputs = cycle == null ? null : cycle.getOutputBytes();
+                names = outputs == null ? null : cycle.getOutputNames();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                RunMetrics.FAILED_CYCLES.increment();
+            }
+            if (outputs == null) {
+                EventLog.logFormat(EventLog.Verbosity.QUIET, "[Archive] The entry %s could not be binarized, it is left out.",
+                        entry.name);
+                failedEntries++;
+                continue;
+            }
+            if (writeFailure != null) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < outputs.length; i++) {
+                    writer.write(names[i], entry.timeInMillis, outputs[i]);
+                }
+                binarizedEntries++;
+            } catch (IOException e) {
+                writeFailure = e;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param name a path in an archive
+     * @return true if it is a directory, a hidden entry or one in a hidden directory, or a binary image
+     */
+    static boolean isSkipped(String name) {
+        if (name.isEmpty() || name.endsWith("/")) {
+            return true;
+        }
+        int start = 0;
+        while (start < name.length()) {
+            int end = name.indexOf('/', start);
+            if (end < 0) {
+                end = name.length();
+            }
+            // the current directory, as in ./image.bmp, is not a hidden one
+            if (name.charAt(start) == '.' && end - start != 1) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return FileTraversal.isOutputName(name);
+    }
+
+    private static ExecutionCycle getUninterruptibly(FutureTask<ExecutionCycle> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<PendingEntry> queue, PendingEntry entry) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(entry);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param input the stream of the entry, positioned at its start
+     * @param size  the size of the entry, or -1 if it is not known
+     * @return the content of the entry, or null if it is larger than {@link #MAX_ENTRY_SIZE}
+     */
+    private static byte[] readContent(InputStream input, long size) throws IOException {
+        if (size > MAX_ENTRY_SIZE) {
+            return null;
+        }
+        if (size >= 0) {
+            byte[] content = new byte[(int) size];
+            int read = 0;
+            while (read < content.length) {
+                int count = input.read(content, read, content.length - read);
+                if (count < 0) {
+                    throw new EOFException("The archive ends in the middle of an entry!");
+                }
+                read += count;
+            }
+            return content;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = input.read(buffer)) >= 0) {
+            content.write(buffer, 0, count);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * A regular file of the input archive.
+     */
+    private static final class Entry {
+        private final String name;
+        private final long timeInMillis;
+        private final EntryContent content;
+
+        Entry(String name, long timeInMillis, EntryContent content) {
+            this.name = name;
+            this.timeInMillis = timeInMillis;
+            this.content = content;
+        }
+    }
+
+    private interface EntryContent {
+        /**
+         * @return the content of the entry, or null if it is larger than {@link #MAX_ENTRY_SIZE}
+         */
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * An entry handed to the binarization threads, waiting for the writing thread.
+     */
+    private static final class PendingEntry {
+        private final String name;
+        private final long timeInMillis;
+        private final FutureTask<ExecutionCycle> cycle;
+
+        PendingEntry(String name, long timeInMillis, FutureTask<ExecutionCycle> cycle) {
+            this.name = name;
+            this.timeInMillis = timeInMillis;
+            this.cycle = cycle;
+        }
+    }
+
+    private interface EntryReader extends Closeable {
+        /**
+         * @return the next entry that is not skipped (see {@link #isSkipped(String)}), or null at the end of the archive
+         */
+        Entry next() throws IOException;
+    }
+
+    private interface EntryWriter {
+        void write(String name, long timeInMillis, byte[] content) throws IOException;
+
+        /**
+         * Method that writes the end of the archive, the stream being closed by the caller.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * The entries of a ZIP archive, listed from its central directory, their content being decompressed when read.
+     */
+    private final class ZipEntryReader implements EntryReader {
+        private final ZipFile zipFile;
+        private final Enumeration<? extends ZipEntry> entries;
+
+        ZipEntryReader() throws IOException {
+            this.zipFile = new ZipFile(archive);
+            this.entries = zipFile.entries();
+        }
+
+        @Override
+        public Entry next() {
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (isSkipped(entry.getName())) {
+                    skippedEntries++;
+                    continue;
+                }
+                // the entries without a time get the one of the archive
+                long time = entry.getTime() >= 0 ? entry.getTime() : archive.lastModified();
+                return new Entry(entry.getName(), time, () -> {
+                    try (InputStream input = zipFile.getInputStream(entry)) {
+                        return readContent(input, entry.getSize());
+                    }
+                });
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * The entries of a TAR archive, read one after the other with their content.
+     */
+    private final class TarEntryReader implements EntryReader {
+        private final InputStream input;
+        private final TarArchive.Input tar;
+
+        TarEntryReader() throws IOException {
+            this.input = new BufferedInputStream(Files.newInputStream(archive.toPath()), BUFFER_SIZE);
+            this.tar = new TarArchive.Input(input);
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            TarArchive.Entry entry;
+            while ((entry = tar.next()) != null) {
+                if (isSkipped(entry.getName())) {
+                    skippedEntries++;
+                    continue;
+                }
+                byte[] content = null;
+                if (entry.getSize() <= MAX_ENTRY_SIZE) {
+                    content = new byte[(int) entry.getSize()];
+                    tar.readContent(content);
+                }
+                byte[] read = content;
+                return new Entry(entry.getName(), entry.getTimeInMillis(), () -> read);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static final class ZipEntryWriter implements EntryWriter {
+        private final ZipOutputStream zip;
+        private final CRC32 crc = new CRC32();
+
+        ZipEntryWriter(OutputStream output) {
+            this.zip = new ZipOutputStream(output);
+        }
+
+        @Override
+        public void write(String name, long timeInMillis, byte[] content) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            // a stored entry needs its size and CRC before its content
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            crc.reset();
+            crc.update(content, 0, content.length);
+            entry.setCrc(crc.getValue());
+            entry.setTime(timeInMillis);
+            zip.putNextEntry(entry);
+            zip.write(content);
+            zip.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.finish();
+            zip.flush();
+        }
+    }
+
+    private static final class TarEntryWriter implements EntryWriter {
+        private final TarArchive.Output tar;
+
+        TarEntryWriter(OutputStream output) {
+            this.tar = new TarArchive.Output(output);
+        }
+
+        @Override
+        public void write(String name, long timeInMillis, byte[] content) throws IOException {
+            tar.write(name, timeInMillis, content);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            tar.finish();
+        }
+    }
+}
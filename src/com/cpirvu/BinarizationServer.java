@@ -0,0 +1,511 @@
+package com.cpirvu;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server mode (-H): a BMP file sent with POST to {@link #PATH} is read, binarized and written back as a 1bit BMP
+ * file in the response, all in memory, by the same steps as an {@link ExecutionCycle}. The threshold and the force
+ * flag can be given per request, as in /binarize?threshold=auto&amp;force=true, the settings of the command line being
+ * used otherwise.
+ * <p>
+ * At most one request per binarization thread is processed at a time, and at most the capacity of the queue more wait
+ * for their turn. Any request beyond them is shed right away with 503 (Service Unavailable), so that a burst cannot
+ * make the server answer every request late. The connections are kept alive between requests, as every response has
+ * a known length.
+ * <p>
+ * The body of an admitted request is only read once its memory is available in a {@link HeapBudget}, as the files of a
+ * directory with [-M]: the body itself and the peak of its cycle, estimated from its length (Content-Length, or the
+ * size in its BMP header) and from the header of its image, so that a burst of large bodies cannot make the server run
+ * out of memory. A body that is not a BMP, PGM or PBM file, as found from its first bytes, only counts for itself, as
+ * it is rejected by the reading step.
+ * The {@link RasterPool}s of the threads are limited as with [-M], see {@link HeapBudget#limitPools(int)}.
+ */
+class BinarizationServer {
+    static final String PATH = "/binarize";
+
+    /**
+     * The number of requests waiting for a binarization thread when none is given.
+     */
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * The largest request body accepted, larger ones get 413 (Payload Too Large).
+     */
+    private static final long MAX_BODY_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * The threads beyond the admitted requests, only answering 503 to the shed ones.
+     */
+    private static final int SHEDDING_THREADS = 8;
+
+    /**
+     * The body of a shed request is read and dropped if it is at most this large, so that its connection can be kept
+     * alive. A larger body is left unread and its connection is closed.
+     */
+    private static final long MAX_SHED_BODY_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * The first bytes of a body, read before it is admitted to find the size of its image.
+     */
+    private static final int PROBE_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Limits the number of requests admitted, binarized or waiting for it.
+     */
+    private final Semaphore admission;
+
+    /**
+     * Limits the number of requests being binarized at the same time.
+     */
+    private final Semaphore binarizationPermits;
+
+    /**
+     * Limits the memory of the requests admitted, see {@link #admit(long, boolean)}.
+     */
+    private final HeapBudget budget;
+
+    /**
+     * Lets a single large request at a time use the reserve of the {@link #budget}, see
+     * {@link HeapBudget#admitLarge(long)}.
+     */
+    private final Semaphore largeLane = new Semaphore(1, true);
+
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+
+    /**
+     * @param port          the port to listen to, 0 to pick a free one
+     * @param binarizers    the maximum number of requests binarized at the same time, usually the number of processors
+     * @param queueCapacity the maximum number of requests waiting to be binarized
+     * @param heapBudget    the heap memory that the requests admitted may use, in bytes
+     * @throws IOException              if the server cannot listen to the port
+     * @throws IllegalArgumentException if binarizers is lesser than 1 or queueCapacity is negative
+     */
+    BinarizationServer(int port, int binarizers, int queueCapacity, long heapBudget) throws IOException {
+        if (binarizers < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("The number of binarizers must be at least 1 and the queue cannot be negative!");
+        }
+        this.admission = new Semaphore(binarizers + queueCapacity);
+        this.binarizationPermits = new Semaphore(binarizers);
+
+        int threads = binarizers + queueCapacity + SHEDDING_THREADS;
+        this.budget = new HeapBudget(heapBudget, binarizers);
+        budget.limitPools(threads);
+        // when every thread is busy, the server thread answers the request itself, which can only be a 503 then
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * @return the address the server listens to
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    void start() {
+        server.start();
+    }
+
+    /**
+     * Method that stops accepting requests and returns after the ones in progress are answered, for at most a second.
+     */
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method that prints how many requests were shed and failed.
+     */
+    void printStatistics() {
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Server] %d requests were shed and %d requests failed.",
+                shedRequests.sum(), failedRequests.sum());
+        budget.printStatistics();
+    }
+
+    long getShedRequests() {
+        return shedRequests.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!admission.tryAcquire()) {
+                shedRequests.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                if (!skipBody(exchange)) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                }
+                respond(exchange, 503, "Too many requests, try again later.");
+                return;
+            }
+            long startInNanos = System.nanoTime();
+            try {
+                process(exchange);
+            } finally {
+                admission.release();
+                RunMetrics.REQUEST.record(System.nanoTime() - startInNanos);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client went away, or the request was broken in an unexpected way
+            failedRequests.increment();
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Method that answers an admitted request: waits until the memory estimated for it is available, reads its body,
+     * binarizes it while holding a binarization permit and writes the binary image as the body of the response.
+     */
+    private void process(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "Only POST is allowed, with a BMP file as the body.");
+            return;
+        }
+        RequestSettings settings = RequestSettings.parse(exchange.getRequestURI());
+        if (settings == null) {
+            respond(exchange, 400, "The parameters must be threshold=<0-255>|auto and force=true|false.");
+            return;
+        }
+        long length = contentLength(exchange);
+        if (length > MAX_BODY_SIZE) {
+            respond(exchange, 413, "The body cannot be larger than " + MAX_BODY_SIZE + " bytes.");
+            return;
+        }
+        InputStream input = exchange.getRequestBody();
+        byte[] start = new byte[(int) (length >= 0 ? Math.min(length, PROBE_SIZE) : PROBE_SIZE)];
+        int read = FileTraversal.readFully(input, start);
+        long maxLength = length >= 0 ? length : read < start.length ? read : headerLength(start, read);
+
+        long bytes = estimatePeakBytes(start, read, maxLength);
+        if (length < 0) {
+            // a body of unknown length is read into a buffer of the largest length, then copied
+            bytes += maxLength;
+        }
+        boolean large = budget.isLarge(bytes);
+        int permits;
+        try {
+            permits = admit(bytes, large);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "The server is stopping.");
+            return;
+        }
+        try {
+            byte[] body;
+            try (InputStream remaining = input) {
+                body = readBody(remaining, start, read, length, maxLength);
+            }
+            if (body == null) {
+                respond(exchange, 413, "The body cannot be larger than " + maxLength + " bytes.");
+                return;
+            }
+            binarize(exchange, settings, body);
+        } finally {
+            budget.release(permits);
+            if (large) {
+                largeLane.release();
+            }
+        }
+    }
+
+    /**
+     * Method that waits until the shared part of the {@link #budget} has the given bytes available, or for a large
+     * request until the large lane is free and the part of the bytes beyond its reserve is available, then takes them.
+     *
+     * @return the permits to give back to the budget when the request is answered, and the large lane if it is large
+     * @throws InterruptedException if the server is stopped while waiting
+     */
+    private int admit(long bytes, boolean large) throws InterruptedException {
+        if (!large) {
+            return budget.admit(bytes);
+        }
+        largeLane.acquire();
+        try {
+            return budget.admitLarge(bytes);
+        } catch (InterruptedException e) {
+            largeLane.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Method that binarizes the body of a request and writes the binary image as the body of the response.
+     */
+    private void binarize(HttpExchange exchange, RequestSettings settings, byte[] body) throws IOException {
+        RunMetrics.BYTES_READ.add(body.length);
+
+        ImageFileReading read = new ImageFileReading(body);
+        RasterPool pool = RasterPool.current();
+        executeAndRecord(read, RunMetrics.READ);
+        if (!read.isFinishedSuccessfully()) {
+            respond(exchange, 400, "The body is not a 24bit BMP file.");
+            return;
+        }
+
+        BufferedImage inputImage = null;
+        ImageBinarization binarization;
+        if (read.getPixels() != null) {
+            binarization = new ImageBinarization(read.getHeader(), read.getPixels());
+        } else {
+            inputImage = read.getImage();
+            binarization = new ImageBinarization(inputImage);
+        }
+        settings.apply(binarization);
+        try {
+            binarizationPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.release(inputImage);
+            respond(exchange, 503, "The server is stopping.");
+            return;
+        }
+        try {
+            executeAndRecord(binarization, RunMetrics.BINARIZATION);
+        } finally {
+            binarizationPermits.release();
+            pool.release(inputImage);
+        }
+        if (!binarization.isFinishedSuccessfully()) {
+            respond(exchange, 422, "The image is not grayscale, use force=true to convert it.");
+            return;
+        }
+
+        BufferedImage binaryImage = binarization.getImage();
+        RunMetrics.PIXELS.add((long) binaryImage.getWidth() * binaryImage.getHeight());
+        long size = ImageFileWriting.binaryFileSize(binaryImage);
+        exchange.getResponseHeaders().set("Content-Type", "image/bmp");
+        // a response without a known length is chunked, which still keeps the connection alive
+        exchange.sendResponseHeaders(200, size < 0 ? 0 : size);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            ImageFileWriting write = new ImageFileWriting(binaryImage, responseBody);
+            executeAndRecord(write, RunMetrics.WRITE);
+            if (!write.isFinishedSuccessfully()) {
+                throw new IOException("The binary image could not be sent!");
+            }
+        } finally {
+            pool.release(binaryImage);
+        }
+        if (size > 0) {
+            RunMetrics.BYTES_WRITTEN.add(size);
+        }
+        RunMetrics.FINISHED_CYCLES.increment();
+    }
+
+    /**
+     * Method that reads and drops the body of a shed request, if it is not larger than {@link #MAX_SHED_BODY_SIZE}.
+     *
+     * @return true if the whole body was read
+     */
+    private static boolean skipBody(HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (contentLength == null || Long.parseLong(contentLength.trim()) > MAX_SHED_BODY_SIZE) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        try (InputStream input = exchange.getRequestBody()) {
+            byte[] buffer = new byte[16 * 1024];
+            while (input.read(buffer) >= 0) {
+                // dropped
+            }
+        }
+        return true;
+    }
+
+    private static void executeAndRecord(ExecutionStep step, LatencyHistogram histogram) {
+        step.executeAndMeasure();
+        if (step.isFinishedSuccessfully()) {
+            histogram.record(step.getExecutionDurationInNanos());
+        }
+    }
+
+    /**
+     * @return the Content-Length of the request, or -1 if it is not given
+     */
+    private static long contentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // read until the end instead
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start the first bytes of a body whose length is not given
+     * @param read  how many of them are known
+     * @return the size of the file in the header of a BMP body, if it is set, or {@link #MAX_BODY_SIZE}
+     */
+    private static long headerLength(byte[] start, int read) {
+        if (read >= 6 && start[0] == 'B' && start[1] == 'M') {
+            long size = ByteBuffer.wrap(start, 2, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+            if (size >= read && size <= MAX_BODY_SIZE) {
+                return size;
+            }
+        }
+        return MAX_BODY_SIZE;
+    }
+
+    /**
+     * Method that estimates the heap memory needed by a request at its peak: its body, and the images of its cycle,
+     * found in its first bytes by {@link FileTraversal#estimate(File, byte[], int, long, boolean)}. A body of any other
+     * format only needs itself, as it is rejected by the reading step.
+     *
+     * @param start     the first bytes of the body
+     * @param read      how many of them are known
+     * @param maxLength the length of the body, at most
+     * @return the estimate, in bytes
+     */
+    private static long estimatePeakBytes(byte[] start, int read, long maxLength) {
+        FileTraversal.SizedFile estimate = FileTraversal.estimate(null, start, read, maxLength, false);
+        return estimate != null ? maxLength + estimate.getHeapBytes() : maxLength;
+    }
+
+    /**
+     * @param input     the rest of the body
+     * @param start     the first bytes of the body, already read
+     * @param read      how many of them are known
+     * @param length    the Content-Length of the request, or -1 if it is not given
+     * @param maxLength the length of the body, at most, when it is not given
+     * @return the whole body of the request, or null if it is longer than maxLength
+     */
+    private static byte[] readBody(InputStream input, byte[] start, int read, long length, long maxLength)
+            throws IOException {
+        if (length >= 0) {
+            byte[] body = Arrays.copyOf(start, (int) length);
+            while (read < body.length) {
+                int count = input.read(body, read, body.length - read);
+                if (count < 0) {
+                    throw new IOException("The body ended after " + read + " of " + length + " bytes!");
+                }
+                read += count;
+            }
+            return body;
+        }
+        // one byte more than allowed tells a body that is too long
+        byte[] body = Arrays.copyOf(start, (int) maxLength + 1);
+        int count;
+        while (read < body.length && (count = input.read(body, read, body.length - read)) >= 0) {
+            read += count;
+        }
+        return read > maxLength ? null : Arrays.copyOf(body, read);
+    }
+
+    private void respond(HttpExchange exchange, int status, String message) throws IOException {
+        if (status >= 400 && status != 503) {
+            failedRequests.increment();
+            EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Server] %s %s: %d %s", exchange.getRequestMethod(),
+                    exchange.getRequestURI(), status, message);
+        }
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * The threshold and force flag given as parameters of a request, overriding the ones of the command line.
+     */
+    private static final class RequestSettings {
+        private Integer threshold;
+        private boolean autoThreshold;
+        private Boolean force;
+
+        /**
+         * @param uri the URI of the request
+         * @return the settings, or null if a parameter is unknown or invalid
+         */
+        static RequestSettings parse(URI uri) {
+            RequestSettings settings = new RequestSettings();
+            String query = uri.getRawQuery();
+            if (query == null || query.isEmpty()) {
+                return settings;
+            }
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                String value = equals < 0 ? "" : parameter.substring(equals + 1).toLowerCase(Locale.ROOT);
+                switch (name) {
+                    case "threshold":
+                        if (value.equals("auto")) {
+                            settings.autoThreshold = true;
+                        } else {
+                            try {
+                                settings.threshold = Integer.parseInt(value);
+                            } catch (NumberFormatException e) {
+                                return null;
+                            }
+                            if (settings.threshold < 0 || settings.threshold > 255) {
+                                return null;
+                            }
+                        }
+                        break;
+                    case "force":
+                        if (!value.equals("true") && !value.equals("false")) {
+                            return null;
+                        }
+                        settings.force = Boolean.valueOf(value);
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            return settings;
+        }
+
+        void apply(ImageBinarization binarization) {
+            if (autoThreshold) {
+                binarization.setAutoThreshold();
+            } else if (threshold != null) {
+                binarization.setThreshold(threshold);
+            } else if (ImageBinarization.isSweep()) {
+                // a single image is sent back, the first threshold of the sweep is used
+                binarization.setThreshold(ImageBinarization.THRESHOLDS[0]);
+            }
+            if (force != null) {
+                binarization.setForce(force);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.cpirvu;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class holds the fields of a BMP file header (BITMAPFILEHEADER followed by BITMAPINFOHEADER) that matter when
+ * reading or writing the BMP files handled by this application.
+ * All the values in a BMP header are little endian.
+ */
+final class BmpHeader implements RasterHeader {
+    /**
+     * Size of the BITMAPFILEHEADER, the one starting with the "BM" signature.
+     */
+    static final int FILE_HEADER_SIZE = 14;
+
+    /**
+     * Size of the BITMAPINFOHEADER. Newer headers (V4, V5) are longer, but start with the same fields.
+     */
+    static final int INFO_HEADER_SIZE = 40;
+
+    /**
+     * The number of bytes needed to decode a header with {@link #read(ByteBuffer)}.
+     */
+    static final int SIZE = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+
+    /**
+     * Size of the header of a 1bit BMP, including the palette of two colors (black and white).
+     */
+    static final int BINARY_HEADER_SIZE = SIZE + 2 * 4;
+
+    /**
+     * The BI_RGB compression, meaning the pixels are not compressed.
+     */
+    private static final int BI_RGB = 0;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * Most BMP files store the rows from the bottom of the image to its top. A negative height in the header marks
+     * the rows being stored from top to bottom.
+     */
+    private final boolean topDown;
+
+    private final int bitCount;
+
+    /**
+     * The offset in the file of the first pixel row.
+     */
+    private final int pixelOffset;
+
+    /**
+     * The gray level of each index of the palette of an 8bit BMP file, or null for a 24bit one.
+     */
+    private final byte[] grayLevels;
+
+    private BmpHeader(int width, int height, boolean topDown, int bitCount, int pixelOffset, byte[] grayLevels) {
+        this.width = width;
+        this.height = height;
+        this.topDown = topDown;
+        this.bitCount = bitCount;
+        this.pixelOffset = pixelOffset;
+        this.grayLevels = grayLevels;
+    }
+
+    /**
+     * @param buffer the buffer containing the first bytes of a file, starting at its position
+     * @return true if they start with the signature of a BMP file, BM, whatever the rest of its header
+     */
+    static boolean hasSignature(ByteBuffer buffer) {
+        int start = buffer.position();
+        return buffer.remaining() >= 2 && buffer.get(start) == 'B' && buffer.get(start + 1) == 'M';
+    }
+
+    /**
+     * Method that decodes the header of an uncompressed 24bit BMP file, or of an uncompressed 8bit BMP file whose
+     * palette only holds gray colors.
+     *
+     * @param buffer the buffer containing at least the first {@link #SIZE} bytes of the file, starting at its position,
+     *               and the palette for an 8bit BMP file
+     * @return the decoded header, or null if the bytes are not the header of such a BMP file
+     */
+    static BmpHeader read(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE || !hasSignature(buffer)) {
+            return null;
+        }
+        ByteBuffer header = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int pixelOffset = header.getInt(10);
+        int infoHeaderSize = header.getInt(14);
+        int width = header.getInt(18);
+        int height = header.getInt(22);
+        int planes = header.getShort(26);
+        int bitCount = header.getShort(28);
+        int compression = header.getInt(30);
+
+        if (infoHeaderSize < INFO_HEADER_SIZE || planes != 1 || (bitCount != 24 && bitCount != 8) || compression != BI_RGB
+                || width <= 0 || height == 0 || height == Integer.MIN_VALUE
+                || pixelOffset < FILE_HEADER_SIZE + infoHeaderSize) {
+            return null;
+        }
+        long rowStride = (((long) width * bitCount + 31) >> 5) << 2;
+        if (rowStride * Math.abs(height) > Integer.MAX_VALUE - pixelOffset) {
+            return null; // the pixels must be addressable with an int
+        }
+        byte[] grayLevels = null;
+        if (bitCount == 8) {
+            grayLevels = readGrayPalette(header, FILE_HEADER_SIZE + infoHeaderSize, pixelOffset);
+            if (grayLevels == null) {
+                return null;
+            }
+        }
+        return new BmpHeader(width, Math.abs(height), height < 0, bitCount, pixelOffset, grayLevels);
+    }
+
+    /**
+     * @param header         the bytes of the file, starting at its first one
+     * @param paletteOffset  the offset of the palette, right after the info header
+     * @param pixelOffset    the offset of the first pixel row, which the palette cannot go past
+     * @return the gray level of each index of the palette, the indexes missing from the palette being black, or null if
+     * the palette is incomplete or holds a color that is not gray
+     */
+    private static byte[] readGrayPalette(ByteBuffer header, int paletteOffset, int pixelOffset) {
+        int colorsUsed = header.getInt(46);
+        int colors = colorsUsed == 0 ? 256 : colorsUsed;
+        if (colors < 0 || colors > 256 || paletteOffset + colors * 4 > Math.min(pixelOffset, header.limit())) {
+            return null;
+        }
+        byte[] grayLevels = new byte[256];
+        for (int i = 0; i < colors; i++) {
+            int entry = paletteOffset + i * 4; // blue, green, red, reserved
+            byte blue = header.get(entry);
+            if (blue != header.get(entry + 1) || blue != header.get(entry + 2)) {
+                return null;
+            }
+            grayLevels[i] = blue;
+        }
+        return grayLevels;
+    }
+
+    /**
+     * Method that creates the header of a 1bit BMP file, followed by its palette (index 0 is black, index 1 is white).
+     * The fields have the same values as the ones written by {@link javax.imageio.ImageIO} for a
+     * {@link java.awt.image.BufferedImage#TYPE_BYTE_BINARY} image.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image, the rows being stored from the bottom of the image to its top
+     * @return a buffer of {@link #BINARY_HEADER_SIZE} bytes, ready to be written
+     */
+    static ByteBuffer binaryHeader(int width, int height) {
+        int imageSize = binaryRowStride(width) * height;
+        ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'B').put((byte) 'M');
+        header.putInt(BINARY_HEADER_SIZE + imageSize); // file size
+        header.putInt(0); // reserved
+        header.putInt(BINARY_HEADER_SIZE); // pixel offset
+        header.putInt(INFO_HEADER_SIZE);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1); // planes
+        header.putShort((short) 1); // bit count
+        header.putInt(BI_RGB);
+        header.putInt(imageSize);
+        header.putInt(0); // horizontal resolution
+        header.putInt(0); // vertical resolution
+        header.putInt(0); // colors used, 0 meaning all the 2 colors
+        header.putInt(2); // important colors
+        header.putInt(0xff000000); // black, stored as blue, green, red, reserved
+        header.putInt(0xffffffff); // white
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @param width the width of the image
+     * @return the number of bytes of a row of a 1bit BMP, including the padding to a multiple of 4 bytes
+     */
+    static int binaryRowStride(int width) {
+        return (((width + 7) >> 3) + 3) & ~3;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isTopDown() {
+        return topDown;
+    }
+
+    @Override
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    @Override
+    public int getPixelOffset() {
+        return pixelOffset;
+    }
+
+    /**
+     * @return the number of bytes of a pixel row, including the padding to a multiple of 4 bytes
+     */
+    @Override
+    public int getRowStride() {
+        return (int) ((((long) width * bitCount + 31) >> 5) << 2);
+    }
+
+    @Override
+    public byte[] getGrayLevels() {
+        return grayLevels;
+    }
+}
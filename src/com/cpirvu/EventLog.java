@@ -0,0 +1,246 @@
+package com.cpirvu;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The console output of the application, shared by all the threads without any lock.
+ * <p>
+ * An event is published by copying its fields into the next slot of a ring buffer, claimed with a single atomic
+ * increment. A single background thread drains the ring buffer in order, formats the events and prints them to
+ * {@link System#out} in batches, so the threads processing the images never wait for the console or for each other.
+ * Only if the ring buffer is full (the console being much slower than the processing) a thread waits for a free slot.
+ * <p>
+ * Every event has a {@link Verbosity}, and it is dropped right away, without being published, if it is more detailed
+ * than {@link #VERBOSITY}.
+ */
+final class EventLog {
+    /**
+     * The levels of detail of the output, from the least detailed.
+     */
+    enum Verbosity {
+        /**
+         * Only the failures and the summaries at the end of a run.
+         */
+        QUIET,
+        /**
+         * Also every cycle that finished.
+         */
+        CYCLES,
+        /**
+         * Also every cycle that started and every step of a cycle, the default.
+         */
+        STEPS
+    }
+
+    static Verbosity VERBOSITY = Verbosity.STEPS;
+
+    /**
+     * The number of slots of the ring buffer, a power of 2.
+     */
+    private static final int CAPACITY = 1 << 12;
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * How long a thread waits before checking again for a free slot or for the output to be printed. The background
+     * thread itself is parked until an event is published, see {@link #idle}.
+     */
+    private static final long WAIT_IN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * The printed output is written to {@link System#out} at least once it gets this long.
+     */
+    private static final int BATCH_SIZE = 8 * 1024;
+
+    private static final Event[] EVENTS = new Event[CAPACITY];
+
+    /**
+     * For each slot, the sequence of the event published in it, plus one, so that 0 means no event was published yet.
+     */
+    private static final AtomicLongArray PUBLISHED = new AtomicLongArray(CAPACITY);
+
+    /**
+     * The sequence of the next event to be published.
+     */
+    private static final AtomicLong CLAIMED = new AtomicLong();
+
+    /**
+     * The sequence of the next event to be taken from the ring buffer, only written by the background thread.
+     */
+    private static volatile long consumed;
+
+    /**
+     * All the events with a lesser sequence are printed, only written by the background thread.
+     */
+    private static volatile long printed;
+
+    /**
+     * True while the background thread is parked, or about to be, because the ring buffer is empty: the thread
+     * publishing the next event then unparks it.
+     */
+    private static volatile boolean idle;
+
+    private static final Thread DRAINER = new Thread(EventLog::drain, "event-log");
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            EVENTS[i] = new Event();
+        }
+        DRAINER.setDaemon(true);
+        DRAINER.start();
+        // the output of a run ending in System.exit() is not lost either
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "event-log-flush"));
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * @param verbosity the verbosity of an event
+     * @return true if the events with the given verbosity are printed
+     */
+    static boolean isEnabled(Verbosity verbosity) {
+        return verbosity.compareTo(VERBOSITY) <= 0;
+    }
+
+    /**
+     * Method that publishes an event of the given cycle, whose message is the given format with its %d tag replaced by
+     * the given value. The formatting itself is done by the background thread.
+     *
+     * @param verbosity the verbosity of the event
+     * @param cycle     the number of the {@link ExecutionCycle}, printed in front of the message, or -1 for none
+     * @param format    the format of the message, containing a single %d tag
+     * @param value     the value replacing the %d tag
+     */
+    static void log(Verbosity verbosity, int cycle, String format, long value) {
+        if (isEnabled(verbosity)) {
+            publish(cycle, format, true, value, null);
+        }
+    }
+
+    /**
+     * Method that publishes an event of the given cycle, with a message that is printed as it is.
+     *
+     * @param verbosity the verbosity of the event
+     * @param cycle     the number of the {@link ExecutionCycle}, printed in front of the message, or -1 for none
+     * @param message   the message
+     */
+    static void log(Verbosity verbosity, int cycle, String message) {
+        if (isEnabled(verbosity)) {
+            publish(cycle, message, false, 0, null);
+        }
+    }
+
+    /**
+     * Method that publishes an event that is not part of a cycle, formatted with {@link String#format(String, Object...)}.
+     *
+     * @param verbosity the verbosity of the event
+     * @param format    the format of the message
+     * @param arguments the arguments of the format
+     */
+    static void logFormat(Verbosity verbosity, String format, Object... arguments) {
+        if (isEnabled(verbosity)) {
+            publish(-1, format, false, 0, arguments);
+        }
+    }
+
+    /**
+     * Method that waits until every event published before it was called is printed.
+     */
+    static void flush() {
+        long target = CLAIMED.get();
+        while (printed < target) {
+            LockSupport.parkNanos(WAIT_IN_NANOS);
+        }
+    }
+
+    private static void publish(int cycle, String format, boolean hasValue, long value, Object[] arguments) {
+        long sequence = CLAIMED.getAndIncrement();
+        while (sequence - consumed >= CAPACITY) {
+            // the ring buffer is full, wait for the background thread to take the oldest event
+            LockSupport.parkNanos(WAIT_IN_NANOS);
+        }
+        int slot = (int) sequence & MASK;
+        Event event = EVENTS[slot];
+        event.cycle = cycle;
+        event.format = format;
+        event.hasValue = hasValue;
+        event.value = value;
+        event.arguments = arguments;
+        // the fields above are visible to the background thread before it sees the sequence, and the sequence is
+        // visible before idle is read, so that the background thread cannot park without seeing it
+        PUBLISHED.set(slot, sequence + 1);
+        if (idle) {
+            LockSupport.unpark(DRAINER);
+        }
+    }
+
+    /**
+     * The loop of the background thread, taking the events in the order of their sequence. The output is printed
+     * whenever the next event is not published yet, or the output is too long.
+     */
+    private static void drain() {
+        StringBuilder output = new StringBuilder(BATCH_SIZE * 2);
+        while (true) {
+            long sequence = consumed;
+            int slot = (int) sequence & MASK;
+            if (PUBLISHED.get(slot) == sequence + 1) {
+                Event event = EVENTS[slot];
+                format(event, output);
+                event.format = null;
+                event.arguments = null;
+                consumed = sequence + 1;
+                if (output.length() < BATCH_SIZE) {
+                    continue;
+                }
+            }
+            if (output.length() > 0) {
+                System.out.print(output);
+                System.out.flush();
+                output.setLength(0);
+            }
+            printed = consumed;
+            if (consumed == sequence) {
+                // the ring buffer is empty: park until the next event is published, which is checked once more after
+                // idle is set, as it may have been published before
+                idle = true;
+                if (PUBLISHED.get(slot) != sequence + 1) {
+                    LockSupport.park();
+                }
+                idle = false;
+            }
+        }
+    }
+
+    private static void format(Event event, StringBuilder output) {
+        if (event.cycle >= 0) {
+            output.append("[Execution Cycle: ").append(event.cycle).append("] ");
+        }
+        try {
+            if (event.arguments != null) {
+                output.append(String.format(event.format, event.arguments));
+            } else if (event.hasValue) {
+                output.append(String.format(event.format, event.value));
+            } else {
+                output.append(event.format);
+            }
+        } catch (RuntimeException e) {
+            // a broken format must not stop the output of the other events
+            output.append(event.format);
+        }
+        output.append(System.lineSeparator());
+    }
+
+    /**
+     * A slot of the ring buffer, reused for every CAPACITY-th event.
+     */
+    private static final class Event {
+        private int cycle;
+        private String format;
+        private boolean hasValue;
+        private long value;
+        private Object[] arguments;
+    }
+}
@@ -1,6 +1,10 @@
 package com.cpirvu;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is a single execution cycle that completely processes a single file.
@@ -8,15 +12,21 @@ import java.io.File;
  */
 class ExecutionCycle implements PrintableExecution, Runnable {
     /**
-     * Single shared lock of ExecutionCycle calls.
-     * This is used so that the output (calls to {@link System#out} print()) is synchronized and human intelligible.
+     * This will count all the cycles in the program. The cycles of a directory or of an archive are created by the
+     * threads running them, so every one takes its number atomically.
      */
-    private static final Object LOCK = new Object();
+    private static final AtomicInteger COUNT = new AtomicInteger();
 
     /**
-     * This will count all the cycles in the program.
+     * If true, the 24bit BMP files are binarized with {@link ImageFileStreaming}, without decoding the whole image in
+     * memory. Any other file is still processed with the regular steps.
      */
-    private static int COUNT = 0;
+    static boolean STREAMING;
+
+    /**
+     * If not null (the incremental mode), every file processed successfully is recorded in this manifest.
+     */
+    static Manifest MANIFEST;
 
     /**
      * This states the number of the current cycle.
@@ -33,6 +43,11 @@ class ExecutionCycle implements PrintableExecution, Runnable {
      */
     private long executionEndingTimeInMillis;
 
+    /**
+     * The start of this execution cycle, as given by {@link System#nanoTime()}, for {@link RunMetrics#CYCLE}.
+     */
+    private long executionStartingTimeInNanos;
+
     /**
      * Boolean stating whether this cycle is running or not.
      */
@@ -49,19 +64,73 @@ class ExecutionCycle implements PrintableExecution, Runnable {
 
     private long fileWriteDurationInMillis;
 
+    private long fileStreamingDurationInMillis;
+
     private String filePath;
     private File file;
 
+    /**
+     * The path of the entry of an archive processed in memory by this cycle, see {@link ArchiveBatch}, or null if the
+     * cycle processes a file.
+     */
+    private String entryName;
+
+    /**
+     * The content of the entry, dropped once read.
+     */
+    private byte[] entryBytes;
+
+    /**
+     * The binary images of the entry, encoded as files, set once the cycle finished successfully.
+     */
+    private byte[][] outputBytes;
+
+    /**
+     * The reading step, kept between {@link #read()} and {@link #binarize()}.
+     */
+    private ImageFileReading read;
+
+    /**
+     * The binarization step, kept between {@link #binarize()} and {@link #write()}.
+     */
+    private ImageBinarization imageProcessing;
+
+    /**
+     * The {@link RasterPool} of the thread that read the image, receiving it back after {@link #binarize()}.
+     */
+    private RasterPool readPool;
+
+    /**
+     * The {@link RasterPool} of the thread that binarized the image, receiving it back after {@link #write()}.
+     */
+    private RasterPool binarizationPool;
+
+    /**
+     * The state of the input file when this cycle read it, recorded in the {@link #MANIFEST} when it finishes.
+     */
+    private Manifest.Snapshot manifestSnapshot;
+
     ExecutionCycle(String filePath) {
-        currentCycle = COUNT++;
+        currentCycle = COUNT.getAndIncrement();
         this.filePath = filePath;
     }
 
     ExecutionCycle(File file) {
-        currentCycle = COUNT++;
+        currentCycle = COUNT.getAndIncrement();
         this.file = file;
     }
 
+    /**
+     * @param entryName  the path of an entry of an archive
+     * @param entryBytes the content of the entry, its binary images being kept in memory too, see
+     *                   {@link #getOutputBytes()}
+     */
+    ExecutionCycle(String entryName, byte[] entryBytes) {
+        currentCycle = COUNT.getAndIncrement();
+        this.entryName = entryName;
+        this.entryBytes = entryBytes;
+    }
+
     public long getExecutionStartingTimeInMillis() {
         return executionStartingTimeInMillis;
     }
@@ -102,6 +171,14 @@ class ExecutionCycle implements PrintableExecution, Runnable {
         this.fileWriteDurationInMillis = fileWriteDurationInMillis;
     }
 
+    public long getFileStreamingDurationInMillis() {
+        return fileStreamingDurationInMillis;
+    }
+
+    public void setFileStreamingDurationInMillis(long fileStreamingDurationInMillis) {
+        this.fileStreamingDurationInMillis = fileStreamingDurationInMillis;
+    }
+
     public String getFilePath() {
         return filePath;
     }
@@ -110,6 +187,26 @@ class ExecutionCycle implements PrintableExecution, Runnable {
         this.filePath = filePath;
     }
 
+    /**
+     * @return the paths of the entries holding the binary images of the entry processed by this cycle, in the order of
+     * {@link #getOutputBytes()}, see {@link #getOutputPaths(String)}
+     * @throws IllegalStateException if this cycle processes a file
+     */
+    String[] getOutputNames() {
+        if (entryName == null) {
+            throw new IllegalStateException("This cycle processes a file!");
+        }
+        return getOutputPaths(entryName);
+    }
+
+    /**
+     * @return the binary images of the entry processed by this cycle, encoded as files, or null if the cycle failed or
+     * did not finish yet
+     */
+    byte[][] getOutputBytes() {
+        return outputBytes;
+    }
+
     /**
      * Method that prints info about the current execution cycle.
      * @throws IllegalStateException if this cycle never been called
@@ -119,8 +216,8 @@ class ExecutionCycle implements PrintableExecution, Runnable {
         if (neverCalled) {
             throw new IllegalStateException("This cycle has never run!");
         }
-        System.out.printf("[Execution Cycle: " + currentCycle + "] Finished. This execution cycle took %d ms.", executionEndingTimeInMillis - executionStartingTimeInMillis);
-        System.out.println();
+        EventLog.log(EventLog.Verbosity.CYCLES, currentCycle, "Finished. This execution cycle took %d ms.",
+                executionEndingTimeInMillis - executionStartingTimeInMillis);
     }
 
     /**
@@ -159,98 +256,290 @@ class ExecutionCycle implements PrintableExecution, Runnable {
      * - {@link ImageFileWriting#execute()}
      * If any of them fail to complete successfully, then an error message will be printed that will point at the exact
      * failed step.
+     * If {@link #STREAMING} is true, {@link ImageFileStreaming#execute()} is tried first, the steps above being used
+     * only if the file cannot be streamed. A threshold sweep is never streamed, as the streaming step writes a single
+     * binary image.
+     * <p>
+     * For a threshold sweep (see {@link ImageBinarization#isSweep()}), the image is read and binarized once and
+     * {@link ImageFileWriting#execute()} is called for each of the binary images, see {@link #getOutputFiles(File)}.
+     * <p>
+     * The steps can also be executed one at a time, by different threads, through {@link #read()}, {@link #binarize()}
+     * and {@link #write()}. This is what {@link ExecutionPipeline} does.
+     * <p>
+     * A cycle processing an entry of an archive reads it from memory and encodes its binary images in memory, as the
+     * files they would be saved as, see {@link #getOutputBytes()}. Such a cycle is never streamed.
      */
     @Override
     public void run() {
-        printExecutionCycle("Started.");
+        if (read() && binarize()) {
+            write();
+        }
+    }
+
+    /**
+     * First part of this cycle, starting it and reading the image file (or streaming it, see {@link #STREAMING}).
+     *
+     * @return true if the cycle must continue with {@link #binarize()}, false if it failed or it is already finished
+     */
+    boolean read() {
+        EventLog.log(EventLog.Verbosity.STEPS, currentCycle, "Started.");
         running = true;
         this.executionStartingTimeInMillis = System.currentTimeMillis();
+        this.executionStartingTimeInNanos = System.nanoTime();
 
         if (neverCalled) {
             // the first time we run this cycle, we update the neverCalled variable
             neverCalled = false;
         }
 
-        ImageExecutionStep imageProcessing;
-        ImageFileExecutionStep write;
-        ImageFileExecutionStep read;
-
-        if (file == null) {
-            read = new ImageFileReading(filePath);
-        } else {
-            read = new ImageFileReading(file);
+        File inputFile = entryName == null ? getInputFile() : null;
+        if (MANIFEST != null && inputFile != null) {
+            manifestSnapshot = MANIFEST.snapshot(inputFile);
         }
 
-        this.fileReadDurationInMillis = executeStepAndReturnProcessingTime(read);
-
-        if (read.isFinishedSuccessfully()) {
-            imageProcessing = new ImageBinarization(read.getImage());
-            this.imageBinarizationDurationInMillis = executeStepAndReturnProcessingTime(imageProcessing);
-            if (imageProcessing.isFinishedSuccessfully()) {
-                // path is validated as '.bmp', we're going to remove it now
-                if (file == null) {
-                    write = new ImageFileWriting(
-                            imageProcessing.getImage(),
-                            new File(filePath.substring(0, filePath.length() - 4) + "_BINARIZED.bmp"));
-                } else {
-                    write = new ImageFileWriting(
-                            imageProcessing.getImage(),
-                            new File(file.getPath().substring(0, file.getPath().length() - 4) + "_BINARIZED.bmp"));
+        if (inputFile != null && STREAMING && !ImageBinarization.isSweep()) {
+            if (manifestSnapshot != null) {
+                // the file is read again by the streaming step, so it is hashed in the state it is binarized from
+                manifestSnapshot.hashFile();
+            }
+            ImageFileStreaming streaming = new ImageFileStreaming(inputFile, getOutputFile(inputFile));
+            this.fileStreamingDurationInMillis = executeStepAndReturnProcessingTime(streaming, RunMetrics.STREAMING);
+            if (streaming.isStreamable()) {
+                if (!streaming.isFinishedSuccessfully()) {
+                    printExecutionCycle("Failed in streaming image file!");
+                    RunMetrics.FAILED_CYCLES.increment();
+                    return false;
                 }
+                RunMetrics.BYTES_READ.add(inputFile.length());
+                RunMetrics.PIXELS.add(streaming.getPixelCount());
+                RunMetrics.BYTES_WRITTEN.add(getOutputFile(inputFile).length());
+                finish();
+                return false;
+            }
+        }
 
-                this.fileWriteDurationInMillis = executeStepAndReturnProcessingTime(write);
-                if (!write.isFinishedSuccessfully()) {
-                    printExecutionCycle("Failed in writing image file!");
-                    return;
-                }
+        read = inputFile != null ? new ImageFileReading(inputFile) : new ImageFileReading(entryBytes);
+        readPool = RasterPool.current();
+
+        this.fileReadDurationInMillis = executeStepAndReturnProcessingTime(read, RunMetrics.READ);
+
+        if (!read.isFinishedSuccessfully()) {
+            printExecutionCycle("Failed in reading image file!");
+            RunMetrics.FAILED_CYCLES.increment();
+            read = null;
+            entryBytes = null;
+            return false;
+        }
+        RunMetrics.BYTES_READ.add(inputFile != null ? inputFile.length() : entryBytes.length);
+        if (manifestSnapshot != null && !manifestSnapshot.isHashed()) {
+            // the content of a mapped file is hashed from the bytes about to be binarized, without reading it again
+            ByteBuffer content = read.getContent();
+            if (content != null) {
+                manifestSnapshot.hash(content);
             } else {
-                printExecutionCycle("Failed in processing image!");
-                return;
+                manifestSnapshot.hashFile();
             }
+        }
+        // the pixels of a mapped entry are still referenced by the reading step
+        entryBytes = null;
+        return true;
+    }
+
+    /**
+     * Second part of this cycle, binarizing the image returned by {@link #read()}.
+     *
+     * @return true if the cycle must continue with {@link #write()}, false if it failed
+     */
+    boolean binarize() {
+        BufferedImage inputImage = null;
+        byte[] inputBytes = read.getPooledBytes();
+        if (read.getPixels() != null) {
+            // the file was memory mapped or read, it is binarized without being decoded
+            imageProcessing = new ImageBinarization(read.getHeader(), read.getPixels());
         } else {
-            printExecutionCycle("Failed in reading image file!");
+            inputImage = read.getImage();
+            imageProcessing = new ImageBinarization(inputImage);
+        }
+        read = null;
+        binarizationPool = RasterPool.current();
+
+        this.imageBinarizationDurationInMillis = executeStepAndReturnProcessingTime(imageProcessing, RunMetrics.BINARIZATION);
+
+        // the input image (or the content of a small file) is no longer needed, the next cycle read by the same thread
+        // can reuse it
+        readPool.release(inputImage);
+        readPool.release(inputBytes);
+        readPool = null;
+
+        if (!imageProcessing.isFinishedSuccessfully()) {
+            printExecutionCycle("Failed in processing image!");
+            RunMetrics.FAILED_CYCLES.increment();
+            imageProcessing = null;
+            return false;
+        }
+        BufferedImage binaryImage = imageProcessing.getImage();
+        RunMetrics.PIXELS.add((long) binaryImage.getWidth() * binaryImage.getHeight());
+        return true;
+    }
+
+    /**
+     * Last part of this cycle, writing the images returned by {@link #binarize()} and finishing the cycle.
+     * The cycle fails if any of the images of a threshold sweep could not be written.
+     */
+    void write() {
+        BufferedImage[] binaryImages = imageProcessing.getImages();
+        File[] outputFiles = entryName == null ? getOutputFiles(getInputFile()) : null;
+        byte[][] outputs = entryName == null ? null : new byte[binaryImages.length][];
+        imageProcessing = null;
+
+        boolean written = true;
+        this.fileWriteDurationInMillis = 0;
+        for (int i = 0; i < binaryImages.length; i++) {
+            ImageFileExecutionStep write;
+            ByteArrayOutputStream output = null;
+            if (outputFiles != null) {
+                write = new ImageFileWriting(binaryImages[i], outputFiles[i]);
+            } else {
+                output = new ByteArrayOutputStream((int) Math.max(ImageFileWriting.binaryFileSize(binaryImages[i]), 1024));
+                write = new ImageFileWriting(binaryImages[i], output, isNetpbmName(entryName));
+            }
+            this.fileWriteDurationInMillis += executeStepAndReturnProcessingTime(write, RunMetrics.WRITE);
+            binarizationPool.release(binaryImages[i]);
+            if (!write.isFinishedSuccessfully()) {
+                written = false;
+            } else if (output != null) {
+                outputs[i] = output.toByteArray();
+                RunMetrics.BYTES_WRITTEN.add(outputs[i].length);
+            } else {
+                RunMetrics.BYTES_WRITTEN.add(outputFiles[i].length());
+            }
+        }
+        binarizationPool = null;
+
+        if (!written) {
+            printExecutionCycle("Failed in writing image file!");
+            RunMetrics.FAILED_CYCLES.increment();
             return;
         }
+        outputBytes = outputs;
+        finish();
+    }
 
-        this.executionEndingTimeInMillis = System.currentTimeMillis();
-        running = false;
+    private File getInputFile() {
+        return file == null ? new File(filePath) : file;
+    }
 
-        synchronized (LOCK) {
-            printProcessingTime();
+    /**
+     * @param inputFile the file being processed by this cycle
+     * @return the file where the binary image of the input file is saved: a 1bit BMP file, or a PBM file for the
+     * files of the Netpbm family, see {@link #isNetpbmFile(File)}
+     */
+    static File getOutputFile(File inputFile) {
+        String path = inputFile.getPath();
+        return new File(getOutputBase(path) + FileTraversal.OUTPUT_SUFFIX + getOutputExtension(path));
+    }
+
+    /**
+     * @param inputFile the file being processed by this cycle
+     * @return the files where the binary images of the input file are saved: for a threshold sweep, one per threshold
+     * of {@link ImageBinarization#THRESHOLDS}, as in image_T127_BINARIZED.bmp, otherwise only {@link #getOutputFile(File)}
+     */
+    static File[] getOutputFiles(File inputFile) {
+        String[] paths = getOutputPaths(inputFile.getPath());
+        File[] outputFiles = new File[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            outputFiles[i] = new File(paths[i]);
         }
+        return outputFiles;
     }
 
     /**
-     * Method that helps in printing the current cycle number followed by the given string.
-     *
-     * @param string the string in front of which the current execution cycle number must be printed
+     * @param inputPath the path of a file or of an entry of an archive
+     * @return the paths of its binary images, as in {@link #getOutputFiles(File)}
      */
-    private void printExecutionCycle(String string) {
-        System.out.println("[Execution Cycle: " + currentCycle + "] " + string);
+    static String[] getOutputPaths(String inputPath) {
+        String base = getOutputBase(inputPath);
+        String extension = getOutputExtension(inputPath);
+        if (!ImageBinarization.isSweep()) {
+            return new String[]{base + FileTraversal.OUTPUT_SUFFIX + extension};
+        }
+        int[] thresholds = ImageBinarization.THRESHOLDS;
+        String[] outputPaths = new String[thresholds.length];
+        for (int i = 0; i < thresholds.length; i++) {
+            outputPaths[i] = base + "_T" + thresholds[i] + FileTraversal.OUTPUT_SUFFIX + extension;
+        }
+        return outputPaths;
+    }
+
+    /**
+     * @param inputFile an input file
+     * @return true if it has the extension of a file of the Netpbm family (pbm, pgm or pnm), whose binary images are
+     * saved as PBM files. The format of the input file itself is found from its content, see {@link ImageFileReading}.
+     */
+    static boolean isNetpbmFile(File inputFile) {
+        return isNetpbmName(inputFile.getName());
+    }
+
+    /**
+     * @param name the name or the path of a file or of an entry of an archive
+     * @return true if it has the extension of a file of the Netpbm family, see {@link #isNetpbmFile(File)}
+     */
+    static boolean isNetpbmName(String name) {
+        return name.endsWith(".pbm") || name.endsWith(".pgm") || name.endsWith(".pnm");
+    }
+
+    /**
+     * @return the path without its extension, if it is one of the known ones
+     */
+    private static String getOutputBase(String path) {
+        return path.endsWith(".bmp") || isNetpbmName(path) ? path.substring(0, path.length() - 4) : path;
+    }
+
+    private static String getOutputExtension(String path) {
+        return isNetpbmName(path) ? ".pbm" : ".bmp";
     }
 
     /**
-     * Method that prints the current execution cycle number.
-     * To be used followed by specific events.
+     * Method that marks this cycle as finished successfully and prints its processing time.
      */
-    private void printExecutionCycle() {
-        System.out.print("[Execution Cycle: " + currentCycle + "] ");
+    private void finish() {
+        this.executionEndingTimeInMillis = System.currentTimeMillis();
+        running = false;
+        RunMetrics.CYCLE.record(System.nanoTime() - executionStartingTimeInNanos);
+        RunMetrics.FINISHED_CYCLES.increment();
+        if (manifestSnapshot != null) {
+            MANIFEST.record(manifestSnapshot);
+            manifestSnapshot = null;
+        }
+
+        printProcessingTime();
+    }
+
+    /**
+     * Method that prints the failure of a step of this cycle, preceded by the current cycle number.
+     * The failures are printed even when the {@link EventLog} is quiet.
+     *
+     * @param string the message to print after the current execution cycle number
+     */
+    private void printExecutionCycle(String string) {
+        EventLog.log(EventLog.Verbosity.QUIET, currentCycle, string);
     }
 
     /**
      * This method will execute the given {@link ExecutionStep}, print and return it's processing time.
+     * The duration of a successful step is also recorded in the given histogram.
      *
-     * @param step the {@link ExecutionStep} to execute.
+     * @param step      the {@link ExecutionStep} to execute.
+     * @param histogram the histogram of the durations of this kind of step, see {@link RunMetrics}.
      * @return long containing the processing time of this step.
      */
-    private long executeStepAndReturnProcessingTime(ExecutionStep step) {
-        step.execute();
+    private long executeStepAndReturnProcessingTime(ExecutionStep step, LatencyHistogram histogram) {
+        step.setExecutionCycleNumber(currentCycle);
+        step.executeAndMeasure();
 
         if (step.isFinishedSuccessfully()) {
-            synchronized (LOCK) {
-                printExecutionCycle();
-                step.printProcessingTime();
-            }
+            histogram.record(step.getExecutionDurationInNanos());
+            step.printProcessingTime();
         }
 
         return step.getProcessingTime();
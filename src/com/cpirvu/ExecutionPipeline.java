@@ -0,0 +1,222 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * This class processes many files by splitting their {@link ExecutionCycle}s in three stages: reading, binarization
+ * and writing. Each stage has its own threads, so the threads waiting for the disk do not take the place of the ones
+ * binarizing, and the other way around.
+ * <p>
+ * The stages are connected by bounded queues. When a stage is slower than the one before it, its queue fills up and
+ * the stage before it blocks, so that only a limited number of images is kept in memory at a time. The depth of each
+ * queue is reported at the end, the stage with the fullest queue in front of it being the bottleneck.
+ */
+class ExecutionPipeline {
+    /**
+     * The queue in front of a stage can hold this many cycles for each thread of the stage.
+     */
+    private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+
+    /**
+     * How often an idle stage thread checks whether the stage before it has finished.
+     */
+    private static final long POLL_INTERVAL_IN_MILLIS = 50;
+
+    private final Stage readStage;
+    private final Stage binarizationStage;
+    private final Stage writeStage;
+
+    /**
+     * @param readers     the number of threads reading image files
+     * @param binarizers  the number of threads binarizing images, usually the number of processors
+     * @param writers     the number of threads writing image files
+     * @throws IllegalArgumentException if any of the numbers is lesser than 1
+     */
+    ExecutionPipeline(int readers, int binarizers, int writers) {
+        if (readers < 1 || binarizers < 1 || writers < 1) {
+            throw new IllegalArgumentException("Each stage must have at least one thread!");
+        }
+        writeStage = new Stage("write", writers, cycle -> {
+            cycle.write();
+            return true;
+        }, null);
+        binarizationStage = new Stage("binarization", binarizers, ExecutionCycle::binarize, writeStage);
+        readStage = new Stage("read", readers, ExecutionCycle::read, binarizationStage);
+    }
+
+    /**
+     * Method that processes all the given files and returns after all of them are written.
+     * The files are fed to the read stage by the calling thread, which blocks whenever the read stage is full.
+     *
+     * @param files the image files to process
+     */
+    void process(Iterable<File> files) {
+        readStage.start();
+        binarizationStage.start();
+        writeStage.start();
+
+        try {
+            for (File file : files) {
+                readStage.put(new ExecutionCycle(file));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        readStage.upstreamFinished = true;
+
+        readStage.join();
+        binarizationStage.join();
+        writeStage.join();
+
+        printReport();
+    }
+
+    /**
+     * Method that prints, for each stage, how many cycles it processed and how its queue and threads behaved.
+     */
+    private void printReport() {
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Execution Pipeline] Finished.");
+        for (Stage stage : new Stage[]{readStage, binarizationStage, writeStage}) {
+            stage.printReport();
+        }
+    }
+
+    /**
+     * A stage of the pipeline, having its own threads and the queue of cycles waiting for them.
+     */
+    private static class Stage {
+        private final String name;
+        private final int numberOfThreads;
+        private final BlockingQueue<ExecutionCycle> queue;
+
+        /**
+         * The part of the cycle executed by this stage, returning true if the cycle must go to the {@link #next} stage.
+         */
+        private final Predicate<ExecutionCycle> operation;
+
+        /**
+         * The stage receiving the cycles after this one, or null for the last stage.
+         */
+        private final Stage next;
+
+        /**
+         * Set when no more cycles will be put in the {@link #queue}.
+         */
+        private volatile boolean upstreamFinished;
+
+        private final AtomicInteger runningThreads = new AtomicInteger();
+        private final List<Thread> threads = new ArrayList<>();
+
+        private final AtomicLong processedCycles = new AtomicLong();
+        private final AtomicLong queueDepthSum = new AtomicLong();
+        private final AtomicLong queueDepthSamples = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong waitingForInputInNanos = new AtomicLong();
+        private final AtomicLong blockedByNextStageInNanos = new AtomicLong();
+
+        Stage(String name, int numberOfThreads, Predicate<ExecutionCycle> operation, Stage next) {
+            this.name = name;
+            this.numberOfThreads = numberOfThreads;
+            this.queue = new ArrayBlockingQueue<>(numberOfThreads * QUEUE_CAPACITY_PER_THREAD);
+            this.operation = operation;
+            this.next = next;
+        }
+
+        void start() {
+            runningThreads.set(numberOfThreads);
+            for (int i = 0; i < numberOfThreads; i++) {
+                Thread thread = new Thread(this::work, name + "-" + (i + 1));
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void join() {
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Method that puts a cycle in the queue of this stage, waiting while the queue is full.
+         * The depth of the queue is sampled every time.
+         *
+         * @param cycle the cycle to put
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void put(ExecutionCycle cycle) throws InterruptedException {
+            queue.put(cycle);
+            int depth = queue.size();
+            queueDepthSum.addAndGet(depth);
+            queueDepthSamples.incrementAndGet();
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        /**
+         * The loop of a stage thread: take a cycle, execute this stage on it and hand it to the next stage.
+         * The thread ends once the stage before it finished and the queue is empty. The last thread to end tells the
+         * next stage that it will not receive any more cycles.
+         */
+        private void work() {
+            try {
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    ExecutionCycle cycle = queue.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+                    waitingForInputInNanos.addAndGet(System.nanoTime() - waitStart);
+                    if (cycle == null) {
+                        if (upstreamFinished && queue.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    boolean passOn;
+                    try {
+                        passOn = operation.test(cycle);
+                    } catch (RuntimeException e) {
+                        // a single broken file must not stop the thread, or the stage before it could block forever
+                        e.printStackTrace();
+                        RunMetrics.FAILED_CYCLES.increment();
+                        passOn = false;
+                    }
+                    processedCycles.incrementAndGet();
+                    if (passOn && next != null) {
+                        long blockStart = System.nanoTime();
+                        next.put(cycle);
+                        blockedByNextStageInNanos.addAndGet(System.nanoTime() - blockStart);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (runningThreads.decrementAndGet() == 0 && next != null) {
+                    next.upstreamFinished = true;
+                }
+            }
+        }
+
+        void printReport() {
+            long samples = queueDepthSamples.get();
+            EventLog.logFormat(EventLog.Verbosity.QUIET, "[Execution Pipeline] Stage %s (%d threads): %d cycles, queue depth average %.2f / max %d " +
+                            "of %d, threads waited for input %d ms and were blocked by the next stage %d ms.",
+                    name, numberOfThreads, processedCycles.get(),
+                    samples == 0 ? 0.0 : (double) queueDepthSum.get() / samples, maxQueueDepth.get(),
+                    numberOfThreads * QUEUE_CAPACITY_PER_THREAD,
+                    TimeUnit.NANOSECONDS.toMillis(waitingForInputInNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(blockedByNextStageInNanos.get()));
+        }
+    }
+}
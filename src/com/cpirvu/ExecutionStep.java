@@ -1,5 +1,7 @@
 package com.cpirvu;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * An ExecutionStep is the smallest unit of processing power that can be ran at a specific time.
  */
@@ -15,6 +17,16 @@ abstract class ExecutionStep implements PrintableExecution {
      */
     private boolean finishedSuccessfully;
 
+    /**
+     * How long {@link #execute()} took when called through {@link #executeAndMeasure()}, or -1 if it was not.
+     */
+    private long executionDurationInNanos = -1;
+
+    /**
+     * The number of the {@link ExecutionCycle} executing this step, printed in front of its messages, or -1 for none.
+     */
+    private int executionCycleNumber = -1;
+
     /**
      * The call to this constructor should be using {@link System#currentTimeMillis()} as parameter, at
      * the moment of execution start.
@@ -40,8 +52,12 @@ abstract class ExecutionStep implements PrintableExecution {
         this.finishedSuccessfully = finishedSuccessfully;
     }
 
+    public void setExecutionCycleNumber(int executionCycleNumber) {
+        this.executionCycleNumber = executionCycleNumber;
+    }
+
     /**
-     * Method that prints info about this execution step, following the given format.
+     * Method that prints info about this execution step, following the given format, through the {@link EventLog}.
      *
      * @param format the format containing at least one %d tag, denoting the place in the string where to
      *               place the processing time of this step
@@ -50,8 +66,7 @@ abstract class ExecutionStep implements PrintableExecution {
         if (!format.contains("%d")) {
             throw new IllegalArgumentException("The format must contain at least a %d tag!");
         }
-        System.out.printf(format, System.currentTimeMillis() - executionStartingTimeInMillis);
-        System.out.println();
+        EventLog.log(EventLog.Verbosity.STEPS, executionCycleNumber, format, getProcessingTime());
     }
 
     /**
@@ -59,9 +74,34 @@ abstract class ExecutionStep implements PrintableExecution {
      */
     public abstract void execute();
 
+    /**
+     * Method that calls {@link #execute()} and measures how long it took with {@link System#nanoTime()}.
+     */
+    public final void executeAndMeasure() {
+        long start = System.nanoTime();
+        try {
+            execute();
+        } finally {
+            executionDurationInNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return how long {@link #execute()} took, or -1 if it was not called through {@link #executeAndMeasure()}
+     */
+    public long getExecutionDurationInNanos() {
+        return executionDurationInNanos;
+    }
 
+    /**
+     * @return the duration of {@link #execute()} if it was measured with {@link #executeAndMeasure()}, otherwise the
+     * time passed since this step was created.
+     */
     @Override
     public long getProcessingTime() {
+        if (executionDurationInNanos >= 0) {
+            return TimeUnit.NANOSECONDS.toMillis(executionDurationInNanos);
+        }
         return System.currentTimeMillis() - this.executionStartingTimeInMillis;
     }
 }
@@ -0,0 +1,364 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The image files found in a directory and all its subdirectories, walked lazily: a directory is only opened when its
+ * files are needed, so the processing of a huge tree starts right away and the memory used does not depend on the
+ * number of files.
+ * <p>
+ * The hidden files and directories are skipped, and so are the binary images written by the {@link ExecutionCycle}s,
+ * which could otherwise be found by the walk right after being written. Symbolic links to directories are not followed.
+ */
+class FileTraversal implements Iterable<File> {
+    /**
+     * The suffix of the files written by the {@link ExecutionCycle}s, followed by the extension bmp or pbm.
+     */
+    static final String OUTPUT_SUFFIX = "_BINARIZED";
+
+    private final File directory;
+
+    /**
+     * @param directory the directory to walk
+     */
+    FileTraversal(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Iterator<File> iterator() {
+        return new WalkIterator(directory.toPath());
+    }
+
+    /**
+     * Method that walks the directory only until its first file, closing every directory opened on the way, unlike an
+     * iterator left before the end of the walk.
+     *
+     * @return true if the walk finds at least one file
+     */
+    boolean hasFiles() {
+        WalkIterator walk = new WalkIterator(directory.toPath());
+        try {
+            return walk.hasNext();
+        } finally {
+            walk.closeAll();
+        }
+    }
+
+    /**
+     * Method that returns the given files reordered so that the larger images come first, which shortens the time
+     * until the last one is finished when they are processed in parallel.
+     * <p>
+     * The files are taken lazily into a window of the given size, and the largest file of the window is always the
+     * next one returned. So the order is only exact for the files that fit in the window, but the first file is
+     * returned as soon as the window is full, and the memory used stays bounded.
+     *
+     * @param files      the files to reorder
+     * @param windowSize the number of files compared at a time
+     * @return the reordered files, see {@link #estimateSize(File)}
+     */
+    static Iterable<File> largestFirst(Iterable<File> files, int windowSize) {
+        Iterable<SizedFile> sizedFiles = largestFirstSized(files, windowSize);
+        return () -> new Iterator<File>() {
+            private final Iterator<SizedFile> source = sizedFiles.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public File next() {
+                return source.next().getFile();
+            }
+        };
+    }
+
+    /**
+     * Method that reorders the given files as {@link #largestFirst(Iterable, int)} does, keeping their estimates, so
+     * that their headers are read only once.
+     *
+     * @param files      the files to reorder
+     * @param windowSize the number of files compared at a time
+     * @return the reordered files, with their estimates, see {@link #estimate(File)}
+     */
+    static Iterable<SizedFile> largestFirstSized(Iterable<File> files, int windowSize) {
+        return () -> new Iterator<SizedFile>() {
+            private final Iterator<File> source = files.iterator();
+            private final PriorityQueue<SizedFile> window = new PriorityQueue<>(windowSize,
+                    Comparator.comparingLong((SizedFile file) -> file.size).reversed());
+
+            @Override
+            public boolean hasNext() {
+                while (window.size() < windowSize && source.hasNext()) {
+                    window.add(estimate(source.next()));
+                }
+                return !window.isEmpty();
+            }
+
+            @Override
+            public SizedFile next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return window.poll();
+            }
+        };
+    }
+
+    /**
+     * Method that estimates how much work the given file is, without decoding it. For a BMP, PGM or PBM file, this is
+     * the number of pixels found in its header, otherwise (or if the header cannot be read) it is the length of the file.
+     *
+     * @param file the file
+     * @return the estimated size of the file
+     */
+    static long estimateSize(File file) {
+        return estimate(file).getSize();
+    }
+
+    /**
+     * Method that estimates, from the header of the given file, how much work it is (see {@link #estimateSize(File)})
+     * and how much heap memory its cycle needs at its peak (see
+     * {@link HeapBudget#estimatePeakBytes(int, int, int, long, boolean)}). The uncompressed 24bit BMP files and the PGM
+     * and PBM files are memory mapped instead of being decoded in the heap, the 8bit BMP files are counted as decoded
+     * with a byte per pixel and the other BMP files with three. The files shorter than
+     * {@link ImageFileReading#MAX_READ_SIZE} are counted with their content, read into the heap rather than mapped.
+     * The format is found from the first bytes of the file, whatever its extension, as {@link ImageFileReading} does:
+     * a file of any other format is rejected by the reading step, and needs no heap.
+     *
+     * @param file the file
+     * @return the estimates of the file
+     */
+    static SizedFile estimate(File file) {
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            byte[] bytes = new byte[PnmHeader.MAX_SIZE];
+            int read = readFully(input, bytes);
+            SizedFile estimate = estimate(file, bytes, read, file.length(), true);
+            if (estimate != null) {
+                return estimate;
+            }
+        } catch (IOException e) {
+            // the length is used instead, the reading step will report the file if it is really broken
+        }
+        return new SizedFile(file, file.length(), 0);
+    }
+
+    /**
+     * @param file a file
+     * @return true if its first bytes are the ones of a BMP, PGM or PBM file, the formats read by
+     * {@link ImageFileReading}
+     */
+    static boolean isImage(File file) {
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            byte[] bytes = new byte[PnmHeader.MAX_SIZE];
+            int read = readFully(input, bytes);
+            return BmpHeader.hasSignature(ByteBuffer.wrap(bytes, 0, read))
+                    || PnmHeader.read(ByteBuffer.wrap(bytes, 0, read)) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Method that estimates a BMP, PGM or PBM file from its first bytes, see {@link #estimate(File)}.
+     *
+     * @param file       the file, or null if the content is not in a file
+     * @param bytes      the first bytes of the content
+     * @param read       how many of them are known
+     * @param length     the length of the whole content
+     * @param streamable false if the content cannot be streamed even when it is an uncompressed 24bit BMP file, as it
+     *                   is already in memory
+     * @return the estimates, or null if the first bytes are neither a BMP nor a PGM or PBM header
+     */
+    static SizedFile estimate(File file, byte[] bytes, int read, long length, boolean streamable) {
+        if (read >= 34 && bytes[0] == 'B' && bytes[1] == 'M') {
+            ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int width = Math.abs(header.getInt(18));
+            int height = Math.abs(header.getInt(22));
+            int bitCount = header.getShort(28);
+            boolean uncompressed = header.getInt(30) == 0 && length <= Integer.MAX_VALUE;
+            int inputBytesPerPixel = uncompressed && bitCount == 24 ? 0 : uncompressed && bitCount == 8 ? 1 : 3;
+            return new SizedFile(file, (long) width * height, HeapBudget.estimatePeakBytes(width, height,
+                    inputBytesPerPixel, readBytes(file, length), streamable && inputBytesPerPixel == 0));
+        }
+        PnmHeader header = PnmHeader.read(ByteBuffer.wrap(bytes, 0, read));
+        if (header != null) {
+            return new SizedFile(file, (long) header.getWidth() * header.getHeight(),
+                    HeapBudget.estimatePeakBytes(header.getWidth(), header.getHeight(), 0, readBytes(file, length),
+                            false));
+        }
+        return null;
+    }
+
+    /**
+     * @param file   the file, or null if the content is already in memory
+     * @param length the length of the file
+     * @return the bytes of the file read into the heap by {@link ImageFileReading}, 0 if it is memory mapped
+     */
+    private static long readBytes(File file, long length) {
+        return file != null && length < ImageFileReading.MAX_READ_SIZE ? length : 0;
+    }
+
+    /**
+     * @return how many bytes were read, fewer than the length of the array only at the end of the input
+     */
+    static int readFully(InputStream input, byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int count = input.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * @param path a file or a directory
+     * @return true if it is hidden or it is a binary image, or if this cannot be known
+     */
+    static boolean isSkipped(Path path) {
+        try {
+            String name = path.getFileName().toString();
+            return Files.isHidden(path) || isOutputName(name);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @param name the name of a file
+     * @return true if it is the name of a binary image written by an {@link ExecutionCycle}
+     */
+    static boolean isOutputName(String name) {
+        return name.endsWith(OUTPUT_SUFFIX + ".bmp") || name.endsWith(OUTPUT_SUFFIX + ".pbm");
+    }
+
+    /**
+     * A file with the estimates read from its header, see {@link #estimate(File)}.
+     */
+    static final class SizedFile {
+        private final File file;
+        private final long size;
+        private final long heapBytes;
+
+        SizedFile(File file, long size, long heapBytes) {
+            this.file = file;
+            this.size = size;
+            this.heapBytes = heapBytes;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the number of pixels of the image, or the length of the file if it is not known
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the heap memory needed by the cycle of the file at its peak
+         */
+        long getHeapBytes() {
+            return heapBytes;
+        }
+    }
+
+    /**
+     * A depth-first walk, keeping an open {@link DirectoryStream} for each directory between the starting one and the
+     * current one.
+     */
+    private static final class WalkIterator implements Iterator<File> {
+        private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+        private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+        private File next;
+
+        WalkIterator(Path directory) {
+            open(directory);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !iterators.isEmpty()) {
+                Iterator<Path> iterator = iterators.peek();
+                Path path;
+                try {
+                    if (!iterator.hasNext()) {
+                        close();
+                        continue;
+                    }
+                    path = iterator.next();
+                } catch (UncheckedIOException e) {
+                    // the rest of this directory cannot be read
+                    System.err.println("Could not read the directory: " + e.getCause().getMessage());
+                    close();
+                    continue;
+                }
+                if (isSkipped(path)) {
+                    continue;
+                }
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    open(path);
+                } else if (Files.isRegularFile(path)) {
+                    next = path.toFile();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = next;
+            next = null;
+            return file;
+        }
+
+        private void open(Path directory) {
+            try {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+                streams.push(stream);
+                iterators.push(stream.iterator());
+            } catch (IOException e) {
+                System.err.println("Could not open the directory at " + directory + "!");
+            }
+        }
+
+        private void closeAll() {
+            while (!iterators.isEmpty()) {
+                close();
+            }
+        }
+
+        private void close() {
+            iterators.pop();
+            try {
+                streams.pop().close();
+            } catch (IOException e) {
+                // nothing more is read from it
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The admission of the cycles of a directory processed in parallel ([-M]) against a budget of heap memory, so that a
+ * few huge images decoded at the same time cannot run the application out of memory.
+ * <p>
+ * The peak memory of each cycle is estimated from the header of its file, before it is decoded, see
+ * {@link FileTraversal#estimate(File)}. Most files take their estimate from the shared part of the budget, a fair
+ * weighted semaphore, and start as soon as it is available, so a batch of small files never waits. A file whose estimate
+ * is more than the fair share of a thread is large: it goes to the large lane, a single thread owning a reserved part of
+ * the budget, and takes from the shared part only what its estimate exceeds that reserve. The large files are therefore
+ * binarized one at a time, next to the small ones instead of blocking them.
+ * <p>
+ * The objects kept by the {@link RasterPool}s are not part of the estimates, so their size is limited to a share of the
+ * memory left out of the budget, see {@link #limitPools(int)}.
+ */
+final class HeapBudget {
+    /**
+     * The fraction of the maximum heap given to the budget, when it is not set by [-B].
+     */
+    static final double DEFAULT_FRACTION = 0.5;
+
+    /**
+     * The large lane reserves 1 / LARGE_LANE_SHARE of the budget.
+     */
+    private static final int LARGE_LANE_SHARE = 4;
+
+    /**
+     * The permits of the semaphore are counted in units of this many bytes, so that any budget fits in an int.
+     */
+    private static final int UNIT = 1024;
+
+    private static final AtomicLong ADMITTED = new AtomicLong();
+    private static final AtomicLong LARGE = new AtomicLong();
+    private static final AtomicLong WAITS = new AtomicLong();
+    private static final AtomicLong WAITED_NANOS = new AtomicLong();
+
+    private final long budget;
+    private final long reserve;
+    private final int sharedPermits;
+    private final long largeThreshold;
+    private final Semaphore shared;
+
+    /**
+     * @param budget          the heap memory that the cycles in progress may use, in bytes
+     * @param numberOfThreads the number of cycles expected to run at the same time in the shared lane, giving the fair
+     *                        share of a thread: the threads of the pool, or the processors when the number of cycles is
+     *                        tuned by {@link AdaptiveConcurrency} (which only needs more cycles when they wait)
+     */
+    HeapBudget(long budget, int numberOfThreads) {
+        this.budget = budget;
+        this.reserve = budget / LARGE_LANE_SHARE;
+        this.sharedPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (budget - reserve) / UNIT));
+        this.largeThreshold = (long) sharedPermits * UNIT / numberOfThreads;
+        this.shared = new Semaphore(sharedPermits, true);
+    }
+
+    /**
+     * @return the default budget, {@link #DEFAULT_FRACTION} of the maximum heap
+     */
+    static long defaultBudget() {
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_FRACTION);
+    }
+
+    /**
+     * @param bytes the estimate of a cycle
+     * @return true if the cycle must go to the large lane, see {@link #admitLarge(long)}
+     */
+    boolean isLarge(long bytes) {
+        return bytes > largeThreshold;
+    }
+
+    /**
+     * Method that blocks until the shared part of the budget has the given bytes available, then takes them.
+     *
+     * @param bytes the estimate of a cycle that is not large
+     * @return the permits to give back with {@link #release(int)} when the cycle is over
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    int admit(long bytes) throws InterruptedException {
+        ADMITTED.incrementAndGet();
+        return take(toPermits(bytes));
+    }
+
+    /**
+     * Method that blocks until the shared part of the budget has what the given bytes exceed the reserve of the large
+     * lane, then takes it. It must only be called by one thread at a time, the thread of the large lane.
+     *
+     * @param bytes the estimate of a large cycle
+     * @return the permits to give back with {@link #release(int)} when the cycle is over
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    int admitLarge(long bytes) throws InterruptedException {
+        ADMITTED.incrementAndGet();
+        LARGE.incrementAndGet();
+        return take(toPermits(bytes - reserve));
+    }
+
+    /**
+     * @param permits the permits returned by {@link #admit(long)} or {@link #admitLarge(long)}
+     */
+    void release(int permits) {
+        if (permits > 0) {
+            shared.release(permits);
+        }
+    }
+
+    private int take(int permits) throws InterruptedException {
+        if (permits > 0 && !shared.tryAcquire(permits)) {
+            long start = System.nanoTime();
+            shared.acquire(permits);
+            WAITS.incrementAndGet();
+            WAITED_NANOS.addAndGet(System.nanoTime() - start);
+        }
+        return permits;
+    }
+
+    /**
+     * @param bytes an estimate, in bytes
+     * @return the permits of the estimate, at most all the permits of the shared part, so that even an image larger
+     * than the budget is binarized, alone
+     */
+    private int toPermits(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        return (int) Math.min(sharedPermits, (bytes + UNIT - 1) / UNIT);
+    }
+
+    /**
+     * Method that limits {@link RasterPool#MAX_BYTES}, so that the pools of all the threads (the shared lane, the large
+     * lane and the main thread) keep at most half of the heap left out of the budget.
+     *
+     * @param numberOfThreads the number of threads of the shared lane
+     */
+    void limitPools(int numberOfThreads) {
+        long left = Math.max(0, Runtime.getRuntime().maxMemory() - budget);
+        RasterPool.MAX_BYTES = Math.min(RasterPool.MAX_BYTES, left / 2 / (numberOfThreads + 2));
+    }
+
+    /**
+     * Method that estimates the heap memory needed by a cycle at its peak: its decoded input image and its binary images,
+     * with the gray levels of an automatic threshold ({@link ImageBinarization#AUTO_THRESHOLD}) and the rows of a local
+     * threshold ({@link ImageBinarization#LOCAL_METHOD}), as set for this run. A streamed file
+     * ({@link ExecutionCycle#STREAMING}) only needs a few rows.
+     *
+     * @param width              the width of the image
+     * @param height             the height of the image
+     * @param inputBytesPerPixel the bytes per pixel of the decoded input image, 0 if the file is memory mapped
+     * @param contentBytes       the bytes of the file read into the heap, see {@link ImageFileReading#MAX_READ_SIZE}
+     * @param streamable         true if the file can be streamed, an uncompressed 24bit BMP file
+     * @return the estimate, in bytes
+     */
+    static long estimatePeakBytes(int width, int height, int inputBytesPerPixel, long contentBytes,
+                                  boolean streamable) {
+        long rows = 16L * width;
+        if (ImageBinarization.LOCAL_METHOD != null) {
+            rows += (ImageBinarization.LOCAL_WINDOW + 32L) * width;
+        }
+        boolean sweep = ImageBinarization.isSweep();
+        if (streamable && ExecutionCycle.STREAMING && !sweep) {
+            return rows;
+        }
+        long pixels = (long) width * height;
+        long binaryImages = sweep ? ImageBinarization.THRESHOLDS.length : 1;
+        long bytes = contentBytes + inputBytesPerPixel * pixels + binaryImages * ((width + 7) / 8) * height + rows;
+        if (ImageBinarization.AUTO_THRESHOLD && ImageBinarization.LOCAL_METHOD == null) {
+            bytes += pixels;
+        }
+        return bytes;
+    }
+
+    /**
+     * Method that prints how the cycles were admitted.
+     */
+    void printStatistics() {
+        long admitted = ADMITTED.get();
+        if (admitted > 0) {
+            EventLog.logFormat(EventLog.Verbosity.QUIET,
+                    "[Heap Budget] %d MB (%d MB reserved for the large lane): %d cycles admitted, %d large, %d waited"
+                            + " %d ms for memory.", budget >> 20, reserve >> 20, admitted, LARGE.get(), WAITS.get(),
+                    WAITED_NANOS.get() / 1_000_000);
+        }
+    }
+}
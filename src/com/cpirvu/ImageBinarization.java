@@ -1,13 +1,151 @@
 package com.cpirvu;
 
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class ImageBinarization extends ImageExecutionStep {
     public static String FORMAT = "This image binarization step took %d milliseconds.";
     public static int THRESHOLD;
     public static boolean FORCE;
+
+    /**
+     * If it holds more than one threshold (a sweep), {@link #THRESHOLD} is ignored and each image gets one binary image
+     * per threshold, all made from a single conversion to gray levels, see {@link #isSweep()}.
+     */
+    public static int[] THRESHOLDS;
+
+    /**
+     * If true, {@link #THRESHOLD} is ignored and each image gets its own threshold, computed with Otsu's method from
+     * the histogram of its gray levels.
+     */
+    public static boolean AUTO_THRESHOLD;
+
+    /**
+     * If not null, {@link #THRESHOLD} and {@link #AUTO_THRESHOLD} are ignored and each pixel gets its own threshold,
+     * computed with this method from the mean and the standard deviation of the gray levels in the
+     * {@link #LOCAL_WINDOW} x {@link #LOCAL_WINDOW} window centered on it.
+     */
+    public static LocalMethod LOCAL_METHOD;
+
+    /**
+     * The size (odd number of pixels) of the window used by {@link #LOCAL_METHOD}.
+     */
+    public static int LOCAL_WINDOW = 25;
+
+    /**
+     * The k parameter of {@link #LOCAL_METHOD}.
+     */
+    public static double LOCAL_K;
+
+    /**
+     * The number of threads used to binarize a single image. When greater than 1, the image is split in bands of rows
+     * that are binarized on a {@link ForkJoinPool}. Default is 1, meaning the image is binarized on the calling thread.
+     */
+    public static int PARALLELISM = 1;
+
+    /**
+     * Each thread gets about this many bands, so that a slower thread can be helped by the others.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Before the first pass, this many rows spread over the image are sampled, see {@link #detectGrayscale()}.
+     */
+    static final int SAMPLED_ROWS = 64;
+
+    /**
+     * The number of pixels sampled in each row, spread over its width, see {@link #hasColoredSample(byte[], int, int)}.
+     */
+    static final int SAMPLED_PIXELS_PER_ROW = 64;
+
+    /**
+     * The luminance is summed from the lookup tables below in fixed point, with this many bits after the point: the sum
+     * for a white pixel, 255 * 2^23, still fits in an int.
+     */
+    private static final int LUMINANCE_FRACTION_BITS = 23;
+    private static final int LUMINANCE_FRACTION_MASK = (1 << LUMINANCE_FRACTION_BITS) - 1;
+
+    /**
+     * The contribution of each red, green and blue value to the luminance, see {@link #luminance(int, int, int)}.
+     * Each entry is rounded, so a sum is at most 1.5 units away from the exact luminance. An exact luminance that is
+     * not an integer is at least 1/10000 away from the next integer, far more than that, so the sum truncates to the
+     * same gray level. Only an exact luminance that is an integer, for which the sum is within one unit of a multiple
+     * of 2^23, is computed by {@link #luminance(int, int, int)} instead.
+     */
+    private static final int[] RED_LUMINANCE = luminanceTable(2126);
+    private static final int[] GREEN_LUMINANCE = luminanceTable(7152);
+    private static final int[] BLUE_LUMINANCE = luminanceTable(722);
+
+    /**
+     * The kernel binarizing a whole row at once when there is a single threshold, see {@link RowKernel#select()}, or
+     * null if the rows are converted to gray levels and then packed by the scalar code.
+     */
+    static RowKernel ROW_KERNEL = RowKernel.select();
+
     private BufferedImage binaryImage;
+
+    /**
+     * The binary images, one per threshold of a sweep, {@link #binaryImage} being the first one.
+     */
+    private BufferedImage[] binaryImages;
     private BufferedImage originalImage;
+    private int width;
+    private int height;
+
+    /**
+     * The pixel array of an uncompressed image file, as read by {@link ImageFileReading}, or null if
+     * {@link #originalImage} is used instead. The rows keep the order and the padding they have in the file, described
+     * by {@link #mappedHeader}. The pixels are either BGR samples or, for a file of gray levels, indexes in
+     * {@link RasterHeader#getGrayLevels()}.
+     */
+    private ByteBuffer mappedPixels;
+    private RasterHeader mappedHeader;
+
+    /**
+     * The backing array of the original image when it is a plain 24bit BGR raster, or null otherwise.
+     * When null, the rows are fetched through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)} instead.
+     */
+    private byte[] sourcePixels;
+
+    /**
+     * Index in {@link #sourcePixels} of the blue sample of the first pixel.
+     */
+    private int sourceOffset;
+
+    /**
+     * Number of bytes between the starts of two consecutive rows of {@link #sourcePixels}.
+     */
+    private int sourceScanlineStride;
+
+    /**
+     * Set by any band that finds a pixel that is not gray, so that the other bands can stop early.
+     */
+    private volatile boolean colorFound;
+
+    /**
+     * The threshold used for this image, either {@link #THRESHOLD} or the one computed by Otsu's method.
+     */
+    private int threshold;
+
+    /**
+     * The settings of this image, taken from the static ones when it is created and changed only by
+     * {@link #setThreshold(int)}, {@link #setAutoThreshold()} and {@link #setForce(boolean)}.
+     */
+    private int[] thresholds = isSweep() ? THRESHOLDS : new int[]{THRESHOLD};
+    private boolean autoThreshold = AUTO_THRESHOLD;
+    private LocalMethod localMethod = LOCAL_METHOD;
+    private boolean force = FORCE;
 
     /**
      * @param originalImage the image that is going to be binarized.
@@ -18,6 +156,23 @@ public class ImageBinarization extends ImageExecutionStep {
             throw new IllegalArgumentException("Image cannot be null!");
         }
         this.originalImage = originalImage;
+        this.width = originalImage.getWidth();
+        this.height = originalImage.getHeight();
+    }
+
+    /**
+     * @param header the header of the uncompressed image file that is going to be binarized.
+     * @param pixels the pixel array of the file, starting at its position.
+     * @throws IllegalArgumentException if any of the input parameters is null.
+     */
+    ImageBinarization(RasterHeader header, ByteBuffer pixels) {
+        if (header == null || pixels == null) {
+            throw new IllegalArgumentException("Header and pixels cannot be null!");
+        }
+        this.mappedHeader = header;
+        this.mappedPixels = pixels;
+        this.width = header.getWidth();
+        this.height = header.getHeight();
     }
 
     @Override
@@ -25,109 +180,773 @@ public class ImageBinarization extends ImageExecutionStep {
         return binaryImage;
     }
 
+    /**
+     * @return the binary images, one per threshold of {@link #THRESHOLDS} for a sweep, otherwise only {@link #getImage()}
+     */
+    public BufferedImage[] getImages() {
+        return binaryImages;
+    }
+
+    /**
+     * @return true if every image is binarized with each of the {@link #THRESHOLDS}, false if it gets a single threshold
+     */
+    static boolean isSweep() {
+        return THRESHOLDS != null && THRESHOLDS.length > 1 && LOCAL_METHOD == null && !AUTO_THRESHOLD;
+    }
+
+    /**
+     * Method that binarizes this image with the given threshold, whatever the static settings.
+     *
+     * @param threshold the threshold, from 0 to 255
+     */
+    void setThreshold(int threshold) {
+        this.thresholds = new int[]{threshold};
+        this.autoThreshold = false;
+        this.localMethod = null;
+    }
+
+    /**
+     * Method that binarizes this image with the threshold computed by Otsu's method, whatever the static settings.
+     */
+    void setAutoThreshold() {
+        this.autoThreshold = true;
+        this.localMethod = null;
+    }
+
+    /**
+     * @param force true to convert a colored image to grayscale, false to fail on it, whatever {@link #FORCE}
+     */
+    void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * @return the settings changing the binary images, as in "threshold=127 force=false", so that two runs with the same
+     * settings give the same binary images. {@link #PARALLELISM} is not part of them, as it gives the same result.
+     */
+    static String describeSettings() {
+        String threshold;
+        if (LOCAL_METHOD != null) {
+            threshold = "local=" + LOCAL_METHOD.name().toLowerCase(Locale.ROOT) + ":" + LOCAL_WINDOW + ":" + LOCAL_K;
+        } else if (AUTO_THRESHOLD) {
+            threshold = "threshold=auto";
+        } else if (isSweep()) {
+            StringBuilder thresholds = new StringBuilder("thresholds=");
+            for (int i = 0; i < THRESHOLDS.length; i++) {
+                thresholds.append(i == 0 ? "" : ",").append(THRESHOLDS[i]);
+            }
+            threshold = thresholds.toString();
+        } else {
+            threshold = "threshold=" + THRESHOLD;
+        }
+        return threshold + " force=" + FORCE;
+    }
+
+    /**
+     * @return the threshold used to binarize the image, known after {@link #execute()}.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
     @Override
     public void printProcessingTime() {
-        printProcessingTime(FORMAT);
+        if (autoThreshold) {
+            printProcessingTime(FORMAT.replace(".", " (automatic threshold " + threshold + ")."));
+        } else if (thresholds.length > 1) {
+            printProcessingTime(FORMAT.replace(".", " (" + thresholds.length + " thresholds)."));
+        } else {
+            printProcessingTime(FORMAT);
+        }
     }
 
     /**
      * Method that converts the input image to binary.
      * If the input image is not grayscale and the {@link #FORCE} flag is not set to true, then this will fail to convert.
      * If the {@link #FORCE} flag is set to true, this will also convert the input image to grayscale if needed.
+     * <p>
+     * The image is walked row by row and the result is packed straight into the backing array of the binary raster.
+     * The first pass assumes the image is grayscale and thresholds the blue sample while checking that every pixel is
+     * gray. Only if a colored pixel is found (and {@link #FORCE} is set) the image is walked once more, this time
+     * thresholding the luminance. The original image is never modified.
+     * <p>
+     * As a colored pixel may only be found late in the first pass, the image is first checked by
+     * {@link #detectGrayscale()}: a grayscale color model skips the sampling, while a colored pixel among a few thousand
+     * sampled ones skips the first pass, failing right away without {@link #FORCE}.
+     * <p>
+     * If {@link #AUTO_THRESHOLD} is true, the same passes store the gray level of every pixel in a plane of one byte per
+     * pixel, while counting them in a histogram. The threshold is then computed from the histogram and the plane is
+     * packed into the binary raster, without reading the original image again.
+     * <p>
+     * If {@link #LOCAL_METHOD} is set, the gray levels go through a window of {@link #LOCAL_WINDOW} rows instead,
+     * where they are summed to get the local threshold of each pixel, see {@link #localRows(int, int, boolean, byte[])}.
+     * <p>
+     * If {@link #isSweep()}, each gray row is packed once per threshold, into the raster of that threshold, while it
+     * is still in the cache. So the image is read and converted only once, whatever the number of thresholds.
+     * <p>
+     * If {@link #PARALLELISM} is greater than 1, the passes are split in bands of rows. Every row of the binary raster
+     * starts on a new byte, so the bands never share output bytes and the result is identical to the serial one.
      */
     @Override
     public void execute() {
-        boolean grayscale = isGrayscale(originalImage);
+        initSourcePixels();
+        colorFound = false;
+
+        // every byte of the rasters is overwritten below, so pooled images can be reused as they are
+        int[] thresholds = this.thresholds;
+        binaryImages = new BufferedImage[localMethod != null || autoThreshold ? 1 : thresholds.length];
+        byte[][] sweepPixels = new byte[binaryImages.length][];
+        for (int i = 0; i < binaryImages.length; i++) {
+            binaryImages[i] = RasterPool.current().acquireImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            sweepPixels[i] = ((DataBufferByte) binaryImages[i].getRaster().getDataBuffer()).getData();
+        }
+        binaryImage = binaryImages[0];
+        byte[] binaryPixels = sweepPixels[0];
 
-        if (!grayscale && !FORCE) {
-            System.err.println("Input image is not grayscale! Consider using -F argument to also convert to grayscale if needed!");
-            setFinishedSuccessfully(false);
+        byte[] grayPixels = null;
+        ForkJoinPool pool = null;
+        if (PARALLELISM > 1 && height > 1) {
+            pool = new ForkJoinPool(PARALLELISM);
+        }
+        try {
+            int bandHeight = Math.max(1, (height + PARALLELISM * BANDS_PER_THREAD - 1) / (PARALLELISM * BANDS_PER_THREAD));
+            boolean colored = detectGrayscale() == Grayscale.COLORED;
+            if (localMethod != null) {
+                if (colored || !forEachBand(pool, bandHeight, (fromRow, toRow) -> localRows(fromRow, toRow, false, binaryPixels))) {
+                    if (!force) {
+                        failNotGrayscale();
+                        return;
+                    }
+                    forEachBand(pool, bandHeight, (fromRow, toRow) -> localRows(fromRow, toRow, true, binaryPixels));
+                }
+            } else if (autoThreshold) {
+                byte[] plane = grayPixels = RasterPool.current().acquireBytes(width * height);
+                int[] histogram = new int[256];
+                if (colored || !forEachBand(pool, bandHeight, (fromRow, toRow) -> grayRows(fromRow, toRow, false, plane, histogram))) {
+                    if (!force) {
+                        failNotGrayscale();
+                        return;
+                    }
+                    Arrays.fill(histogram, 0);
+                    forEachBand(pool, bandHeight, (fromRow, toRow) -> grayRows(fromRow, toRow, true, plane, histogram));
+                }
+                threshold = otsuThreshold(histogram);
+                forEachBand(pool, bandHeight, (fromRow, toRow) -> packRows(fromRow, toRow, plane, binaryPixels));
+            } else {
+                threshold = thresholds[0];
+                if (colored || !forEachBand(pool, bandHeight, (fromRow, toRow) -> binarizeRows(fromRow, toRow, false, thresholds, sweepPixels))) {
+                    if (!force) {
+                        failNotGrayscale();
+                        return;
+                    }
+                    forEachBand(pool, bandHeight, (fromRow, toRow) -> binarizeRows(fromRow, toRow, true, thresholds, sweepPixels));
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            RasterPool.current().release(grayPixels);
+        }
+        setFinishedSuccessfully(true);
+    }
+
+    private void failNotGrayscale() {
+        System.err.println("Input image is not grayscale! Consider using -F argument to also convert to grayscale if needed!");
+        for (BufferedImage image : binaryImages) {
+            RasterPool.current().release(image);
+        }
+        binaryImage = null;
+        binaryImages = null;
+        setFinishedSuccessfully(false);
+    }
+
+    /**
+     * Method that finds out, at a small cost, whether the image is surely grayscale or surely colored.
+     * <p>
+     * The format is checked first: a mapped file of gray levels, an image in a gray color space, or whose palette only
+     * holds gray colors, is grayscale. Otherwise {@link #SAMPLED_ROWS} rows spread over the image are
+     * sampled, most colored images having a colored pixel among them. Only the exact check of the first pass tells
+     * that an image is grayscale, so a sample without colored pixel is inconclusive.
+     *
+     * @return {@link Grayscale#GRAY}, {@link Grayscale#COLORED} or {@link Grayscale#UNKNOWN}
+     */
+    private Grayscale detectGrayscale() {
+        if (originalImage != null) {
+            ColorModel colorModel = originalImage.getColorModel();
+            if (colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY
+                    || colorModel instanceof IndexColorModel && isGrayPalette((IndexColorModel) colorModel)) {
+                return Grayscale.GRAY;
+            }
+        }
+        if (mappedHeader != null && mappedHeader.getGrayLevels() != null) {
+            return Grayscale.GRAY; // a file of gray levels
+        }
+        SourceRows rows = new SourceRows();
+        int sampledRows = Math.min(height, SAMPLED_ROWS);
+        for (int i = 0; i < sampledRows; i++) {
+            // the middle row of each of the strips the image is split in
+            int y = (int) ((2L * i + 1) * height / (2 * sampledRows));
+            if (hasColoredSample(rows.row, rows.fetch(y), width)) {
+                return Grayscale.COLORED;
+            }
+        }
+        return Grayscale.UNKNOWN;
+    }
+
+    private static boolean isGrayPalette(IndexColorModel palette) {
+        for (int i = 0; i < palette.getMapSize(); i++) {
+            int red = palette.getRed(i);
+            if (red != palette.getGreen(i) || red != palette.getBlue(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method that checks {@link #SAMPLED_PIXELS_PER_ROW} pixels spread over a row of BGR samples.
+     *
+     * @param row       the array containing the BGR samples
+     * @param rowOffset the index of the blue sample of the first pixel of the row
+     * @param width     the number of pixels in the row
+     * @return true if any of the sampled pixels is not gray
+     */
+    static boolean hasColoredSample(byte[] row, int rowOffset, int width) {
+        int step = Math.max(1, width / SAMPLED_PIXELS_PER_ROW);
+        for (int x = step >> 1; x < width; x += step) {
+            int i = rowOffset + 3 * x;
+            if (row[i] != row[i + 1] || row[i] != row[i + 2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method that applies the given operation on the whole image, either on the calling thread or on the given pool.
+     *
+     * @param pool       the pool to use, or null to apply the operation on the calling thread
+     * @param bandHeight the maximum number of rows given to the operation by a single task of the pool
+     * @param operation  the operation to apply on each band of rows
+     * @return false if the operation returned false for any band, true otherwise
+     */
+    private boolean forEachBand(ForkJoinPool pool, int bandHeight, RowsOperation operation) {
+        if (pool == null) {
+            return operation.apply(0, height);
+        }
+        return pool.invoke(new BandTask(0, height, bandHeight, operation));
+    }
+
+    /**
+     * Method that decides whether the pixels of {@link #originalImage} can be read directly from its backing array.
+     * This is the case for the 24bit BGR rasters returned by {@link javax.imageio.ImageIO} for BMP files.
+     * The pixels of a BMP file mapped by {@link ImageFileReading} are read through {@link #mappedPixels} instead.
+     */
+    private void initSourcePixels() {
+        sourcePixels = null;
+        if (originalImage == null) {
+            return;
+        }
+        Raster raster = originalImage.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || raster.getDataBuffer().getNumBanks() != 1
+                || !(sampleModel instanceof ComponentSampleModel)
+                || !originalImage.getColorModel().getColorSpace().isCS_sRGB()) {
+            return;
+        }
+        ComponentSampleModel componentSampleModel = (ComponentSampleModel) sampleModel;
+        int[] bandOffsets = componentSampleModel.getBandOffsets();
+        if (componentSampleModel.getPixelStride() != 3 || bandOffsets.length != 3
+                || bandOffsets[0] != 2 || bandOffsets[1] != 1 || bandOffsets[2] != 0) {
             return;
         }
+        sourceScanlineStride = componentSampleModel.getScanlineStride();
+        sourceOffset = raster.getDataBuffer().getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * sourceScanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * 3;
+        sourcePixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Method that binarizes the rows between fromRow (inclusive) and toRow (exclusive) into the given packed arrays,
+     * one per threshold. A pixel brighter than the threshold becomes black (bit 0), any other pixel becomes white (bit 1).
+     *
+     * @param fromRow      the first row to binarize
+     * @param toRow        the row after the last one to binarize
+     * @param luminance    if true, the luminance of each pixel is thresholded, otherwise the blue sample is thresholded
+     *                     and the rows are also checked for grayscale
+     * @param thresholds   the thresholds, from 0 to 255
+     * @param binaryPixels the backing arrays of the TYPE_BYTE_BINARY rasters, in the order of the thresholds
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+     */
+    private boolean binarizeRows(int fromRow, int toRow, boolean luminance, int[] thresholds, byte[][] binaryPixels) {
+        int binaryScanlineStride = (width + 7) >> 3;
+        SourceRows rows = new SourceRows();
+        byte[] grayRow = new byte[width];
+        // a sweep converts each row to gray levels only once, for all its thresholds
+        RowKernel kernel = thresholds.length == 1 && rows.grayLevels == null ? ROW_KERNEL : null;
 
-        if (!grayscale) {
-            convertToGrayscale(originalImage);
+        for (int y = fromRow; y < toRow; y++) {
+            if (!luminance && colorFound) {
+                return false; // another band already found a pixel that is not gray
+            }
+            if (kernel != null) {
+                if (!kernel.binarize(rows.row, rows.fetch(y), width, luminance, thresholds[0], binaryPixels[0],
+                        y * binaryScanlineStride)) {
+                    colorFound = true;
+                    return false;
+                }
+                continue;
+            }
+            if (!rows.fetchGray(y, luminance, grayRow, 0)) {
+                colorFound = true;
+                return false;
+            }
+            for (int i = 0; i < thresholds.length; i++) {
+                pack(grayRow, 0, width, thresholds[i], binaryPixels[i], y * binaryScanlineStride);
+            }
         }
+        return true;
+    }
 
-        binaryImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
+    /**
+     * Method that stores the gray levels of the rows between fromRow (inclusive) and toRow (exclusive) in the given
+     * plane and adds them to the given histogram.
+     * The rows are counted in a histogram owned by the band, merged into the shared one at the end.
+     *
+     * @param fromRow    the first row
+     * @param toRow      the row after the last one
+     * @param luminance  see {@link #binarizeRows(int, int, boolean, int[], byte[][])}
+     * @param grayPixels the plane of gray levels, one byte per pixel
+     * @param histogram  the histogram of the whole image, 256 counters
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+     */
+    private boolean grayRows(int fromRow, int toRow, boolean luminance, byte[] grayPixels, int[] histogram) {
+        SourceRows rows = new SourceRows();
+        int[] bandHistogram = new int[256];
 
-        int red;
-        short pixel;
-        for (int i = 0; i < originalImage.getWidth(); i++) {
-            for (int j = 0; j < originalImage.getHeight(); j++) {
-                red = originalImage.getRGB(i, j) & 0xFF; // get red value from rgb integer value
-                if (red > THRESHOLD) { // can use any of the r/g/b elements, as the image is grayscale!
-                    pixel = 0;
-                } else {
-                    pixel = 255;
+        for (int y = fromRow; y < toRow; y++) {
+            if (!luminance && colorFound) {
+                return false; // another band already found a pixel that is not gray
+            }
+            if (!rows.fetchGray(y, luminance, grayPixels, y * width)) {
+                colorFound = true;
+                return false;
+            }
+            for (int i = y * width, end = i + width; i < end; i++) {
+                bandHistogram[grayPixels[i] & 0xff]++;
+            }
+        }
+
+        synchronized (histogram) {
+            for (int i = 0; i < 256; i++) {
+                histogram[i] += bandHistogram[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method that packs the rows between fromRow (inclusive) and toRow (exclusive) of the given plane of gray levels
+     * into the binary raster, using {@link #threshold}.
+     *
+     * @param fromRow      the first row
+     * @param toRow        the row after the last one
+     * @param grayPixels   the plane of gray levels, one byte per pixel
+     * @param binaryPixels the backing array of the TYPE_BYTE_BINARY raster
+     * @return always true
+     */
+    private boolean packRows(int fromRow, int toRow, byte[] grayPixels, byte[] binaryPixels) {
+        int binaryScanlineStride = (width + 7) >> 3;
+        for (int y = fromRow; y < toRow; y++) {
+            pack(grayPixels, y * width, width, threshold, binaryPixels, y * binaryScanlineStride);
+        }
+        return true;
+    }
+
+    /**
+     * Method that binarizes the rows between fromRow (inclusive) and toRow (exclusive) with a threshold computed for
+     * each pixel by {@link #LOCAL_METHOD}, from the window of {@link #LOCAL_WINDOW} x {@link #LOCAL_WINDOW} pixels
+     * centered on it (cut at the borders of the image).
+     * <p>
+     * The mean and the variance of a window are computed from summed-area tables of the gray levels and of their
+     * squares, so they cost the same whatever the size of the window. The tables are never built for the whole
+     * image: only the gray levels of the rows inside the window are kept, in a ring of {@link #LOCAL_WINDOW} rows,
+     * together with the sums of each of their columns. Moving to the next row adds a row to the column sums and
+     * removes another, and the prefix sums of the column sums are the row of the table needed for the current row.
+     *
+     * @param fromRow      the first row to binarize
+     * @param toRow        the row after the last one to binarize
+     * @param luminance    see {@link #binarizeRows(int, int, boolean, int[], byte[][])}
+     * @param binaryPixels the backing array of the TYPE_BYTE_BINARY raster
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+     */
+    private boolean localRows(int fromRow, int toRow, boolean luminance, byte[] binaryPixels) {
+        LocalMethod method = localMethod;
+        double k = LOCAL_K;
+        int radius = LOCAL_WINDOW / 2;
+        int windowHeight = 2 * radius + 1;
+        int binaryScanlineStride = (width + 7) >> 3;
+
+        SourceRows rows = new SourceRows();
+        byte[][] grayRows = new byte[windowHeight][width]; // row y is kept at index y % windowHeight
+        long[] columnSums = new long[width];
+        long[] columnSquareSums = new long[width];
+        long[] sumTable = new long[width + 1];
+        long[] squareSumTable = new long[width + 1];
+
+        int firstSummedRow = Math.max(0, fromRow - radius); // the first row added to the column sums
+        int nextRow = firstSummedRow; // the next row to add to the column sums
+        for (int y = fromRow; y < toRow; y++) {
+            if (!luminance && colorFound) {
+                return false; // another band already found a pixel that is not gray
+            }
+            int windowTop = Math.max(0, y - radius);
+            int windowBottom = Math.min(height - 1, y + radius);
+
+            for (; firstSummedRow < windowTop; firstSummedRow++) {
+                byte[] gray = grayRows[firstSummedRow % windowHeight];
+                for (int x = 0; x < width; x++) {
+                    int value = gray[x] & 0xff;
+                    columnSums[x] -= value;
+                    columnSquareSums[x] -= value * value;
+                }
+            }
+            for (; nextRow <= windowBottom; nextRow++) {
+                byte[] gray = grayRows[nextRow % windowHeight];
+                if (!rows.fetchGray(nextRow, luminance, gray, 0)) {
+                    colorFound = true;
+                    return false;
+                }
+                for (int x = 0; x < width; x++) {
+                    int value = gray[x] & 0xff;
+                    columnSums[x] += value;
+                    columnSquareSums[x] += value * value;
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                sumTable[x + 1] = sumTable[x] + columnSums[x];
+                squareSumTable[x + 1] = squareSumTable[x] + columnSquareSums[x];
+            }
+
+            int windowRows = windowBottom - windowTop + 1;
+            byte[] gray = grayRows[y % windowHeight];
+            int out = y * binaryScanlineStride;
+            int bits = 0;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(0, x - radius);
+                int right = Math.min(width - 1, x + radius) + 1;
+                double count = (double) (right - left) * windowRows;
+                double mean = (sumTable[right] - sumTable[left]) / count;
+                double variance = (squareSumTable[right] - squareSumTable[left]) / count - mean * mean;
+                double deviation = variance > 0 ? Math.sqrt(variance) : 0;
+                bits = (bits << 1) | ((gray[x] & 0xff) > method.threshold(mean, deviation, k) ? 0 : 1);
+                if ((x & 7) == 7) {
+                    binaryPixels[out++] = (byte) bits;
+                    bits = 0;
                 }
-                int rgbAsInt = rgbToInt(pixel, pixel, pixel);
-                binaryImage.setRGB(i, j, rgbAsInt);
+            }
+            if ((width & 7) != 0) {
+                binaryPixels[out] = (byte) (bits << (8 - (width & 7)));
             }
         }
-        setFinishedSuccessfully(true);
+        return true;
     }
 
     /**
-     * Method that converts a color from red, green, blue scheme to int.
-     * Assuming the image is a 24bit channel image, the alpha component is therefore null.
+     * Method that computes the threshold separating the gray levels of the histogram in two classes, so that the
+     * variance between the classes is the largest (Otsu's method).
      *
-     * @param red   the red value
-     * @param green the green value
-     * @param blue  the blue value
-     * @return int containing the all three elements (r, g, b) - i.e. rgb converted to integer
+     * @param histogram the number of pixels of each gray level, 256 counters
+     * @return the largest gray level of the dark class; the pixels brighter than it will be black
      */
-    private int rgbToInt(short red, short green, short blue) {
-        int colorAsInt = 0; // the alpha element is empty (24 bit)
-        colorAsInt = (colorAsInt << 8) + red; // shift 8 bits then add the red element
-        colorAsInt = (colorAsInt << 8) + green; // shift 8 bits then add the green element
-        colorAsInt = (colorAsInt << 8) + blue; // shift 8 bits then add the blue element
-        return colorAsInt;
+    static int otsuThreshold(int[] histogram) {
+        long total = 0;
+        long sum = 0;
+        for (int i = 0; i < 256; i++) {
+            total += histogram[i];
+            sum += (long) i * histogram[i];
+        }
+
+        long darkWeight = 0;
+        long darkSum = 0;
+        double maxVariance = -1;
+        int threshold = 0;
+        for (int t = 0; t < 256; t++) {
+            darkWeight += histogram[t];
+            darkSum += (long) t * histogram[t];
+            long brightWeight = total - darkWeight;
+            if (darkWeight == 0 || brightWeight == 0) {
+                continue;
+            }
+            double meanDifference = (double) darkSum / darkWeight - (double) (sum - darkSum) / brightWeight;
+            double variance = (double) darkWeight * brightWeight * meanDifference * meanDifference;
+            if (variance > maxVariance) {
+                maxVariance = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
     }
 
     /**
-     * Method that checks if the input image is grayscale.
+     * Method that converts a single row of BGR samples to gray levels.
      *
-     * @param image the image to check for grayscale
-     * @return boolean stating whether or not the image is grayscale
+     * @param row        the array containing the BGR samples
+     * @param rowOffset  the index of the blue sample of the first pixel of the row
+     * @param width      the number of pixels in the row
+     * @param luminance  if true, the gray level is the luminance of the pixel, otherwise it is the blue sample and the
+     *                   row is checked for grayscale
+     * @param gray       the array receiving the gray levels
+     * @param grayOffset the index in gray of the first pixel of the row
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
      */
-    private boolean isGrayscale(BufferedImage image) {
-        int pixel, red, green, blue;
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixel = image.getRGB(i, j);
-                red = (pixel >> 16) & 0xff;
-                green = (pixel >> 8) & 0xff;
-                blue = (pixel) & 0xff;
-                if (red != green || green != blue) return false;
+    static boolean toGray(byte[] row, int rowOffset, int width, boolean luminance, byte[] gray, int grayOffset) {
+        int i = rowOffset;
+        int out = grayOffset;
+        if (luminance) {
+            for (int x = 0; x < width; x++, i += 3) {
+                int blue = row[i] & 0xff;
+                int green = row[i + 1] & 0xff;
+                int red = row[i + 2] & 0xff;
+                int sum = RED_LUMINANCE[red] + GREEN_LUMINANCE[green] + BLUE_LUMINANCE[blue];
+                if (((sum + 1) & LUMINANCE_FRACTION_MASK) <= 2) {
+                    // an integer luminance, which the double computation may truncate one level lower
+                    gray[out++] = (byte) luminance(red, green, blue);
+                } else {
+                    gray[out++] = (byte) (sum >>> LUMINANCE_FRACTION_BITS);
+                }
+            }
+        } else {
+            for (int x = 0; x < width; x++, i += 3) {
+                byte blue = row[i];
+                if (blue != row[i + 1] || blue != row[i + 2]) {
+                    return false;
+                }
+                gray[out++] = blue; // can use any of the r/g/b elements, as the image is grayscale!
             }
         }
         return true;
     }
 
     /**
-     * Method that converts the input image to grayscale.
-     * This uses the luminosity method - weighted average to account for human eye perception.
+     * Method that computes the gray level of a pixel with the luminosity method, a weighted average accounting for the
+     * perception of the human eye. It is the reference of the lookup tables used by
+     * {@link #toGray(byte[], int, int, boolean, byte[], int)}.
+     *
+     * @return the luminance of the pixel, truncated to an integer from 0 to 255
+     */
+    static int luminance(int red, int green, int blue) {
+        return (int) (0.2126 * red + 0.7152 * green + 0.0722 * blue);
+    }
+
+    /**
+     * @param weight the weight of a sample in the luminance, in ten thousandths
+     * @return the contribution of every value of the sample to the luminance, in fixed point
+     */
+    private static int[] luminanceTable(int weight) {
+        int[] table = new int[256];
+        for (int value = 0; value < 256; value++) {
+            table[value] = (int) Math.round((double) weight * value * (1 << LUMINANCE_FRACTION_BITS) / 10000);
+        }
+        return table;
+    }
+
+    /**
+     * Method that thresholds a single row of gray levels, packing 8 pixels per byte (most significant bit first).
+     * A pixel brighter than the threshold becomes black (bit 0), any other pixel becomes white (bit 1).
      *
-     * @param image the image to convert to grayscale
+     * @param gray         the array containing the gray levels
+     * @param grayOffset   the index in gray of the first pixel of the row
+     * @param width        the number of pixels in the row
+     * @param threshold    the threshold, from 0 to 255
+     * @param binaryPixels the backing array of the TYPE_BYTE_BINARY raster
+     * @param binaryOffset the index of the first byte of the row in binaryPixels
+     */
+    static void pack(byte[] gray, int grayOffset, int width, int threshold, byte[] binaryPixels, int binaryOffset) {
+        int i = grayOffset;
+        int out = binaryOffset;
+        int fullBytes = width >> 3;
+        for (int b = 0; b < fullBytes; b++, i += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                bits = (bits << 1) | ((threshold - (gray[i + bit] & 0xff)) >>> 31 ^ 1);
+            }
+            binaryPixels[out++] = (byte) bits;
+        }
+        int remaining = width & 7;
+        if (remaining != 0) {
+            int bits = 0;
+            for (int bit = 0; bit < remaining; bit++) {
+                bits = (bits << 1) | ((threshold - (gray[i + bit] & 0xff)) >>> 31 ^ 1);
+            }
+            binaryPixels[out] = (byte) (bits << (8 - remaining));
+        }
+    }
+
+    /**
+     * The methods computing the threshold of a pixel from the mean and the standard deviation of the gray levels
+     * around it, for {@link #LOCAL_METHOD}.
+     */
+    public enum LocalMethod {
+        /**
+         * Niblack's method: mean + k * deviation. The usual k is -0.2.
+         */
+        NIBLACK(-0.2) {
+            @Override
+            double threshold(double mean, double deviation, double k) {
+                return mean + k * deviation;
+            }
+        },
+
+        /**
+         * Sauvola's method: mean * (1 + k * (deviation / 128 - 1)), 128 being the largest possible deviation.
+         * It behaves better than Niblack's method on the plain background of a document. The usual k is 0.34.
+         */
+        SAUVOLA(0.34) {
+            @Override
+            double threshold(double mean, double deviation, double k) {
+                return mean * (1 + k * (deviation / 128 - 1));
+            }
+        };
+
+        private final double defaultK;
+
+        LocalMethod(double defaultK) {
+            this.defaultK = defaultK;
+        }
+
+        public double getDefaultK() {
+            return defaultK;
+        }
+
+        abstract double threshold(double mean, double deviation, double k);
+    }
+
+    /**
+     * What {@link #detectGrayscale()} found out about an image before the first pass.
      */
-    private void convertToGrayscale(BufferedImage image) {
-        int color, red, green, blue;
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                color = image.getRGB(i, j);
+    private enum Grayscale {
+        GRAY, COLORED, UNKNOWN
+    }
 
-                // ignore the alpha element as it is empty (24bit channel)
-                red = (color >> 16) & 255;
-                green = (color >> 8) & 255;
-                blue = (color) & 255;
+    /**
+     * An operation applied on a band of rows, between fromRow (inclusive) and toRow (exclusive).
+     */
+    private interface RowsOperation {
+        boolean apply(int fromRow, int toRow);
+    }
 
-                final int lum = (int) (0.2126 * red + 0.7152 * green + 0.0722 * blue);
+    /**
+     * Task that applies an operation on a band of rows, splitting it in halves until it is at most bandHeight rows high.
+     */
+    private static class BandTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
 
-                color = (lum << 16) + (lum << 8) + lum; // red | green | blue
+        private final int fromRow;
+        private final int toRow;
+        private final int bandHeight;
+        private final RowsOperation operation;
+
+        BandTask(int fromRow, int toRow, int bandHeight, RowsOperation operation) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandHeight = bandHeight;
+            this.operation = operation;
+        }
 
-                image.setRGB(i, j, color);
+        @Override
+        protected Boolean compute() {
+            if (toRow - fromRow <= bandHeight) {
+                return operation.apply(fromRow, toRow);
             }
+            int middleRow = (fromRow + toRow) >>> 1;
+            BandTask lower = new BandTask(middleRow, toRow, bandHeight, operation);
+            lower.fork();
+            boolean upperResult = new BandTask(fromRow, middleRow, bandHeight, operation).compute();
+            return lower.join() && upperResult;
+        }
+    }
+
+    /**
+     * The rows of the original image, as seen by a single band. Depending on the source, a row is either read in place
+     * from {@link #sourcePixels}, or copied as BGR samples into {@link #row}. The rows of a mapped file of gray levels
+     * are only read by {@link #fetchGray(int, boolean, byte[], int)}, straight into the gray levels.
+     */
+    private class SourceRows {
+        private byte[] row;
+        private ByteBuffer mappedRows;
+        private int[] rgbRow;
+
+        /**
+         * The gray levels of the pixel values of a mapped file of gray levels, or null if the rows are BGR samples.
+         */
+        private final byte[] grayLevels = mappedHeader == null ? null : mappedHeader.getGrayLevels();
+
+        SourceRows() {
+            if (sourcePixels != null) {
+                row = sourcePixels;
+            } else {
+                row = grayLevels == null ? new byte[width * 3] : null;
+                if (mappedPixels != null) {
+                    // every band needs its own view, as the position of a buffer cannot be shared between threads
+                    mappedRows = mappedPixels.duplicate();
+                } else {
+                    // fall back on getRGB for any other layout, one row at a time
+                    rgbRow = new int[width];
+                }
+            }
+        }
+
+        /**
+         * @param y the row of the image, 0 being the top one
+         * @return the index in {@link #row} of the blue sample of the first pixel of the row
+         */
+        int fetch(int y) {
+            if (row == sourcePixels) {
+                return sourceOffset + y * sourceScanlineStride;
+            }
+            if (mappedRows != null) {
+                positionMappedRow(y);
+                mappedRows.get(row, 0, width * 3);
+            } else {
+                originalImage.getRGB(0, y, width, 1, rgbRow, 0, width);
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    int rgb = rgbRow[x];
+                    row[i] = (byte) rgb;
+                    row[i + 1] = (byte) (rgb >> 8);
+                    row[i + 2] = (byte) (rgb >> 16);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Method that stores the gray levels of a row, see {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)}.
+         * The values of a file of gray levels are only looked up in {@link #grayLevels}, one byte per pixel.
+         *
+         * @param y          the row of the image, 0 being the top one
+         * @param luminance  see {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)}
+         * @param gray       the array receiving the gray levels
+         * @param grayOffset the index in gray of the first pixel of the row
+         * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+         */
+        boolean fetchGray(int y, boolean luminance, byte[] gray, int grayOffset) {
+            if (grayLevels == null) {
+                return toGray(row, fetch(y), width, luminance, gray, grayOffset);
+            }
+            positionMappedRow(y);
+            ImageFileReading.readGrayRow(mappedHeader, mappedRows, gray, grayOffset);
+            return true;
+        }
+
+        private void positionMappedRow(int y) {
+            // the rows of a BMP file are usually stored from the bottom of the image to its top
+            int fileRow = mappedHeader.isTopDown() ? y : height - 1 - y;
+            mappedRows.position(mappedPixels.position() + fileRow * mappedHeader.getRowStride());
         }
     }
 }
@@ -1,21 +1,61 @@
 package com.cpirvu;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 
 /**
- * Class that deals with reading images from the local file system.
+ * Class that deals with reading images from the local file system, or from the bytes of a file already in memory.
  */
 public class ImageFileReading extends ImageFileExecutionStep {
     public static String FORMAT = "This image file reading step took %d milliseconds.";
+
+    /**
+     * The files shorter than this are read into a byte array of the {@link RasterPool} of the calling thread instead of
+     * being memory mapped: a mapping is only released when the garbage collector finds its buffer unreachable, so the
+     * mappings of a batch of small files would pile up until then, and for a small file it costs more than a copy.
+     */
+    static int MAX_READ_SIZE = 4 * 1024 * 1024;
     private String filePath;
     private File file;
+
+    /**
+     * The content of a BMP file received in memory, or null if the image is read from {@link #file} or {@link #filePath}.
+     */
+    private byte[] bytes;
     private BufferedImage image;
 
     /**
-     * @param path the path of the file containing a 24bit BMP picture.
+     * The header of the file, if it is an uncompressed image that was memory mapped, or null otherwise: a 24bit or an
+     * 8bit gray BMP file ({@link BmpHeader}), or a binary PGM or PBM file ({@link PnmHeader}).
+     */
+    private RasterHeader header;
+
+    /**
+     * Read-only view of the memory mapped file (or of {@link #pooledBytes}, or of {@link #bytes}), positioned at its
+     * first pixel row, or null if the file was decoded into {@link #image} instead.
+     */
+    private ByteBuffer pixels;
+
+    /**
+     * The array of the {@link RasterPool} of the reading thread holding the content of a file shorter than
+     * {@link #MAX_READ_SIZE}, while its pixels are exposed, or null.
+     */
+    private byte[] pooledBytes;
+
+    /**
+     * @param path the path of the file containing a BMP, PGM or PBM picture.
      * @throws IllegalArgumentException if the path is empty or null.
      */
     ImageFileReading(String path) {
@@ -26,7 +66,7 @@ public class ImageFileReading extends ImageFileExecutionStep {
     }
 
     /**
-     * @param file the file containing a 24bit BMP picture.
+     * @param file the file containing a BMP, PGM or PBM picture.
      * @throws IllegalArgumentException if the file is null.
      */
     ImageFileReading(File file) {
@@ -36,11 +76,59 @@ public class ImageFileReading extends ImageFileExecutionStep {
         this.file = file;
     }
 
+    /**
+     * @param bytes the content of a file containing a BMP, PGM or PBM picture, which is read without copying it.
+     * @throws IllegalArgumentException if the content is null.
+     */
+    ImageFileReading(byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Input bytes are null!");
+        }
+        this.bytes = bytes;
+    }
+
+    /**
+     * If the file was memory mapped, the image is only decoded from {@link #pixels} when this is first called.
+     *
+     * @return the image read from the file.
+     */
     @Override
     public BufferedImage getImage() {
+        if (image == null && pixels != null) {
+            image = decodeMappedImage();
+        }
         return image;
     }
 
+    public RasterHeader getHeader() {
+        return header;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the array holding the content of a small file, which must be given back to the {@link RasterPool} of the
+     * reading thread once its pixels are no longer used, or null if the file was mapped or decoded
+     */
+    byte[] getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return the whole content of the file if it was memory mapped or read (or of the given bytes), from its first
+     * byte, or null if it was decoded
+     */
+    ByteBuffer getContent() {
+        if (pixels == null) {
+            return null;
+        }
+        ByteBuffer content = pixels.duplicate();
+        content.position(0);
+        return content;
+    }
+
     @Override
     public void printProcessingTime() {
         printProcessingTime(FORMAT);
@@ -49,39 +137,203 @@ public class ImageFileReading extends ImageFileExecutionStep {
     /**
      * This method opens the file at the given path {@link #filePath} or uses the given {@link #file} and tries to
      * read an image into the BufferedImage {@link #image}.
-     * The input file must have the extension bmp, otherwise this will fail.
+     * The format is found from the first bytes of the file, whatever its extension. An uncompressed 24bit BMP file,
+     * an uncompressed 8bit BMP file with a gray palette and a binary PGM or PBM file are not decoded, but memory
+     * mapped (or read, if shorter than {@link #MAX_READ_SIZE}) and exposed through {@link #getPixels()}, see
+     * {@link #getHeader()}. Any other BMP file is decoded with
+     * {@link ImageIO}, and must hold a 24bit image. A file of any other format is rejected, even if {@link ImageIO}
+     * could decode it.
+     * <p>
+     * The content given as {@link #bytes} is handled the same way, its pixels being exposed straight from the array.
      */
     @Override
     public void execute() {
-        File file;
-        if (this.file == null) {
-            file = new File(filePath);
+        File file = null;
+        String description;
+        if (bytes != null) {
+            description = "The image";
         } else {
-            file = this.file;
-        }
-
-        String extension = "";
-        int i = file.getPath().lastIndexOf('.');
-        if (i > 0) { // get the extension
-            extension = file.getPath().substring(i + 1);
-        }
-        if (extension.equals("bmp")) {
-            setFinishedSuccessfully(true);
-        } else {
-            System.err.println("The file at " + file.getPath() + " does not have the extension bmp!");
-            setFinishedSuccessfully(false);
-            return;
+            if (this.file == null) {
+                file = new File(filePath);
+            } else {
+                file = this.file;
+            }
+            description = "The file at " + file.getPath();
         }
+        setFinishedSuccessfully(true);
 
         try {
-            image = ImageIO.read(file);
+            ByteBuffer content = bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : readOrMap(file);
+            if (exposePixels(content)) {
+                return;
+            }
+            byte[] inMemory = bytes != null ? bytes : pooledBytes;
+            if (!BmpHeader.hasSignature(content)) {
+                image = null;
+            } else if (inMemory != null) {
+                image = decode(new ByteArrayInputStream(inMemory, 0, content.limit()));
+            } else {
+                image = decode(file);
+            }
+            // the content of a decoded file is no longer needed
+            RasterPool.current().release(pooledBytes);
+            pooledBytes = null;
+            if (image == null) {
+                System.err.println(description + " could not be decoded!");
+                setFinishedSuccessfully(false);
+                return;
+            }
             if (image.getColorModel().getPixelSize() != 24) {
-                System.err.println("The file at " + file.getPath() + " is not using a 24 bit channel!");
+                System.err.println(description + " is not using a 24 bit channel!");
+                RasterPool.current().release(image);
+                image = null;
                 setFinishedSuccessfully(false);
                 return;
             }
         } catch (IOException ex) {
             ex.printStackTrace();
+            RasterPool.current().release(pooledBytes);
+            pooledBytes = null;
+            setFinishedSuccessfully(false);
+        }
+    }
+
+    /**
+     * Method that decodes the given file with {@link ImageIO}, into an image of the {@link RasterPool} of the calling
+     * thread when the image has a standard type. The image is the same as the one returned by {@link ImageIO#read(File)}.
+     *
+     * @param input the file to decode, or a stream of its content
+     * @return the decoded image, or null if no reader can decode the file
+     * @throws IOException if the file cannot be read or decoded
+     */
+    private static BufferedImage decode(Object input) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // ImageIO.read decodes into the first type offered by the reader, so the pooled image must have it too
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                if (types != null && types.hasNext()) {
+                    int type = types.next().getBufferedImageType();
+                    if (type != BufferedImage.TYPE_CUSTOM) {
+                        param.setDestination(RasterPool.current().acquireImage(reader.getWidth(0), reader.getHeight(0), type));
+                    }
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Method that reads the given file into {@link #pooledBytes} if it is shorter than {@link #MAX_READ_SIZE}, or
+     * memory maps it otherwise, only its first {@link Integer#MAX_VALUE} bytes if it is longer, the most a buffer can
+     * hold.
+     *
+     * @param file the file to read
+     * @return a read-only view of the content of the file
+     * @throws IOException if the file cannot be opened, read or mapped
+     */
+    private ByteBuffer readOrMap(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAX_READ_SIZE) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+            }
+            pooledBytes = RasterPool.current().acquireBytes((int) size);
+            ByteBuffer content = ByteBuffer.wrap(pooledBytes);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // keep reading until the array is full or the file ends
+            }
+            content.flip();
+            return content.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Method that exposes the pixels of the given content through {@link #getPixels()}, if it is an uncompressed
+     * image, as recognized by the first bytes of {@link BmpHeader} or {@link PnmHeader}.
+     *
+     * @param content the whole content of the file
+     * @return true if the pixels are exposed, false if the content must be decoded instead
+     */
+    private boolean exposePixels(ByteBuffer content) {
+        RasterHeader header = BmpHeader.read(content);
+        if (header == null) {
+            header = PnmHeader.read(content);
+        }
+        if (header == null || content.limit() < header.getPixelOffset() + (long) header.getRowStride() * header.getHeight()) {
+            return false;
+        }
+        content.position(header.getPixelOffset());
+        this.header = header;
+        this.pixels = content;
+        return true;
+    }
+
+    /**
+     * Method that copies the rows of {@link #pixels} into a 24bit BGR image of the {@link RasterPool} of the calling
+     * thread, the way {@link ImageIO} would decode a 24bit BMP file. The gray levels of the other files are copied to
+     * the three samples of each pixel.
+     *
+     * @return the decoded image
+     */
+    private BufferedImage decodeMappedImage() {
+        int width = header.getWidth();
+        int height = header.getHeight();
+        BufferedImage decoded = RasterPool.current().acquireImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData();
+        ByteBuffer rows = pixels.duplicate();
+        byte[] gray = header.getGrayLevels() == null ? null : new byte[width];
+        for (int y = 0; y < height; y++) {
+            int fileRow = header.isTopDown() ? y : height - 1 - y;
+            rows.position(pixels.position() + fileRow * header.getRowStride());
+            if (gray == null) {
+                rows.get(data, y * width * 3, width * 3);
+                continue;
+            }
+            readGrayRow(header, rows, gray, 0);
+            for (int x = 0, i = y * width * 3; x < width; x++, i += 3) {
+                data[i] = data[i + 1] = data[i + 2] = gray[x];
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Method that reads a row of 8 or 1 bit pixels and converts it to gray levels.
+     *
+     * @param header     the header of a file of gray levels, see {@link RasterHeader#getGrayLevels()}
+     * @param row        the buffer positioned at the start of the row, and moved past it
+     * @param gray       the array receiving the gray levels
+     * @param grayOffset the index in gray of the first pixel of the row
+     */
+    static void readGrayRow(RasterHeader header, ByteBuffer row, byte[] gray, int grayOffset) {
+        int width = header.getWidth();
+        byte[] grayLevels = header.getGrayLevels();
+        if (header.getBitCount() == 8) {
+            row.get(gray, grayOffset, width);
+            for (int x = grayOffset; x < grayOffset + width; x++) {
+                gray[x] = grayLevels[gray[x] & 0xff];
+            }
+            return;
+        }
+        int out = grayOffset;
+        for (int x = 0; x < width; x += 8) {
+            int bits = row.get();
+            for (int bit = 0; bit < 8 && x + bit < width; bit++) {
+                gray[out++] = grayLevels[(bits >> (7 - bit)) & 1];
+            }
         }
     }
 }
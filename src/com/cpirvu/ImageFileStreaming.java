@@ -0,0 +1,307 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Class that binarizes a 24bit BMP file straight into a 1bit BMP file, without decoding the whole image in memory.
+ * The pixel rows are read in the order they are stored, through a buffer of a few rows, and each binarized row is
+ * written to the output file as soon as it is ready. The memory needed depends only on the width of the image.
+ * <p>
+ * It has the same result as {@link ImageFileReading}, {@link ImageBinarization} and {@link ImageFileWriting} executed
+ * one after the other, but it only handles uncompressed 24bit BMP files and global thresholds. For any other file,
+ * or if {@link ImageBinarization#LOCAL_METHOD} is set, {@link #isStreamable()} is false after {@link #execute()} and
+ * the regular steps must be used instead.
+ */
+public class ImageFileStreaming extends ExecutionStep {
+    public static String FORMAT = "This image file streaming step took %d milliseconds.";
+
+    /**
+     * The input rows are read in chunks of about this many bytes (but at least a row at a time).
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private File inputFile;
+    private File outputFile;
+
+    /**
+     * Boolean stating whether or not the input file is a BMP file that can be streamed.
+     */
+    private boolean streamable;
+
+    /**
+     * The threshold used for this image, either {@link ImageBinarization#THRESHOLD} or the one computed by Otsu's method.
+     */
+    private int threshold;
+
+    /**
+     * The number of pixels of the input image, known once it is found to be streamable.
+     */
+    private long pixelCount;
+
+    /**
+     * @param inputFile  the file containing a 24bit BMP picture.
+     * @param outputFile the file containing the location to save the binary image at.
+     * @throws IllegalArgumentException if any of the files is null.
+     */
+    ImageFileStreaming(File inputFile, File outputFile) {
+        super(System.currentTimeMillis());
+        if (inputFile == null || outputFile == null) {
+            throw new IllegalArgumentException("Input and output files cannot be null!");
+        }
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+    }
+
+    public boolean isStreamable() {
+        return streamable;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    @Override
+    public void printProcessingTime() {
+        if (ImageBinarization.AUTO_THRESHOLD) {
+            printProcessingTime(FORMAT.replace(".", " (automatic threshold " + threshold + ")."));
+        } else {
+            printProcessingTime(FORMAT);
+        }
+    }
+
+    /**
+     * This method binarizes the {@link #inputFile} into the {@link #outputFile}.
+     * Just like {@link ImageBinarization#execute()}, the rows are first binarized assuming the image is grayscale.
+     * If a colored pixel is found and {@link ImageBinarization#FORCE} is set, the input file is read once more, this
+     * time binarizing the luminance. The rows are written to a hidden temporary file next to the output file, which
+     * replaces it only once the image is binarized, so a failure leaves any existing output file untouched.
+     * If {@link ImageBinarization#AUTO_THRESHOLD} is set, the input file is first read only to build the histogram of
+     * its gray levels, and read once more to binarize it with the threshold computed from the histogram.
+     */
+    @Override
+    public void execute() {
+        if (ImageBinarization.LOCAL_METHOD != null) {
+            return; // the local thresholds are only computed by the regular binarization step
+        }
+        if (!outputFile.getName().endsWith(".bmp")) {
+            return; // the binary image is saved in another format by the regular writing step
+        }
+
+        try (FileChannel input = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer headerBuffer = ByteBuffer.allocate(BmpHeader.SIZE);
+            while (headerBuffer.hasRemaining() && input.read(headerBuffer) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            headerBuffer.flip();
+            BmpHeader header = BmpHeader.read(headerBuffer);
+            // the format is found from the first bytes, as by the regular reading step, whatever the extension
+            if (header == null || header.getBitCount() != 24
+                    || input.size() < header.getPixelOffset() + (long) header.getRowStride() * header.getHeight()) {
+                return; // not streamable, the regular steps will decode it
+            }
+            streamable = true;
+            pixelCount = (long) header.getWidth() * header.getHeight();
+
+            // a colored pixel found in a sample of the rows saves the first pass, and the output file if not forced
+            boolean colored = hasColoredSample(input, header);
+            if (colored && !ImageBinarization.FORCE) {
+                System.err.println("Input image is not grayscale! Consider using -F argument to also convert to grayscale if needed!");
+                return;
+            }
+            boolean binarized = false;
+            Path temporaryFile = Files.createTempFile(outputFile.getAbsoluteFile().getParentFile().toPath(),
+                    "." + outputFile.getName(), ".tmp");
+            try {
+                try (FileChannel output = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                    ByteBuffer binaryHeader = BmpHeader.binaryHeader(header.getWidth(), header.getHeight());
+                    while (binaryHeader.hasRemaining()) {
+                        output.write(binaryHeader);
+                    }
+                    if (ImageBinarization.AUTO_THRESHOLD) {
+                        int[] histogram = new int[256];
+                        boolean luminance = colored || !streamRows(input, header, false, histogram, null);
+                        if (luminance && ImageBinarization.FORCE) {
+                            Arrays.fill(histogram, 0);
+                            streamRows(input, header, true, histogram, null);
+                        }
+                        binarized = !luminance || ImageBinarization.FORCE;
+                        if (binarized) {
+                            threshold = ImageBinarization.otsuThreshold(histogram);
+                            streamRows(input, header, luminance, null, output);
+                        }
+                    } else {
+                        threshold = ImageBinarization.THRESHOLD;
+                        binarized = !colored && streamRows(input, header, false, null, output);
+                        if (!binarized && ImageBinarization.FORCE) {
+                            binarized = streamRows(input, header, true, null, output);
+                        }
+                    }
+                }
+                if (binarized) {
+                    replaceOutputFile(temporaryFile);
+                }
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+
+            if (binarized) {
+                setFinishedSuccessfully(true);
+            } else {
+                System.err.println("Input image is not grayscale! Consider using -F argument to also convert to grayscale if needed!");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param temporaryFile the complete binary image, moved to the {@link #outputFile}
+     * @throws IOException if the file cannot be moved
+     */
+    private void replaceOutputFile(Path temporaryFile) throws IOException {
+        try {
+            Files.move(temporaryFile, outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Method that reads {@link ImageBinarization#SAMPLED_ROWS} rows spread over the input and checks some of their
+     * pixels, see {@link ImageBinarization#hasColoredSample(byte[], int, int)}.
+     *
+     * @param input  the input file
+     * @param header the header of the input file
+     * @return true if a sampled pixel is not gray, false if the image may be grayscale
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean hasColoredSample(FileChannel input, BmpHeader header) throws IOException {
+        int width = header.getWidth();
+        int height = header.getHeight();
+        RasterPool pool = RasterPool.current();
+        byte[] row = pool.acquireBytes(width * 3);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(row, 0, width * 3);
+            int sampledRows = Math.min(height, ImageBinarization.SAMPLED_ROWS);
+            for (int i = 0; i < sampledRows; i++) {
+                long position = header.getPixelOffset() + (i * 2L + 1) * height / (2 * sampledRows) * header.getRowStride();
+                buffer.clear().limit(width * 3);
+                while (buffer.hasRemaining()) {
+                    int read = input.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    position += read;
+                }
+                if (ImageBinarization.hasColoredSample(row, 0, width)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            pool.release(row);
+        }
+    }
+
+    /**
+     * Method that reads all the pixel rows of the input and either counts their gray levels in the given histogram,
+     * or writes them binarized to the output, using {@link #threshold}.
+     *
+     * @param input     the input file, positioned anywhere
+     * @param header    the header of the input file
+     * @param luminance see {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)}
+     * @param histogram the histogram receiving the gray levels, or null to write the rows to the output
+     * @param output    the output file, already containing the binary header, or null to fill the histogram
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+     * @throws IOException if reading or writing fails
+     */
+    private boolean streamRows(FileChannel input, BmpHeader header, boolean luminance, int[] histogram,
+                               FileChannel output) throws IOException {
+        int width = header.getWidth();
+        int height = header.getHeight();
+        int rowStride = header.getRowStride();
+        int rowsPerRead = Math.max(1, READ_BUFFER_SIZE / rowStride);
+        RasterPool pool = RasterPool.current();
+        ByteBuffer rows = ByteBuffer.wrap(pool.acquireBytes(rowsPerRead * rowStride));
+        byte[] grayRow = pool.acquireBytes(width);
+        int binaryRowStride = BmpHeader.binaryRowStride(width);
+        ByteBuffer binaryRow = ByteBuffer.wrap(pool.acquireBytes(binaryRowStride));
+        try {
+            return streamRows(input, header, luminance, histogram, output, rows, grayRow, binaryRow);
+        } finally {
+            pool.release(rows.array());
+            pool.release(grayRow);
+            pool.release(binaryRow.array());
+        }
+    }
+
+    /**
+     * Method that does the work of {@link #streamRows(FileChannel, BmpHeader, boolean, int[], FileChannel)} with
+     * the given buffers, taken from the {@link RasterPool} of the calling thread. Every byte of the buffers that is
+     * used is overwritten first (or cleared), so they can have any content.
+     */
+    private boolean streamRows(FileChannel input, BmpHeader header, boolean luminance, int[] histogram,
+                               FileChannel output, ByteBuffer rows, byte[] grayRow, ByteBuffer binaryRow)
+            throws IOException {
+        int width = header.getWidth();
+        int height = header.getHeight();
+        int rowStride = header.getRowStride();
+        int rowsPerRead = rows.capacity() / rowStride;
+        int binaryRowStride = binaryRow.capacity();
+        // the padding of the binary rows is never written by the packing, but it must be zero in the file
+        Arrays.fill(binaryRow.array(), (width + 7) / 8, binaryRowStride, (byte) 0);
+
+        RowKernel kernel = ImageBinarization.ROW_KERNEL;
+        input.position(header.getPixelOffset());
+        for (int fileRow = 0; fileRow < height; fileRow += rowsPerRead) {
+            int rowCount = Math.min(rowsPerRead, height - fileRow);
+            rows.clear().limit(rowCount * rowStride);
+            while (rows.hasRemaining()) {
+                if (input.read(rows) < 0) {
+                    throw new IOException("Unexpected end of file " + inputFile.getPath());
+                }
+            }
+
+            for (int i = 0; i < rowCount; i++) {
+                if (histogram == null && kernel != null) {
+                    if (!kernel.binarize(rows.array(), i * rowStride, width, luminance, threshold, binaryRow.array(), 0)) {
+                        return false;
+                    }
+                } else {
+                    if (!ImageBinarization.toGray(rows.array(), i * rowStride, width, luminance, grayRow, 0)) {
+                        return false;
+                    }
+                    if (histogram != null) {
+                        for (int x = 0; x < width; x++) {
+                            histogram[grayRow[x] & 0xff]++;
+                        }
+                        continue;
+                    }
+                    ImageBinarization.pack(grayRow, 0, width, threshold, binaryRow.array(), 0);
+                }
+                // the output is stored bottom-up, so a top-down input is written from the end of the file
+                int outputRow = header.isTopDown() ? height - 1 - (fileRow + i) : fileRow + i;
+                long position = BmpHeader.BINARY_HEADER_SIZE + (long) outputRow * binaryRowStride;
+                binaryRow.clear();
+                while (binaryRow.hasRemaining()) {
+                    position += output.write(binaryRow, position);
+                }
+            }
+        }
+        return true;
+    }
+}
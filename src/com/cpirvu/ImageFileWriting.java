@@ -2,24 +2,75 @@ package com.cpirvu;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Class that deals with writing images to the local file system.
+ * Class that deals with writing images to the local file system, or to a stream.
  */
 public class ImageFileWriting extends ImageFileExecutionStep {
     public static String FORMAT = "This image file writing step took %d milliseconds.";
+
+    /**
+     * Zeros used to pad the rows of a 1bit BMP to a multiple of 4 bytes.
+     */
+    private static final byte[] ROW_PADDING = new byte[3];
+
+    /**
+     * The rows of a PBM file are inverted into a buffer of about this many bytes before being written.
+     */
+    private static final int PBM_BUFFER_SIZE = 64 * 1024;
+
     private BufferedImage image;
     private File file;
 
+    /**
+     * The stream the image is written to, or null if it is saved in {@link #file}. It is not closed by this step.
+     */
+    private OutputStream output;
+
+    /**
+     * If true, the image is written as a binary PBM file instead of a BMP file.
+     */
+    private boolean pbm;
+
     /**
      * @param image the image to be written.
-     * @param file  the file containing the location to save the image at.
+     * @param file  the file containing the location to save the image at, as a PBM file if its extension is pbm.
      */
     ImageFileWriting(BufferedImage image, File file) {
         this.image = image;
         this.file = file;
+        this.pbm = file.getName().endsWith(".pbm");
+    }
+
+    /**
+     * @param image  the image to be written.
+     * @param output the stream to write the image to, as a BMP file.
+     */
+    ImageFileWriting(BufferedImage image, OutputStream output) {
+        this(image, output, false);
+    }
+
+    /**
+     * @param image  the image to be written.
+     * @param output the stream to write the image to.
+     * @param pbm    true to write a binary PBM file, false to write a BMP file.
+     */
+    ImageFileWriting(BufferedImage image, OutputStream output, boolean pbm) {
+        this.image = image;
+        this.output = output;
+        this.pbm = pbm;
     }
 
     @Override
@@ -33,15 +84,174 @@ public class ImageFileWriting extends ImageFileExecutionStep {
     }
 
     /**
-     * This method will write the image {@link #image} at the given location of file {@link #file}.
+     * This method will write the image {@link #image} at the given location of file {@link #file}, or to the given
+     * {@link #output}.
+     * A black and white {@link BufferedImage#TYPE_BYTE_BINARY} image is encoded directly from its raster, any other
+     * image is written with {@link ImageIO}. A file with the extension pbm gets a binary PBM file instead of a BMP one,
+     * and so does a stream if asked for.
      */
     @Override
     public void execute() {
         try {
-            ImageIO.write(image, "bmp", file);
+            if (pbm) {
+                if (!writePbmImage()) {
+                    System.err.println("Only a black and white image can be saved as PBM!");
+                    return;
+                }
+            } else if (!writeBinaryImage()) {
+                if (output != null) {
+                    ImageIO.write(image, "bmp", output);
+                } else {
+                    ImageIO.write(image, "bmp", file);
+                }
+            }
             setFinishedSuccessfully(true);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Method that writes {@link #image} as a 1bit BMP file with a single gathering write: the header, followed by the
+     * packed rows of the raster, from the bottom of the image to its top, each padded to a multiple of 4 bytes.
+     * The result is the same file {@link ImageIO} writes for such an image.
+     *
+     * @return true if the image was written, false if it is not a black and white TYPE_BYTE_BINARY image
+     * @throws IOException if the file cannot be written
+     */
+    private boolean writeBinaryImage() throws IOException {
+        if (binaryFileSize(image) < 0) {
+            return false;
+        }
+        Raster raster = image.getRaster();
+        MultiPixelPackedSampleModel sampleModel = (MultiPixelPackedSampleModel) raster.getSampleModel();
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int rowLength = (width + 7) >> 3;
+        int paddingLength = BmpHeader.binaryRowStride(width) - rowLength;
+
+        ByteBuffer[] buffers = new ByteBuffer[1 + height * (paddingLength == 0 ? 1 : 2)];
+        int i = 0;
+        buffers[i++] = BmpHeader.binaryHeader(width, height);
+        for (int y = height - 1; y >= 0; y--) {
+            buffers[i++] = ByteBuffer.wrap(data, y * scanlineStride, rowLength);
+            if (paddingLength != 0) {
+                buffers[i++] = ByteBuffer.wrap(ROW_PADDING, 0, paddingLength);
+            }
+        }
+
+        if (output != null) {
+            // the stream is left open for the caller
+            WritableByteChannel channel = Channels.newChannel(output);
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = BmpHeader.BINARY_HEADER_SIZE + (long) BmpHeader.binaryRowStride(width) * height;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method that writes {@link #image} as a binary PBM file: the header, followed by the packed rows of the raster,
+     * from the top of the image to its bottom. A PBM pixel is 1 for black, so the bits of each row are inverted, and
+     * the bits after the last pixel are cleared.
+     *
+     * @return true if the image was written, false if it is not a black and white TYPE_BYTE_BINARY image
+     * @throws IOException if the file cannot be written
+     */
+    private boolean writePbmImage() throws IOException {
+        if (binaryFileSize(image) < 0) {
+            return false;
+        }
+        if (output != null) {
+            // the stream is left open for the caller
+            writePbmImage(Channels.newChannel(output));
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writePbmImage(channel);
+        }
+        return true;
+    }
+
+    private void writePbmImage(WritableByteChannel channel) throws IOException {
+        Raster raster = image.getRaster();
+        int scanlineStride = ((MultiPixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = PnmHeader.binaryRowStride(width);
+        byte lastByteMask = (byte) (0xff << ((8 - (width & 7)) & 7));
+
+        RasterPool pool = RasterPool.current();
+        int rowsPerWrite = Math.max(1, Math.min(height, PBM_BUFFER_SIZE / rowLength));
+        byte[] rows = pool.acquireBytes(rowsPerWrite * rowLength);
+        try {
+            ByteBuffer header = PnmHeader.binaryHeader(width, height);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (int y = 0; y < height; y += rowsPerWrite) {
+                int rowCount = Math.min(rowsPerWrite, height - y);
+                for (int r = 0; r < rowCount; r++) {
+                    int in = (y + r) * scanlineStride;
+                    int out = r * rowLength;
+                    for (int i = 0; i < rowLength; i++) {
+                        rows[out + i] = (byte) ~data[in + i];
+                    }
+                    rows[out + rowLength - 1] &= lastByteMask;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(rows, 0, rowCount * rowLength);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } finally {
+            pool.release(rows);
+        }
+    }
+
+    /**
+     * @param image an image to write
+     * @return the size of the 1bit BMP file written for the given image, or -1 if it is not a black and white
+     * TYPE_BYTE_BINARY image and it is written by {@link ImageIO} instead, with a size known only once written
+     */
+    static long binaryFileSize(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (image.getType() != BufferedImage.TYPE_BYTE_BINARY
+                || !(raster.getSampleModel() instanceof MultiPixelPackedSampleModel)
+                || !(raster.getDataBuffer() instanceof DataBufferByte)
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0
+                || !isBlackAndWhite((IndexColorModel) image.getColorModel())) {
+            return -1;
+        }
+        MultiPixelPackedSampleModel sampleModel = (MultiPixelPackedSampleModel) raster.getSampleModel();
+        if (sampleModel.getPixelBitStride() != 1 || sampleModel.getDataBitOffset() != 0) {
+            return -1;
+        }
+        return BmpHeader.BINARY_HEADER_SIZE + (long) BmpHeader.binaryRowStride(image.getWidth()) * image.getHeight();
+    }
+
+    /**
+     * @param colorModel the color model of a TYPE_BYTE_BINARY image
+     * @return true if the color model maps index 0 to black and index 1 to white, the palette written by
+     * {@link BmpHeader#binaryHeader(int, int)}
+     */
+    private static boolean isBlackAndWhite(IndexColorModel colorModel) {
+        return colorModel.getMapSize() == 2 && colorModel.getRGB(0) == 0xff000000 && colorModel.getRGB(1) == 0xffffffff;
+    }
 }
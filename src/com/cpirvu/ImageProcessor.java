@@ -1,18 +1,57 @@
 package com.cpirvu;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class ImageProcessor {
+    /**
+     * The exit status when every file was processed successfully, or only the help was printed.
+     */
+    static final int EXIT_SUCCESS = 0;
+
+    /**
+     * The exit status when at least one of the files could not be processed.
+     */
+    static final int EXIT_FAILED_FILES = 1;
+
+    /**
+     * The exit status when the arguments are wrong.
+     */
+    static final int EXIT_WRONG_ARGUMENTS = 2;
+
+    /**
+     * The files of a directory are ordered largest first by windows of this many files, see
+     * {@link FileTraversal#largestFirst(Iterable, int)}.
+     */
+    private static final int SCHEDULING_WINDOW = 1024;
+
+    /**
+     * How long a stopped daemon (-W or -H) waits for the files in progress, the manifest and the report to be written.
+     */
+    private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 60;
+
+    /**
+     * Set in the daemon modes, counted down once everything is written after the daemon stopped.
+     */
+    private static volatile CountDownLatch daemonFinished;
+
     /**
      * File opened by the given input path.
      */
     private File file;
 
     /**
-     * If set to true and the {@link #file} is a directory, then this will use {@link #numberOfThreads} threads.
+     * If set to true, then this will use {@link #numberOfThreads} threads. If the {@link #file} is a directory, the files
+     * are processed in parallel, otherwise the single image is split between the threads.
      */
     private boolean multithreaded;
 
@@ -21,73 +60,482 @@ public class ImageProcessor {
      */
     private int numberOfThreads = 5;
 
+    /**
+     * If true (-M virtual), each file of a directory gets its own thread, a virtual thread on Java 21 or later, see
+     * {@link ThreadPerFileExecution}. A single file is split between as many threads as there are processors.
+     */
+    private boolean virtualThreads;
+
+    /**
+     * If true (-M auto), the number of files of a directory processed at the same time starts from the number of
+     * processors and is tuned from the throughput, up to {@link #maxThreads}, see {@link AdaptiveConcurrency}. A single
+     * file is split between as many threads as there are processors.
+     */
+    private boolean adaptive;
+    private int maxThreads = Math.min(255, Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The heap memory, in bytes, that the cycles of a directory processed by the [-M] threads may use at the same time,
+     * see {@link HeapBudget}. If not positive, {@link HeapBudget#defaultBudget()} is used.
+     */
+    private long heapBudget;
+
     /**
      * This is the value from 0 - 255 of which any pixel that with a brightness greater than the value will be converted to white,
      * and any pixel with a brightness less than this value will be converted to black. Default value is 127.
      */
     private int threshold = 127;
 
+    /**
+     * If true, the threshold of each image is computed automatically with Otsu's method, instead of {@link #threshold}.
+     */
+    private boolean autoThreshold;
+
+    /**
+     * If not null, the thresholds of a sweep: each image is binarized with every one of them, see
+     * {@link ImageBinarization#THRESHOLDS}.
+     */
+    private int[] thresholds;
+
+    /**
+     * If not null, each pixel gets its own threshold computed with this method from the window of
+     * {@link #localWindow} x {@link #localWindow} pixels around it, with the parameter {@link #localK}.
+     */
+    private ImageBinarization.LocalMethod localMethod;
+    private int localWindow = 25;
+    private double localK;
+
     /**
      * If true, the input images will also be converted to grayscale first (if needed).
      */
     private boolean force;
 
+    /**
+     * If true, the 24bit BMP files are binarized one row at a time, without decoding the whole image in memory.
+     */
+    private boolean streaming;
+
+    /**
+     * If true and the {@link #file} is a directory, the files are processed by an {@link ExecutionPipeline} having
+     * {@link #readers} reading threads, {@link #binarizers} binarization threads and {@link #writers} writing threads.
+     */
+    private boolean pipelined;
+
+    private int readers = 2;
+    private int binarizers = Runtime.getRuntime().availableProcessors();
+    private int writers = 2;
+
+    /**
+     * If not null, the {@link RunMetrics} are saved in this file at the end, as CSV if its extension is csv, or JSON.
+     */
+    private File reportFile;
+
+    /**
+     * How much of the progress is printed, see {@link EventLog.Verbosity}.
+     */
+    private EventLog.Verbosity verbosity = EventLog.Verbosity.STEPS;
+
+    /**
+     * Set if the arguments only asked for the help, so the application ends successfully without processing anything.
+     */
+    private boolean helpPrinted;
+
+    /**
+     * If true and the {@link #file} is a directory, the files that did not change since they were last binarized with
+     * the same settings are skipped, see {@link Manifest}.
+     */
+    private boolean incremental;
+
+    /**
+     * If true and the {@link #file} is a directory, the application keeps running after its files are processed,
+     * binarizing the new ones as they appear, see {@link WatchFolder}.
+     */
+    private boolean watching;
+
+    /**
+     * If true, the application is a server binarizing the images sent to it on the {@link #port}, with at most
+     * {@link #queueCapacity} requests waiting, see {@link BinarizationServer}. The {@link #file} is not used.
+     */
+    private boolean serving;
+    private int port = 8080;
+    private int queueCapacity = BinarizationServer.DEFAULT_QUEUE_CAPACITY;
+
     /**
      * Starting point of the application. Requires a specific form of the argument(s).
      *
      * @param args the CLI arguments.
      *             usage:
-     *             [-M &lt;numberOfThreads&gt;] - if present, the application will use numberOfThreads only if the given path is a directory.
+     *             [-M &lt;numberOfThreads&gt;] - if present, the application will use numberOfThreads. If the given path is a directory,
+     *             the files are processed in parallel, otherwise the binarization of the single image is split between the threads.
      *             If only the [-M] argument is present, the default number of threads is 5. If [-M] is not specified, the application will use only the main thread.
+     *             With [-M virtual], each file of a directory is processed by its own thread (a virtual thread on Java 21 or later), for slow
+     *             storage where the threads mostly wait for the disk. Only one file per processor is binarized at a time.
+     *             With [-M auto[:&lt;maxThreads&gt;]], the files of a directory are processed by one thread per processor at first, then the
+     *             number of threads is tuned from the megapixels binarized per second, up to maxThreads (default 4 per processor, at least 16).
+     *             [-B &lt;megabytes&gt;|&lt;percent&gt;%] - the heap memory that the [-M] threads may use at the same time for the files of a
+     *             directory, estimated from the header of each file before it is decoded (default 50% of the maximum heap). A file
+     *             waits until its memory is available, the largest ones being binarized one at a time by an additional thread.
+     *             With [-H], the same budget admits the bodies of the requests before they are read.
      *             [-T &lt;staticThreshold&gt;] - if present, the binarization algorithm will use the given static threshold.
      *             The [-T] argument must be followed by the static threshold. If [-T] is not specified, the default static threshold will be set to 127.
+     *             If the static threshold is 'auto', each image gets its own threshold, computed from its histogram with Otsu's method.
+     *             A list of thresholds and ranges, as in 100,127 or 100-160/20 (from 100 to 160 by 20), sweeps the thresholds: each image is read
+     *             and converted once, then saved once per threshold, as in image_T100_BINARIZED.bmp.
+     *             [-A &lt;method&gt;[:&lt;window&gt;[:&lt;k&gt;]]] - if present, each pixel gets its own threshold, computed from the mean and the
+     *             standard deviation of the gray levels in the window x window pixels around it. The method is 'sauvola' (default k 0.34)
+     *             or 'niblack' (default k -0.2), the window is an odd number of pixels (default 25). This replaces [-T].
      *             -P &lt;path&gt; - mandatory argument, the path can be either an image file or a directory containing image files.
+     *             The subdirectories are also processed, the hidden files and the files ending in _BINARIZED.bmp or _BINARIZED.pbm being skipped.
      *             The path can be relative or absolute (unix style). If containing spaces, it must be enclosed in double quotes.
-     *             !!! The files must have the extension BMP and contain 24bit images!
+     *             !!! The files must contain 24bit BMP images, 8bit BMP images of gray levels, or binary PGM or PBM images, whatever their
+     *             extension! The binary images of the files with the extension pgm, pbm or pnm are saved as PBM, the other ones as BMP.
+     *             If the path is a ZIP or TAR archive (extension zip or tar), its entries are binarized in memory by the [-M] threads (one per
+     *             processor by default) and their binary images are written, in the order of the entries, in a single archive of the same
+     *             format, as in images_BINARIZED.zip.
      *             [-F] if present, the input images will also be converted to grayscale first (if needed).
      *             If the input image (or any image from the directory) is not grayscale and this flag is not present, then the program will fail.
+     *             [-S] if present, the uncompressed 24bit BMP files are binarized one row at a time, straight into the output file, using
+     *             memory proportional only to the width of the images. Any other file is processed as usual.
+     *             [-L [&lt;readers&gt;:&lt;binarizers&gt;:&lt;writers&gt;]] - if present and the given path is a directory, the files are read,
+     *             binarized and written by separate groups of threads, connected by bounded queues. The default is 2 reading threads,
+     *             one binarization thread per processor and 2 writing threads. This replaces the [-M] threads for directories.
+     *             [-I] - if present and the given path is a directory, the files that did not change since they were last binarized with the
+     *             same settings are skipped. The files binarized are recorded in the file .binarization-manifest of the directory.
+     *             [-W] - if present and the given path is a directory, the application keeps running after the files of the directory are
+     *             processed, binarizing the new files as soon as they are completely written, until it is stopped with Ctrl+C. The time from
+     *             each new file to its binary image is printed. The new files are binarized by the [-M] threads (one by default).
+     *             [-H [&lt;port&gt;[:&lt;queue&gt;]]] - if present, the application is a server instead: a BMP file sent with POST to
+     *             http://host:port/binarize is binarized and sent back, with the optional parameters threshold=&lt;0-255&gt;|auto and force=true|false.
+     *             The default port is 8080. The requests are binarized by the [-M] threads (one per processor by default), at most queue more
+     *             wait (default 64) and the next ones are answered with 503. [-P] is not used. The server is stopped with Ctrl+C.
+     *             [-R &lt;reportFile&gt;] - if present, the percentiles of the durations of every step and the throughput of the whole run
+     *             are saved at the end in the given file, as CSV if its extension is csv, or as JSON otherwise.
+     *             [-V &lt;verbosity&gt;] - if present, sets how much of the progress is printed: 'quiet' prints only the failures and the
+     *             summaries, 'cycles' also prints every finished cycle and 'steps' (default) also prints every step of every cycle.
      *             <p>
      *             If the first argument is "help", the application will only print CLI usage info.
+     *             <p>
+     *             The exit status is 0 if every file was processed, 1 if any of them failed and 2 if the arguments are wrong.
      */
     public static void main(String[] args) {
+        int status = run(args);
+        if (status != EXIT_SUCCESS) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Method that does all the work of {@link #main(String[])}, returning after every file is processed.
+     *
+     * @param args the CLI arguments.
+     * @return {@link #EXIT_SUCCESS}, {@link #EXIT_FAILED_FILES} or {@link #EXIT_WRONG_ARGUMENTS}
+     */
+    private static int run(String[] args) {
         ImageProcessor imageProcessor = new ImageProcessor();
 
         // decode arguments and update the attributes of imageProcessor
         boolean continueExecution = imageProcessor.decodeArgs(args);
         if (!continueExecution) {
-            return;
+            return imageProcessor.helpPrinted ? EXIT_SUCCESS : EXIT_WRONG_ARGUMENTS;
         }
 
         // set the global static threshold to use
         ImageBinarization.THRESHOLD = imageProcessor.threshold;
+        ImageBinarization.AUTO_THRESHOLD = imageProcessor.autoThreshold;
+        ImageBinarization.THRESHOLDS = imageProcessor.thresholds;
+        ImageBinarization.LOCAL_METHOD = imageProcessor.localMethod;
+        ImageBinarization.LOCAL_WINDOW = imageProcessor.localWindow;
+        ImageBinarization.LOCAL_K = imageProcessor.localK;
 
         // set the 'convert to grayscale if needed' flag
         ImageBinarization.FORCE = imageProcessor.force;
 
-        if (imageProcessor.file.isFile()) {
+        // set how much of the progress is printed
+        EventLog.VERBOSITY = imageProcessor.verbosity;
+        if (ImageBinarization.ROW_KERNEL != null) {
+            EventLog.logFormat(EventLog.Verbosity.STEPS, "[Kernel] The rows are binarized by the %s kernel.",
+                    ImageBinarization.ROW_KERNEL.describe());
+        }
+
+        // set the 'binarize one row at a time' flag
+        ExecutionCycle.STREAMING = imageProcessor.streaming;
+        if (imageProcessor.streaming && ImageBinarization.isSweep()) {
+            System.err.println("A threshold sweep is not streamed, the [-S] argument is ignored.");
+        }
+
+        RunMetrics.start();
+        if (imageProcessor.serving) {
+            if (!serve(imageProcessor)) {
+                return EXIT_WRONG_ARGUMENTS;
+            }
+        } else if (imageProcessor.file.isFile() && ArchiveBatch.isArchive(imageProcessor.file)) {
+            // each entry is binarized by a single thread, the entries being binarized in parallel
+            int binarizers = imageProcessor.multithreaded ? imageProcessor.numberOfThreads : Runtime.getRuntime().availableProcessors();
+            new ArchiveBatch(imageProcessor.file, binarizers).process();
+            RasterPool.printStatistics();
+        } else if (imageProcessor.file.isFile()) {
             if (imageProcessor.multithreaded) {
-                System.err.println("Argument path is a single file, rolling back to single-threaded version.");
+                // a single file is binarized by splitting the image between the threads
+                ImageBinarization.PARALLELISM = imageProcessor.numberOfThreads;
             }
             new ExecutionCycle(imageProcessor.file).run();
         } else if (imageProcessor.file.isDirectory()) {
-            File[] listOfFiles = imageProcessor.file.listFiles(file -> !file.isHidden()); //lambda filter used to ignore hidden files
-            if (listOfFiles == null || listOfFiles.length == 0) {
+            // the whole tree is walked lazily, the larger images of each window of files being processed first
+            FileTraversal traversal = new FileTraversal(imageProcessor.file);
+            if (!imageProcessor.watching && !traversal.hasFiles()) {
                 System.err.println("Directory is empty!");
                 printError(args);
-                return;
+                return EXIT_WRONG_ARGUMENTS;
+            }
+            Manifest manifest = null;
+            if (imageProcessor.incremental) {
+                manifest = new Manifest(imageProcessor.file, ImageBinarization.describeSettings());
+                manifest.load();
+                ExecutionCycle.MANIFEST = manifest;
             }
-            if (!imageProcessor.multithreaded) {
+            WatchFolder watch = null;
+            if (imageProcessor.watching) {
+                // registered before the files already there are processed, so that none added meanwhile is missed
+                try {
+                    watch = new WatchFolder(imageProcessor.file,
+                            imageProcessor.multithreaded ? imageProcessor.numberOfThreads : 1, manifest);
+                } catch (IOException e) {
+                    System.err.println("Could not watch the directory at " + imageProcessor.file.getPath() + "!");
+                    e.printStackTrace();
+                    return EXIT_WRONG_ARGUMENTS;
+                }
+            }
+            Iterable<File> outdated = manifest == null ? traversal : manifest.filterOutdated(traversal);
+            Iterable<File> files = FileTraversal.largestFirst(outdated, SCHEDULING_WINDOW);
+            if (imageProcessor.pipelined) {
+                new ExecutionPipeline(imageProcessor.readers, imageProcessor.binarizers, imageProcessor.writers)
+                        .process(files);
+            } else if (!imageProcessor.multithreaded) {
                 System.err.println("Argument path is a directory. We recommend using [-M] argument for running this in multi-threading when processing multiple files.");
-                for (File file : listOfFiles) {
+                for (File file : files) {
                     new ExecutionCycle(file).run();
                 }
+            } else if (imageProcessor.virtualThreads) {
+                if (!ThreadPerFileExecution.isVirtual()) {
+                    System.err.println("Virtual threads need Java 21 or later, using a pool of platform threads instead.");
+                }
+                HeapBudget budget = new HeapBudget(imageProcessor.getHeapBudget(), imageProcessor.numberOfThreads);
+                new ThreadPerFileExecution(imageProcessor.numberOfThreads, ThreadPerFileExecution.DEFAULT_FILES_IN_FLIGHT,
+                        budget).process(files);
+                budget.printStatistics();
             } else {
-                ThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(imageProcessor.numberOfThreads);
-                for (File file : listOfFiles) {
-                    executor.execute(new ExecutionCycle(file)); //could use submit() method, but we're not validating any result or care about the execution status
+                int poolThreads = imageProcessor.adaptive ? imageProcessor.maxThreads : imageProcessor.numberOfThreads;
+                // the large files are the ones above the share of a processor, however many threads the pool may use
+                HeapBudget budget = new HeapBudget(imageProcessor.getHeapBudget(), imageProcessor.numberOfThreads);
+                budget.limitPools(poolThreads);
+                AdaptiveConcurrency concurrency = imageProcessor.adaptive
+                        ? new AdaptiveConcurrency(imageProcessor.numberOfThreads, imageProcessor.maxThreads) : null;
+                processInParallel(FileTraversal.largestFirstSized(outdated, SCHEDULING_WINDOW), poolThreads, budget,
+                        concurrency);
+                budget.printStatistics();
+                if (concurrency != null) {
+                    concurrency.printStatistics();
                 }
-                executor.shutdown(); //asking for executor shutdown after all tasks are done
             }
+            if (watch != null) {
+                watch(watch, imageProcessor.file);
+            }
+            RasterPool.printStatistics();
+            if (manifest != null) {
+                manifest.save();
+                manifest.printStatistics();
+            }
+        }
+
+        // the summaries must be printed before the report is written and the application ends
+        EventLog.flush();
+
+        if (imageProcessor.reportFile != null) {
+            try {
+                RunMetrics.writeReport(imageProcessor.reportFile);
+            } catch (IOException e) {
+                System.err.println("Could not save the report at " + imageProcessor.reportFile.getPath() + "!");
+                e.printStackTrace();
+            }
+        }
+        if (daemonFinished != null) {
+            daemonFinished.countDown();
+        }
+        return RunMetrics.FAILED_CYCLES.sum() == 0 ? EXIT_SUCCESS : EXIT_FAILED_FILES;
+    }
+
+    /**
+     * Method that binarizes the new files of the given directory as they appear, until the application is stopped
+     * (Ctrl+C, or a termination signal), see {@link #stopOnShutdown(Runnable)}.
+     *
+     * @param watch     the watch of the directory
+     * @param directory the directory
+     */
+    private static void watch(WatchFolder watch, File directory) {
+        stopOnShutdown(watch::stop);
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Watch] Watching %s for new image files, stop with Ctrl+C.",
+                directory.getPath());
+        watch.process();
+    }
+
+    /**
+     * Method that answers the requests of the clients until the application is stopped (Ctrl+C, or a termination
+     * signal), see {@link #stopOnShutdown(Runnable)}. The requests are binarized by the [-M] threads, one per
+     * processor by default.
+     *
+     * @param imageProcessor the decoded arguments
+     * @return false if the server could not start
+     */
+    private static boolean serve(ImageProcessor imageProcessor) {
+        int binarizers = imageProcessor.multithreaded ? imageProcessor.numberOfThreads : Runtime.getRuntime().availableProcessors();
+        BinarizationServer server;
+        try {
+            server = new BinarizationServer(imageProcessor.port, binarizers, imageProcessor.queueCapacity,
+                    imageProcessor.getHeapBudget());
+        } catch (IOException e) {
+            System.err.println("Could not listen to the port " + imageProcessor.port + "!");
+            e.printStackTrace();
+            return false;
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        stopOnShutdown(() -> {
+            server.stop();
+            stopped.countDown();
+        });
+        server.start();
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Server] Binarizing the BMP files sent with POST to http://localhost:%d%s,"
+                + " stop with Ctrl+C.", server.getAddress().getPort(), BinarizationServer.PATH);
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.printStatistics();
+        RasterPool.printStatistics();
+        return true;
+    }
+
+    /**
+     * Method that calls the given action when the application is stopped, then keeps the application alive until
+     * {@link #run(String[])} has saved the manifest and the report, for at most {@link #SHUTDOWN_TIMEOUT_IN_SECONDS}.
+     *
+     * @param stop the action making the daemon return
+     */
+    private static void stopOnShutdown(Runnable stop) {
+        daemonFinished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop.run();
+            try {
+                daemonFinished.await(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "daemon-shutdown"));
+    }
+
+    /**
+     * Method that processes the given files on a work-stealing pool of the given number of threads, and returns after
+     * all of them are processed. The files are handed to the pool in their order, a few more than the number of
+     * threads at a time, so that the order (largest first) is kept and the files are not all held in memory.
+     * <p>
+     * Each file is handed to the pool only once the given budget admits its estimate, see {@link HeapBudget}. The
+     * large files are handed instead to a single thread of their own, the large lane, created with the first of them.
+     * <p>
+     * If a concurrency is given, it decides how many of the threads of the pool are used, see {@link AdaptiveConcurrency}.
+     *
+     * @param files           the files to process, with their estimates
+     * @param numberOfThreads the number of threads of the pool
+     * @param budget          the heap budget of the cycles
+     * @param concurrency     the tuned number of cycles running at the same time, or null to use all the threads
+     */
+    static void processInParallel(Iterable<FileTraversal.SizedFile> files, int numberOfThreads, HeapBudget budget,
+                                  AdaptiveConcurrency concurrency) {
+        ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+        ExecutorService largeLane = null;
+        Semaphore inFlight = new Semaphore(numberOfThreads * 2);
+        try {
+            for (FileTraversal.SizedFile sizedFile : files) {
+                File file = sizedFile.getFile();
+                long bytes = sizedFile.getHeapBytes();
+                if (budget.isLarge(bytes)) {
+                    if (largeLane == null) {
+                        largeLane = Executors.newSingleThreadExecutor(task -> new Thread(task, "large-lane"));
+                    }
+                    EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Heap Budget] %s needs about %d MB, it goes to the large lane.",
+                            file.getPath(), bytes >> 20);
+                    largeLane.execute(() -> {
+                        int permits = 0;
+                        try {
+                            permits = budget.admitLarge(bytes);
+                            runCycle(file);
+                            if (concurrency != null) {
+                                // the throughput measured by the windows includes the large files
+                                concurrency.addCompleted(sizedFile.getSize());
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            budget.release(permits);
+                        }
+                    });
+                    continue;
+                }
+                if (concurrency != null) {
+                    concurrency.acquire();
+                } else {
+                    inFlight.acquire();
+                }
+                int permits;
+                try {
+                    permits = budget.admit(bytes);
+                } catch (InterruptedException e) {
+                    release(concurrency, inFlight, 0);
+                    throw e;
+                }
+                pool.execute(() -> {
+                    try {
+                        runCycle(file);
+                    } finally {
+                        budget.release(permits);
+                        release(concurrency, inFlight, sizedFile.getSize());
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.shutdown(); //asking for pool shutdown after all tasks are done
+        if (largeLane != null) {
+            largeLane.shutdown();
+        }
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (largeLane != null) {
+                largeLane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void release(AdaptiveConcurrency concurrency, Semaphore inFlight, long pixels) {
+        if (concurrency != null) {
+            concurrency.release(pixels);
+        } else {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * @param file the file to binarize on the calling thread
+     */
+    private static void runCycle(File file) {
+        try {
+            new ExecutionCycle(file).run();
+        } catch (RuntimeException e) {
+            // a single broken file must not stop the others
+            e.printStackTrace();
+            RunMetrics.FAILED_CYCLES.increment();
         }
     }
 
@@ -104,19 +552,166 @@ public class ImageProcessor {
     private void printHelp() {
         System.out.println("usage:");
         System.out.println(
-                "   [-M <numberOfThreads>] - if present, the application will use numberOfThreads only if the given path is a directory.\n" +
+                "   [-M <numberOfThreads>] - if present, the application will use numberOfThreads.\n" +
+                        "       If the given path is a directory, the files are processed in parallel,\n" +
+                        "       otherwise the binarization of the single image is split between the threads.\n" +
                         "       If only the [-M] argument is present, the default number of threads is 5.\n" +
                         "       If [-M] is not specified, the application will use only the main thread.\n" +
+                        "       With [-M virtual], each file of a directory is processed by its own thread (a virtual thread on Java 21\n" +
+                        "       or later), for slow storage. Only one file per processor is binarized at a time.\n" +
+                        "       With [-M auto[:<maxThreads>]], the files of a directory are processed by one thread per processor at\n" +
+                        "       first, then the number of threads is grown or shrunk from the megapixels binarized per second, until\n" +
+                        "       the throughput stops improving, up to maxThreads (default 4 per processor, at least 16).\n" +
+                        "   [-B <megabytes>|<percent>%] - the heap memory that the [-M] threads may use at the same time for the\n" +
+                        "       files of a directory, estimated from the header of each file before it is decoded (default 50% of the\n" +
+                        "       maximum heap). A file waits until its memory is available, the largest ones being binarized one at a\n" +
+                        "       time by an additional thread, so that a few huge images cannot run the application out of memory.\n" +
+                        "       With [-H], the same budget admits the bodies of the requests before they are read.\n" +
                         "   [-T <staticThreshold>] - if present, the binarization algorithm will use the given static threshold.\n" +
                         "       The [-T] argument must be followed by the static threshold.\n" +
                         "       If [-T] is not specified, the default static threshold will be set to 127.\n" +
+                        "       If the static threshold is 'auto', each image gets its own threshold, computed from its histogram with Otsu's method.\n" +
+                        "       A list of thresholds and ranges, as in 100,127 or 100-160/20 (from 100 to 160 by 20), sweeps the thresholds:\n" +
+                        "       each image is read and converted once, then saved once per threshold, as in image_T100_BINARIZED.bmp.\n" +
+                        "   [-A <method>[:<window>[:<k>]]] - if present, each pixel gets its own threshold, computed from the mean and the\n" +
+                        "       standard deviation of the gray levels in the window x window pixels around it.\n" +
+                        "       The method is 'sauvola' (default k 0.34) or 'niblack' (default k -0.2).\n" +
+                        "       The window is an odd number of pixels (default 25). This replaces [-T].\n" +
                         "   -P <path> - mandatory argument, the path can be either an image file or a directory containing image files.\n" +
+                        "       The subdirectories are also processed, the hidden files and the files ending in _BINARIZED.bmp or _BINARIZED.pbm being skipped.\n" +
                         "       The path can be relative or absolute (unix style). If containing spaces, it must be enclosed in double quotes.\n" +
-                        "       !!! The files must have the extension BMP and contain 24bit images!\n" +
+                        "       !!! The files must contain 24bit BMP images, 8bit BMP images of gray levels, or binary PGM or PBM images, whatever their\n" +
+                        "       extension! The binary images of the files with the extension pgm, pbm or pnm are saved as PBM, the other ones as BMP.\n" +
+                        "       If the path is a ZIP or TAR archive (extension zip or tar), its entries are binarized in memory by the [-M] threads\n" +
+                        "       (one per processor by default) and their binary images are written, in the order of the entries, in a single\n" +
+                        "       archive of the same format, as in images_BINARIZED.zip.\n" +
                         "   [-F] - if present, the input images will also be converted to grayscale first (if needed).\n" +
-                        "       If the input image (or any image from the directory) is not grayscale and this flag is not present, then the program will fail.\n\n" +
+                        "       If the input image (or any image from the directory) is not grayscale and this flag is not present, then the program will fail.\n" +
+                        "   [-S] - if present, the uncompressed 24bit BMP files are binarized one row at a time, straight into the output file.\n" +
+                        "       The memory used is proportional only to the width of the images. Any other file is processed as usual.\n" +
+                        "   [-L [<readers>:<binarizers>:<writers>]] - if present and the given path is a directory,\n" +
+                        "       the files are read, binarized and written by separate groups of threads, connected by bounded queues.\n" +
+                        "       The default is 2 reading threads, one binarization thread per processor and 2 writing threads.\n" +
+                        "       This replaces the [-M] threads for directories.\n" +
+                        "   [-I] - if present and the given path is a directory, the files that did not change since they were last\n" +
+                        "       binarized with the same settings are skipped. They are recorded in the file .binarization-manifest of the directory.\n" +
+                        "   [-W] - if present and the given path is a directory, the application keeps running after the files of the\n" +
+                        "       directory are processed, binarizing the new files as soon as they are completely written, until it is stopped\n" +
+                        "       with Ctrl+C. The time from each new file to its binary image is printed.\n" +
+                        "       The new files are binarized by the [-M] threads (one by default).\n" +
+                        "   [-H [<port>[:<queue>]]] - if present, the application is a server instead: a BMP file sent with POST to\n" +
+                        "       http://host:port/binarize is binarized and sent back, with the optional parameters\n" +
+                        "       threshold=<0-255>|auto and force=true|false. The default port is 8080. The requests are binarized by the\n" +
+                        "       [-M] threads (one per processor by default), at most queue more wait (default 64) and the next ones are\n" +
+                        "       answered with 503. [-P] is not used. The server is stopped with Ctrl+C.\n" +
+                        "   [-R <reportFile>] - if present, the percentiles of the durations of every step and the throughput\n" +
+                        "       of the whole run are saved at the end in the given file, as CSV if its extension is csv, or as JSON otherwise.\n" +
+                        "   [-V <verbosity>] - if present, sets how much of the progress is printed: 'quiet' prints only the failures\n" +
+                        "       and the summaries, 'cycles' also prints every finished cycle and 'steps' (default) also prints every step.\n\n" +
+
+                        "   If the first argument is 'help', the application will only print CLI usage info.\n" +
+                        "   The exit status is 0 if every file was processed, 1 if any of them failed and 2 if the arguments are wrong.");
+    }
+
+    /**
+     * Method that decodes a list of thresholds and ranges given to the [-T] argument, as in 90,100-160/20,200.
+     * A range without a step, as in 100-110, includes every threshold between its ends. The step is between 1 and 255,
+     * so that the next threshold cannot overflow. The duplicates are dropped.
+     *
+     * @param value the value following the [-T] argument
+     * @return boolean stating whether or not the value is valid.
+     */
+    private boolean decodeThresholds(String value) {
+        LinkedHashSet<Integer> sweep = new LinkedHashSet<>();
+        try {
+            for (String part : value.split(",", -1)) {
+                int step = 1;
+                int slash = part.indexOf('/');
+                if (slash >= 0) {
+                    step = Integer.parseInt(part.substring(slash + 1));
+                    part = part.substring(0, slash);
+                }
+                int dash = part.indexOf('-');
+                int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+                if (from < 0 || to > 255 || from > to || step < 1 || step > 255) {
+                    return false;
+                }
+                for (int threshold = from; threshold <= to; threshold += step) {
+                    sweep.add(threshold);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        this.thresholds = new int[sweep.size()];
+        int i = 0;
+        for (int threshold : sweep) {
+            thresholds[i++] = threshold;
+        }
+        this.threshold = thresholds[0];
+        return true;
+    }
+
+    /**
+     * @return the heap budget given by [-B], or the default one, see {@link HeapBudget#defaultBudget()}
+     */
+    private long getHeapBudget() {
+        return heapBudget > 0 ? heapBudget : HeapBudget.defaultBudget();
+    }
 
-                        "   If the first argument is 'help', the application will only print CLI usage info.");
+    /**
+     * Method that decodes the value of the [-B] argument, as in 2048 (megabytes) or 60% (of the maximum heap).
+     *
+     * @param value the value following the [-B] argument
+     * @return boolean stating whether or not the value is valid.
+     */
+    private boolean decodeHeapBudget(String value) {
+        try {
+            if (value.endsWith("%")) {
+                int percent = Integer.parseInt(value.substring(0, value.length() - 1));
+                if (percent < 1 || percent > 100) {
+                    return false;
+                }
+                this.heapBudget = Runtime.getRuntime().maxMemory() / 100 * percent;
+            } else {
+                long megabytes = Long.parseLong(value);
+                if (megabytes < 1 || megabytes > Long.MAX_VALUE >> 20) {
+                    return false;
+                }
+                this.heapBudget = megabytes << 20;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Method that decodes the value of the [-A] argument, as in sauvola:25:0.34.
+     *
+     * @param value the value following the [-A] argument
+     * @return boolean stating whether or not the value is valid.
+     */
+    private boolean decodeLocalThreshold(String value) {
+        String[] parts = value.split(":");
+        if (parts.length > 3) {
+            return false;
+        }
+        try {
+            this.localMethod = ImageBinarization.LocalMethod.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            this.localK = localMethod.getDefaultK();
+            if (parts.length > 1) {
+                this.localWindow = Integer.parseInt(parts[1]);
+            }
+            if (parts.length > 2) {
+                this.localK = Double.parseDouble(parts[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            // also thrown by valueOf() and as NumberFormatException
+            return false;
+        }
+        return localWindow >= 3 && localWindow <= 1001 && localWindow % 2 == 1 && !Double.isNaN(localK);
     }
 
     /**
@@ -132,6 +727,7 @@ public class ImageProcessor {
             return false;
         }
         if (args[0].equals("help")) {
+            helpPrinted = true;
             printHelp();
             return false;
         }
@@ -139,12 +735,43 @@ public class ImageProcessor {
         int numberOfTParameters = 0;
         int numberOfFParameters = 0;
         int numberOfPParameters = 0;
+        int numberOfSParameters = 0;
+        int numberOfLParameters = 0;
+        int numberOfAParameters = 0;
+        int numberOfRParameters = 0;
+        int numberOfVParameters = 0;
+        int numberOfIParameters = 0;
+        int numberOfWParameters = 0;
+        int numberOfHParameters = 0;
+        int numberOfBParameters = 0;
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-M":
                     numberOfMParameters++;
                     this.multithreaded = true;
-                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                    if (i + 1 < args.length && (args[i + 1].equals("auto") || args[i + 1].startsWith("auto:"))) {
+                        this.adaptive = true;
+                        this.numberOfThreads = Runtime.getRuntime().availableProcessors();
+                        if (args[i + 1].length() > "auto".length()) {
+                            int maxThreads;
+                            try {
+                                maxThreads = Integer.parseInt(args[i + 1].substring("auto:".length()));
+                            } catch (NumberFormatException e) {
+                                maxThreads = 0;
+                            }
+                            if (maxThreads < 1 || maxThreads > 255) {
+                                System.err.println("The maximum number of threads of [-M auto] must be between 1 and 255!");
+                                printError(args);
+                                return false;
+                            }
+                            this.maxThreads = maxThreads;
+                        }
+                        i++;
+                    } else if (i + 1 < args.length && args[i + 1].equals("virtual")) {
+                        this.virtualThreads = true;
+                        this.numberOfThreads = Runtime.getRuntime().availableProcessors();
+                        i++;
+                    } else if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
                         int numberOfThreads;
                         try {
                             numberOfThreads = Integer.parseInt(args[i + 1]);
@@ -161,9 +788,30 @@ public class ImageProcessor {
                         i++;
                     }
                     break;
+                case "-B":
+                    numberOfBParameters++;
+                    if (!decodeHeapBudget(i + 1 < args.length ? args[i + 1] : "")) {
+                        System.err.println("The [-B] argument must be followed by a number of megabytes, or by a percentage of the"
+                                + " maximum heap between 1% and 100%, as in 2048 or 60%!");
+                        printError(args);
+                        return false;
+                    }
+                    i++;
+                    break;
                 case "-T":
                     numberOfTParameters++;
-                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                    if (i + 1 < args.length && args[i + 1].equals("auto")) {
+                        this.autoThreshold = true;
+                        i++;
+                    } else if (i + 1 < args.length && args[i + 1].charAt(0) != '-'
+                            && (args[i + 1].indexOf(',') >= 0 || args[i + 1].indexOf('-') >= 0)) {
+                        if (!decodeThresholds(args[i + 1])) {
+                            System.err.println("The thresholds of a sweep must be numbers or ranges between 0 and 255, as in 100,127 or 100-160/20!");
+                            printError(args);
+                            return false;
+                        }
+                        i++;
+                    } else if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
                         int threshold;
                         try {
                             threshold = Integer.parseInt(args[i + 1]);
@@ -184,10 +832,108 @@ public class ImageProcessor {
                         return false;
                     }
                     break;
+                case "-A":
+                    numberOfAParameters++;
+                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                        if (!decodeLocalThreshold(args[i + 1])) {
+                            System.err.println("The [-A] argument must be followed by 'sauvola' or 'niblack', optionally followed by" +
+                                    " an odd window size between 3 and 1001 and the k parameter, as in sauvola:25:0.34!");
+                            printError(args);
+                            return false;
+                        }
+                        i++;
+                    } else {
+                        System.err.println("If the [-A] argument is present, it must be followed by the local threshold method!");
+                        printError(args);
+                        return false;
+                    }
+                    break;
                 case "-F":
                     numberOfFParameters++;
                     this.force = true;
                     break;
+                case "-S":
+                    numberOfSParameters++;
+                    this.streaming = true;
+                    break;
+                case "-L":
+                    numberOfLParameters++;
+                    this.pipelined = true;
+                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                        String[] stageThreads = args[i + 1].split(":");
+                        int[] numbers = new int[stageThreads.length];
+                        try {
+                            for (int j = 0; j < stageThreads.length; j++) {
+                                numbers[j] = Integer.parseInt(stageThreads[j]);
+                            }
+                        } catch (NumberFormatException e) {
+                            numbers = null;
+                        }
+                        if (numbers == null || numbers.length != 3
+                                || numbers[0] < 1 || numbers[1] < 1 || numbers[2] < 1
+                                || numbers[0] > 255 || numbers[1] > 255 || numbers[2] > 255) {
+                            System.err.println("The [-L] argument must be followed by three numbers between 1 and 255, as in 2:8:2!");
+                            printError(args);
+                            return false;
+                        }
+                        this.readers = numbers[0];
+                        this.binarizers = numbers[1];
+                        this.writers = numbers[2];
+                        i++;
+                    }
+                    break;
+                case "-R":
+                    numberOfRParameters++;
+                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                        this.reportFile = new File(args[i + 1]);
+                        i++;
+                    } else {
+                        System.err.println("The [-R] argument must be followed by the path of the report file!");
+                        printError(args);
+                        return false;
+                    }
+                    break;
+                case "-I":
+                    numberOfIParameters++;
+                    this.incremental = true;
+                    break;
+                case "-H":
+                    numberOfHParameters++;
+                    this.serving = true;
+                    if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
+                        String[] parts = args[i + 1].split(":");
+                        try {
+                            this.port = Integer.parseInt(parts[0]);
+                            if (parts.length > 1) {
+                                this.queueCapacity = Integer.parseInt(parts[1]);
+                            }
+                        } catch (NumberFormatException e) {
+                            this.port = -1;
+                        }
+                        if (parts.length > 2 || port < 0 || port > 65535 || queueCapacity < 0) {
+                            System.err.println("The [-H] argument must be followed by a port between 0 and 65535, optionally"
+                                    + " followed by the capacity of the queue, as in 8080:64!");
+                            printError(args);
+                            return false;
+                        }
+                        i++;
+                    }
+                    break;
+                case "-W":
+                    numberOfWParameters++;
+                    this.watching = true;
+                    break;
+                case "-V":
+                    numberOfVParameters++;
+                    try {
+                        this.verbosity = EventLog.Verbosity.valueOf(i + 1 < args.length ? args[i + 1].toUpperCase(Locale.ROOT) : "");
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("The [-V] argument must be followed by 'quiet', 'cycles' or 'steps'!");
+                        printError(args);
+                        return false;
+                    }
+                    i++;
+                    break;
                 case "-P":
                     numberOfPParameters++;
                     if (i + 1 < args.length && args[i + 1].charAt(0) != '-') {
@@ -216,12 +962,30 @@ public class ImageProcessor {
         if (numberOfMParameters > 1 ||
                 numberOfTParameters > 1 ||
                 numberOfFParameters > 1 ||
-                numberOfPParameters > 1) {
+                numberOfPParameters > 1 ||
+                numberOfSParameters > 1 ||
+                numberOfLParameters > 1 ||
+                numberOfAParameters > 1 ||
+                numberOfRParameters > 1 ||
+                numberOfVParameters > 1 ||
+                numberOfIParameters > 1 ||
+                numberOfWParameters > 1 ||
+                numberOfHParameters > 1 ||
+                numberOfBParameters > 1) {
             // error in case of duplicate parameters
             printError(args);
             return false;
         }
 
+        if (serving) {
+            if (numberOfPParameters != 0 || watching || incremental) {
+                System.err.println("The [-H] argument cannot be used with [-P], [-W] or [-I]!");
+                printError(args);
+                return false;
+            }
+            return true;
+        }
+
         if (numberOfPParameters != 1) {
             //error if mandatory parameter is not present
             System.err.println("Mandatory parameter [-P] is not present!");
@@ -229,6 +993,12 @@ public class ImageProcessor {
             return false;
         }
 
+        if (watching && !file.isDirectory()) {
+            System.err.println("The [-W] argument needs the path of a directory!");
+            printError(args);
+            return false;
+        }
+
         return true;
     }
 }
\ No newline at end of file
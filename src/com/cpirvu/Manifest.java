@@ -0,0 +1,404 @@
+package com.cpirvu;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The record of the files of a directory that were already binarized, so that a later run only processes the files
+ * that changed since (the incremental mode, -I).
+ * <p>
+ * For every input file, the manifest keeps its size, its modification time, a hash of its content and the settings it
+ * was binarized with (see {@link ImageBinarization#describeSettings()}). A file is up to date, and skipped, if its
+ * binary images exist and it has the same settings, size and modification time, which only needs a lookup and the
+ * attributes of the file. If only the modification time changed, the content is hashed to find out whether it
+ * really changed.
+ * <p>
+ * The size and the modification time of a file are taken before its cycle reads it, and its hash is computed from the
+ * bytes the cycle reads (or right after its reading step), see {@link Snapshot}. So a file rewritten while it is being
+ * binarized is found changed by the next run.
+ * <p>
+ * The manifest is saved in the processed directory, in the file {@link #FILE_NAME}. It is written to a temporary file
+ * that is then renamed over the previous one, so that a crash leaves either the previous manifest or the new one.
+ * It is saved at the end of the run, and during the run at most every {@link #SAVE_INTERVAL_IN_NANOS}.
+ */
+class Manifest {
+    static final String FILE_NAME = ".binarization-manifest";
+
+    private static final String HEADER = "# binarization manifest v1: size, modification time, hash, settings, path";
+
+    private static final long SAVE_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final File directory;
+    private final File file;
+    private final String settings;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder recordedFiles = new LongAdder();
+    private final Object saveLock = new Object();
+    private volatile long lastSaveInNanos = System.nanoTime();
+
+    /**
+     * @param directory the processed directory, where the manifest is saved
+     * @param settings  the settings of this run, see {@link ImageBinarization#describeSettings()}
+     */
+    Manifest(File directory, String settings) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+        this.settings = settings;
+    }
+
+    /**
+     * Method that loads the manifest saved by a previous run, if any. A manifest that cannot be read is ignored, so
+     * all the files are processed again.
+     */
+    void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                if (fields.length == 5) {
+                    entries.put(fields[4], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseUnsignedLong(fields[2], 16), fields[3]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("The manifest at " + file.getPath() + " cannot be read, all the files will be processed!");
+            entries.clear();
+        }
+    }
+
+    /**
+     * @param files the files of the directory
+     * @return the given files, lazily filtered to the ones that are not up to date
+     */
+    Iterable<File> filterOutdated(Iterable<File> files) {
+        return () -> new Iterator<File>() {
+            private final Iterator<File> source = files.iterator();
+            private File next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && source.hasNext()) {
+                    File candidate = source.next();
+                    if (candidate.equals(file)) {
+                        continue;
+                    }
+                    if (isUpToDate(candidate)) {
+                        skippedFiles.increment();
+                    } else {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Method that takes the size and the modification time of the given input file, before its cycle reads it.
+     *
+     * @param input the input file
+     * @return the state of the file, to hash and then record once the binary image is written, or null if the file is
+     * not in the directory
+     */
+    Snapshot snapshot(File input) {
+        String key = keyOf(input);
+        return key == null ? null : new Snapshot(key, input);
+    }
+
+    /**
+     * Method that records the given input file as binarized with the settings of this run, in the state it had when
+     * it was read. It is called by the {@link ExecutionCycle}s, from any thread, once the binary image is written.
+     *
+     * @param snapshot the state of the input file, see {@link #snapshot(File)}
+     */
+    void record(Snapshot snapshot) {
+        if (!snapshot.hashed) {
+            // not recorded, the file is processed again by the next run
+            return;
+        }
+        entries.put(snapshot.key, new Entry(snapshot.size, snapshot.lastModified, snapshot.hash, settings));
+        recordedFiles.increment();
+        if (System.nanoTime() - lastSaveInNanos > SAVE_INTERVAL_IN_NANOS) {
+            synchronized (saveLock) {
+                // another thread may have saved it while this one was waiting
+                if (System.nanoTime() - lastSaveInNanos > SAVE_INTERVAL_IN_NANOS) {
+                    save();
+                }
+            }
+        }
+    }
+
+    /**
+     * Method that saves the manifest, replacing the previous one atomically.
+     */
+    void save() {
+        synchronized (saveLock) {
+            lastSaveInNanos = System.nanoTime();
+            File temporaryFile = new File(directory, FILE_NAME + ".tmp");
+            try {
+                List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+                try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                            Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+                    writer.write(HEADER);
+                    writer.newLine();
+                    for (Map.Entry<String, Entry> mapEntry : snapshot) {
+                        Entry entry = mapEntry.getValue();
+                        writer.write(entry.size + "\t" + entry.lastModified + "\t" + Long.toHexString(entry.hash)
+                                + "\t" + entry.settings + "\t" + mapEntry.getKey());
+                        writer.newLine();
+                    }
+                    writer.flush();
+                    // the content must be on the disk before the rename makes it the manifest
+                    channel.force(true);
+                }
+                try {
+                    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not save the manifest at " + file.getPath() + "!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Method that prints how many files were skipped and recorded.
+     */
+    void printStatistics() {
+        EventLog.logFormat(EventLog.Verbosity.QUIET, "[Manifest] %d files up to date were skipped, %d files were recorded.",
+                skippedFiles.sum(), recordedFiles.sum());
+    }
+
+    long getSkippedFiles() {
+        return skippedFiles.sum();
+    }
+
+    private boolean isUpToDate(File input) {
+        String key = keyOf(input);
+        Entry entry = key == null ? null : entries.get(key);
+        if (entry == null || !entry.settings.equals(settings)) {
+            return false;
+        }
+        long size = input.length();
+        if (size != entry.size) {
+            return false;
+        }
+        for (File outputFile : ExecutionCycle.getOutputFiles(input)) {
+            if (!outputFile.isFile()) {
+                return false;
+            }
+        }
+        long lastModified = input.lastModified();
+        if (lastModified == entry.lastModified) {
+            return true;
+        }
+        // touched or copied, but maybe not changed
+        try {
+            if (hash(input) == entry.hash) {
+                entries.put(key, new Entry(size, lastModified, entry.hash, settings));
+                return true;
+            }
+        } catch (IOException e) {
+            // processed again, the reading step will report the problem
+        }
+        return false;
+    }
+
+    /**
+     * @param input a file of the directory
+     * @return the path of the file relative to the directory, with / as separator, or null if it is not in it
+     */
+    private String keyOf(File input) {
+        try {
+            return directory.toPath().toAbsolutePath().normalize()
+                    .relativize(input.toPath().toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Method that computes a 64bit hash of the content of the given file, reading it 8 bytes at a time.
+     *
+     * @param input the file to hash
+     * @return the hash
+     * @throws IOException if the file cannot be read
+     */
+    static long hash(File input) throws IOException {
+        RasterPool pool = RasterPool.current();
+        byte[] array = pool.acquireBytes(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+            long hash = SEED;
+            long length = 0;
+            while (true) {
+                int read = channel.read(buffer);
+                length += Math.max(0, read);
+                buffer.flip();
+                while (buffer.remaining() >= 8) {
+                    hash = mix(hash, buffer.getLong());
+                }
+                if (read < 0) {
+                    break;
+                }
+                buffer.compact(); // the last bytes are hashed with the next ones
+            }
+            return finish(hash, buffer, length);
+        } finally {
+            pool.release(array);
+        }
+    }
+
+    /**
+     * Method that computes the same hash as {@link #hash(File)}, from the given content of a file.
+     *
+     * @param content the content of the file, from its position to its limit, which are not changed
+     * @return the hash
+     */
+    static long hash(ByteBuffer content) {
+        ByteBuffer buffer = content.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long length = buffer.remaining();
+        long hash = SEED;
+        while (buffer.remaining() >= 8) {
+            hash = mix(hash, buffer.getLong());
+        }
+        return finish(hash, buffer, length);
+    }
+
+    /**
+     * @param hash   the hash of the 8 byte words of the content
+     * @param buffer the last bytes of the content, fewer than 8
+     * @param length the length of the content
+     * @return the final hash
+     */
+    private static long finish(long hash, ByteBuffer buffer, long length) {
+        if (buffer.hasRemaining()) {
+            long tail = 0;
+            for (int i = 0; buffer.hasRemaining(); i++) {
+                tail |= (buffer.get() & 0xffL) << (8 * i);
+            }
+            hash = mix(hash, tail);
+        }
+        // the final mix of MurmurHash3, spreading the last bytes over the whole hash
+        hash ^= length;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long mix(long hash, long word) {
+        return Long.rotateLeft(hash ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * The state of an input file when its cycle read it: its size and modification time, taken before the reading
+     * step, and the hash of its content, set once it is read. The hash is only kept if the size and the modification
+     * time did not change meanwhile.
+     */
+    static final class Snapshot {
+        private final String key;
+        private final File input;
+        private final long size;
+        private final long lastModified;
+        private long hash;
+        private boolean hashed;
+
+        private Snapshot(String key, File input) {
+            this.key = key;
+            this.input = input;
+            this.size = input.length();
+            this.lastModified = input.lastModified();
+        }
+
+        /**
+         * @param content the whole content of the file, as read by the cycle
+         */
+        void hash(ByteBuffer content) {
+            hash = Manifest.hash(content);
+            hashed = isUnchanged();
+        }
+
+        /**
+         * Method that hashes the file itself, when the cycle does not keep its content in memory.
+         */
+        void hashFile() {
+            try {
+                hash = Manifest.hash(input);
+                hashed = isUnchanged();
+            } catch (IOException e) {
+                hashed = false;
+            }
+        }
+
+        boolean isHashed() {
+            return hashed;
+        }
+
+        private boolean isUnchanged() {
+            return input.length() == size && input.lastModified() == lastModified;
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final long hash;
+        private final String settings;
+
+        Entry(long size, long lastModified, long hash, String settings) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.settings = settings;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.cpirvu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class holds the fields of the header of a binary PGM (P5, gray levels) or PBM (P4, black and white) file of
+ * the Netpbm family. The header is text: the magic number, the width, the height and, for a PGM, the maximum gray
+ * level, separated by whitespace and comments. A single whitespace character follows, then the pixel rows, from the
+ * top of the image to its bottom, without padding.
+ * <p>
+ * It also writes the header of the PBM files made of the binary images, see {@link #binaryHeader(int, int)}.
+ */
+final class PnmHeader implements RasterHeader {
+    /**
+     * The header of a PBM file must be found in the first bytes of the file.
+     */
+    static final int MAX_SIZE = 256;
+
+    /**
+     * The gray levels of the pixels of a PBM file: 0 is white, 1 is black.
+     */
+    private static final byte[] BLACK_AND_WHITE = {(byte) 255, 0};
+
+    private final int width;
+    private final int height;
+    private final int bitCount;
+    private final int pixelOffset;
+    private final byte[] grayLevels;
+
+    private PnmHeader(int width, int height, int bitCount, int pixelOffset, byte[] grayLevels) {
+        this.width = width;
+        this.height = height;
+        this.bitCount = bitCount;
+        this.pixelOffset = pixelOffset;
+        this.grayLevels = grayLevels;
+    }
+
+    /**
+     * Method that decodes the header of a binary PGM file with at most 256 gray levels, or of a binary PBM file.
+     *
+     * @param buffer the buffer containing the file, or at least its header, starting at its position
+     * @return the decoded header, or null if the bytes are not the header of such a file
+     */
+    static PnmHeader read(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = Math.min(buffer.limit(), start + MAX_SIZE);
+        if (end - start < 2 || buffer.get(start) != 'P' || (buffer.get(start + 1) != '4' && buffer.get(start + 1) != '5')) {
+            return null;
+        }
+        boolean gray = buffer.get(start + 1) == '5';
+        long[] fields = new long[gray ? 3 : 2];
+        int i = start + 2;
+        for (int f = 0; f < fields.length; f++) {
+            // whitespace and comments, which end at the end of the line
+            while (i < end && (isWhitespace(buffer.get(i)) || buffer.get(i) == '#')) {
+                if (buffer.get(i) == '#') {
+                    while (i < end && buffer.get(i) != '\n' && buffer.get(i) != '\r') {
+                        i++;
+                    }
+                } else {
+                    i++;
+                }
+            }
+            int digits = 0;
+            for (; i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9' && digits < 10; i++, digits++) {
+                fields[f] = fields[f] * 10 + (buffer.get(i) - '0');
+            }
+            if (digits == 0 || i >= end || !isWhitespace(buffer.get(i))) {
+                return null;
+            }
+        }
+        int pixelOffset = i + 1 - start; // after the single whitespace ending the header
+        long width = fields[0];
+        long height = fields[1];
+        int maxValue = gray ? (int) Math.min(fields[2], Integer.MAX_VALUE) : 1;
+        if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 255) {
+            return null;
+        }
+        long rowStride = gray ? width : (width + 7) >> 3;
+        if (rowStride * height > Integer.MAX_VALUE - pixelOffset) {
+            return null; // the pixels must be addressable with an int
+        }
+        return new PnmHeader((int) width, (int) height, gray ? 8 : 1, pixelOffset,
+                gray ? scaledGrayLevels(maxValue) : BLACK_AND_WHITE);
+    }
+
+    /**
+     * Method that creates the header of a PBM file.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @return a buffer with the header, ready to be written
+     */
+    static ByteBuffer binaryHeader(int width, int height) {
+        return ByteBuffer.wrap(("P4\n" + width + " " + height + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param width the width of the image
+     * @return the number of bytes of a row of a PBM file
+     */
+    static int binaryRowStride(int width) {
+        return (width + 7) >> 3;
+    }
+
+    /**
+     * @param maxValue the gray level of white in a PGM file
+     * @return the gray level from 0 to 255 of every value of a pixel, the values above maxValue being white
+     */
+    private static byte[] scaledGrayLevels(int maxValue) {
+        byte[] grayLevels = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            grayLevels[value] = (byte) ((Math.min(value, maxValue) * 255 + maxValue / 2) / maxValue);
+        }
+        return grayLevels;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0b || b == '\f';
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isTopDown() {
+        return true;
+    }
+
+    @Override
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    @Override
+    public int getPixelOffset() {
+        return pixelOffset;
+    }
+
+    @Override
+    public int getRowStride() {
+        return bitCount == 8 ? width : binaryRowStride(width);
+    }
+
+    @Override
+    public byte[] getGrayLevels() {
+        return grayLevels;
+    }
+}
@@ -0,0 +1,36 @@
+package com.cpirvu;
+
+/**
+ * The layout of the pixels of an uncompressed image file, as found in its header, so that the pixel rows can be read
+ * straight from the file without decoding it. It is implemented by {@link BmpHeader} and {@link PnmHeader}.
+ */
+interface RasterHeader {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @return true if the first row stored in the file is the top one, false if it is the bottom one
+     */
+    boolean isTopDown();
+
+    /**
+     * @return the number of bits of a pixel: 24 for BGR samples, 8 or 1 for the gray levels of {@link #getGrayLevels()}
+     */
+    int getBitCount();
+
+    /**
+     * @return the offset in the file of the first pixel row
+     */
+    int getPixelOffset();
+
+    /**
+     * @return the number of bytes between the starts of two consecutive pixel rows, including any padding
+     */
+    int getRowStride();
+
+    /**
+     * @return the gray level of every value a pixel of 8 or 1 bit can have, or null for BGR samples
+     */
+    byte[] getGrayLevels();
+}
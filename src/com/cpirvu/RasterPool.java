@@ -0,0 +1,178 @@
+package com.cpirvu;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of images and byte arrays, so that the {@link ExecutionCycle}s of a batch of same-sized images reuse the
+ * large objects of the previous cycles instead of allocating new ones.
+ * <p>
+ * Every thread has its own pool, returned by {@link #current()}, so the threads never wait for each other. A pool keeps
+ * at most {@link #CAPACITY} objects and {@link #MAX_BYTES} bytes, evicting the least recently released objects first.
+ * An object can be released from any thread, as long as it goes back to the pool it was acquired from.
+ * <p>
+ * The objects are not cleared when acquired: whoever acquires one must overwrite all of it.
+ */
+final class RasterPool {
+    /**
+     * The maximum number of objects kept by the pool of a thread.
+     */
+    static int CAPACITY = 4;
+
+    /**
+     * The maximum number of bytes kept by the pool of a thread.
+     */
+    static long MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final ThreadLocal<RasterPool> POOLS = ThreadLocal.withInitial(RasterPool::new);
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    /**
+     * The kind of the byte arrays in the pool. The kind of an image is its type, one of the BufferedImage.TYPE_*.
+     */
+    private static final int BYTES = -1;
+
+    /**
+     * The objects in the pool, the most recently released first.
+     */
+    private final LinkedList<Entry> entries = new LinkedList<>();
+
+    private long bytes;
+
+    private RasterPool() {
+    }
+
+    /**
+     * @return the pool of the calling thread
+     */
+    static RasterPool current() {
+        return POOLS.get();
+    }
+
+    /**
+     * Method that returns an image with the given size and type, either from the pool or a new one.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @param type   the type of the image, one of the BufferedImage.TYPE_*, but not TYPE_CUSTOM
+     * @return the image, with any content
+     */
+    BufferedImage acquireImage(int width, int height, int type) {
+        Object pooled = acquire(type, width, height);
+        if (pooled != null) {
+            return (BufferedImage) pooled;
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * @param length the length of the array
+     * @return a byte array of the given length, either from the pool or a new one, with any content
+     */
+    byte[] acquireBytes(int length) {
+        Object pooled = acquire(BYTES, length, 1);
+        if (pooled != null) {
+            return (byte[]) pooled;
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Method that puts an image in the pool, so that it can be acquired again.
+     * Images of type TYPE_CUSTOM are not pooled.
+     *
+     * @param image the image that is no longer used, or null
+     */
+    void release(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return;
+        }
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        long size = (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        release(new Entry(image.getType(), image.getWidth(), image.getHeight(), image, size));
+    }
+
+    /**
+     * Method that puts a byte array in the pool, so that it can be acquired again.
+     *
+     * @param array the array that is no longer used, or null
+     */
+    void release(byte[] array) {
+        if (array != null) {
+            release(new Entry(BYTES, array.length, 1, array, array.length));
+        }
+    }
+
+    private synchronized Object acquire(int kind, int width, int height) {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.kind == kind && entry.width == width && entry.height == height) {
+                iterator.remove();
+                bytes -= entry.bytes;
+                HITS.incrementAndGet();
+                return entry.value;
+            }
+        }
+        MISSES.incrementAndGet();
+        return null;
+    }
+
+    private synchronized void release(Entry entry) {
+        entries.addFirst(entry);
+        bytes += entry.bytes;
+        while (entries.size() > CAPACITY || bytes > MAX_BYTES) {
+            // evict the least recently released object
+            bytes -= entries.removeLast().bytes;
+            EVICTIONS.incrementAndGet();
+        }
+    }
+
+    static long getHits() {
+        return HITS.get();
+    }
+
+    static long getMisses() {
+        return MISSES.get();
+    }
+
+    static long getEvictions() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * Method that prints the hits, misses and evictions of all the pools, if they were used at all.
+     */
+    static void printStatistics() {
+        if (getHits() + getMisses() > 0) {
+            EventLog.logFormat(EventLog.Verbosity.QUIET, "[Raster Pool] %d hits, %d misses, %d evictions.",
+                    getHits(), getMisses(), getEvictions());
+        }
+    }
+
+    /**
+     * An object in the pool, with the key it is found by.
+     */
+    private static final class Entry {
+        private final int kind;
+        private final int width;
+        private final int height;
+        private final Object value;
+        private final long bytes;
+
+        Entry(int kind, int width, int height, Object value, long bytes) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.cpirvu;
+
+/**
+ * A kernel binarizing a row of 24bit BGR pixels against a single threshold, straight into the packed bits of a binary
+ * raster, without storing the gray levels. It must give exactly the bits of
+ * {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)} followed by
+ * {@link ImageBinarization#pack(byte[], int, int, int, byte[], int)}.
+ * <p>
+ * The only kernel is the one of {@link #VECTOR_KERNEL_CLASS}, using the Vector API of Java 16 or later, which is
+ * compiled separately from the rest of the application (see the folder vector). When it is missing, or when the
+ * module jdk.incubator.vector is not added to the JVM, {@link #select()} returns null and the scalar code is used.
+ */
+interface RowKernel {
+    String VECTOR_KERNEL_CLASS = "com.cpirvu.VectorRowKernel";
+
+    /**
+     * The system property that disables the kernel when set to "scalar".
+     */
+    String KERNEL_PROPERTY = "com.cpirvu.kernel";
+
+    /**
+     * @param row          the array containing the BGR samples
+     * @param rowOffset    the index of the blue sample of the first pixel of the row
+     * @param width        the number of pixels in the row
+     * @param luminance    if true, the luminance of each pixel is thresholded, otherwise the blue sample is thresholded
+     *                     and the row is checked for grayscale
+     * @param threshold    the threshold, from 0 to 255
+     * @param binaryPixels the backing array of the TYPE_BYTE_BINARY raster
+     * @param binaryOffset the index of the first byte of the row in binaryPixels
+     * @return false if luminance is false and a pixel that is not gray was found, true otherwise
+     */
+    boolean binarize(byte[] row, int rowOffset, int width, boolean luminance, int threshold,
+                     byte[] binaryPixels, int binaryOffset);
+
+    /**
+     * @return the description of the kernel, as in "vector, 8 pixels at a time"
+     */
+    String describe();
+
+    /**
+     * Method that loads the vector kernel, if it can be used on this JVM.
+     *
+     * @return the kernel, or null if the scalar code must be used
+     */
+    static RowKernel select() {
+        if ("scalar".equals(System.getProperty(KERNEL_PROPERTY))) {
+            return null;
+        }
+        try {
+            RowKernel kernel = (RowKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+            // the classes of the Vector API are only linked here, failing if the module is not added
+            kernel.binarize(new byte[3], 0, 1, true, 127, new byte[1], 0);
+            return kernel;
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a whole run of the application: the durations of every step and cycle, and the amount of data that
+ * went through them. They are recorded by {@link ExecutionCycle} from any number of threads and can be saved at the
+ * end as a JSON or CSV report, see {@link #writeReport(File)}.
+ */
+final class RunMetrics {
+    static final LatencyHistogram READ = new LatencyHistogram();
+    static final LatencyHistogram BINARIZATION = new LatencyHistogram();
+    static final LatencyHistogram WRITE = new LatencyHistogram();
+    static final LatencyHistogram STREAMING = new LatencyHistogram();
+    static final LatencyHistogram CYCLE = new LatencyHistogram();
+
+    /**
+     * The time from a file appearing in a watched directory to its binary image being written, see {@link WatchFolder}.
+     */
+    static final LatencyHistogram DROP_TO_OUTPUT = new LatencyHistogram();
+
+    /**
+     * The time to answer a request admitted by the {@link BinarizationServer}, from its admission to its last byte.
+     */
+    static final LatencyHistogram REQUEST = new LatencyHistogram();
+
+    static final LongAdder BYTES_READ = new LongAdder();
+    static final LongAdder BYTES_WRITTEN = new LongAdder();
+    static final LongAdder PIXELS = new LongAdder();
+    static final LongAdder FINISHED_CYCLES = new LongAdder();
+    static final LongAdder FAILED_CYCLES = new LongAdder();
+
+    private static volatile long startInNanos = System.nanoTime();
+
+    private RunMetrics() {
+    }
+
+    /**
+     * Method that marks the start of the run, the throughput in the report being computed from this moment.
+     */
+    static void start() {
+        startInNanos = System.nanoTime();
+    }
+
+    /**
+     * Method that saves the report of this run in the given file. A file with the extension csv gets one line per
+     * histogram, followed by the totals, any other file gets a JSON object.
+     *
+     * @param file the file to save the report to
+     * @throws IOException if the file cannot be written
+     */
+    static void writeReport(File file) throws IOException {
+        long elapsedInNanos = System.nanoTime() - startInNanos;
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("read", READ);
+        histograms.put("binarization", BINARIZATION);
+        histograms.put("write", WRITE);
+        histograms.put("streaming", STREAMING);
+        histograms.put("cycle", CYCLE);
+        histograms.put("drop_to_output", DROP_TO_OUTPUT);
+        histograms.put("request", REQUEST);
+
+        double seconds = elapsedInNanos / 1e9;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                out.println("stage,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    LatencyHistogram histogram = entry.getValue();
+                    out.println(entry.getKey() + "," + histogram.getCount() + "," + millis(histogram.getMean()) + ","
+                            + millis(histogram.getPercentile(0.5)) + "," + millis(histogram.getPercentile(0.9)) + ","
+                            + millis(histogram.getPercentile(0.99)) + "," + millis(histogram.getMax()));
+                }
+                out.println();
+                out.println("elapsed_ms,finished_cycles,failed_cycles,bytes_read,bytes_written,megapixels,"
+                        + "megapixels_per_second,megabytes_read_per_second,megabytes_written_per_second");
+                out.println(millis(elapsedInNanos) + "," + FINISHED_CYCLES.sum() + "," + FAILED_CYCLES.sum() + ","
+                        + BYTES_READ.sum() + "," + BYTES_WRITTEN.sum() + "," + format(PIXELS.sum() / 1e6) + ","
+                        + format(PIXELS.sum() / 1e6 / seconds) + "," + format(BYTES_READ.sum() / 1e6 / seconds) + ","
+                        + format(BYTES_WRITTEN.sum() / 1e6 / seconds));
+            } else {
+                out.println("{");
+                out.println("  \"stages\": {");
+                int i = 0;
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    LatencyHistogram histogram = entry.getValue();
+                    out.print("    \"" + entry.getKey() + "\": {\"count\": " + histogram.getCount()
+                            + ", \"mean_ms\": " + millis(histogram.getMean())
+                            + ", \"p50_ms\": " + millis(histogram.getPercentile(0.5))
+                            + ", \"p90_ms\": " + millis(histogram.getPercentile(0.9))
+                            + ", \"p99_ms\": " + millis(histogram.getPercentile(0.99))
+                            + ", \"max_ms\": " + millis(histogram.getMax()) + "}");
+                    out.println(++i < histograms.size() ? "," : "");
+                }
+                out.println("  },");
+                out.println("  \"elapsed_ms\": " + millis(elapsedInNanos) + ",");
+                out.println("  \"finished_cycles\": " + FINISHED_CYCLES.sum() + ",");
+                out.println("  \"failed_cycles\": " + FAILED_CYCLES.sum() + ",");
+                out.println("  \"bytes_read\": " + BYTES_READ.sum() + ",");
+                out.println("  \"bytes_written\": " + BYTES_WRITTEN.sum() + ",");
+                out.println("  \"megapixels\": " + format(PIXELS.sum() / 1e6) + ",");
+                out.println("  \"megapixels_per_second\": " + format(PIXELS.sum() / 1e6 / seconds) + ",");
+                out.println("  \"megabytes_read_per_second\": " + format(BYTES_READ.sum() / 1e6 / seconds) + ",");
+                out.println("  \"megabytes_written_per_second\": " + format(BYTES_WRITTEN.sum() / 1e6 / seconds));
+                out.println("}");
+            }
+        }
+    }
+
+    private static String millis(double nanos) {
+        return format(nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
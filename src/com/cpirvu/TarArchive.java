@@ -0,0 +1,428 @@
+package com.cpirvu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The reading and writing of TAR archives, in the POSIX ustar format, for {@link ArchiveBatch}.
+ * <p>
+ * Only the regular files of an archive are read, the directories, links and other entries being skipped. The long
+ * names of the GNU (an 'L' entry before the file) and the PAX (the path of an 'x' entry) extensions are understood.
+ * The entries written are regular files. A name that does not fit in the ustar header, even split between its prefix
+ * and name fields, is written in a GNU long name entry first.
+ */
+final class TarArchive {
+    static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_OFFSET = 0;
+    private static final int NAME_LENGTH = 100;
+    private static final int MODE_OFFSET = 100;
+    private static final int UID_OFFSET = 108;
+    private static final int GID_OFFSET = 116;
+    private static final int SIZE_OFFSET = 124;
+    private static final int SIZE_LENGTH = 12;
+    private static final int TIME_OFFSET = 136;
+    private static final int TIME_LENGTH = 12;
+    private static final int CHECKSUM_OFFSET = 148;
+    private static final int CHECKSUM_LENGTH = 8;
+    private static final int TYPE_OFFSET = 156;
+    private static final int MAGIC_OFFSET = 257;
+    private static final int PREFIX_OFFSET = 345;
+    private static final int PREFIX_LENGTH = 155;
+
+    private static final byte[] MAGIC = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The name of the GNU entries holding the long name of the next entry.
+     */
+    private static final String LONG_NAME = "././@LongLink";
+
+    /**
+     * The largest GNU long name or PAX header read, a larger one making the archive be considered broken.
+     */
+    private static final int MAX_EXTENSION_SIZE = 1 << 20;
+
+    private TarArchive() {
+    }
+
+    /**
+     * A regular file of an archive.
+     */
+    static final class Entry {
+        private final String name;
+        private final long size;
+        private final long timeInMillis;
+
+        Entry(String name, long size, long timeInMillis) {
+            this.name = name;
+            this.size = size;
+            this.timeInMillis = timeInMillis;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getTimeInMillis() {
+            return timeInMillis;
+        }
+    }
+
+    /**
+     * The regular files of an archive, read one after the other from a stream.
+     */
+    static final class Input {
+        private final InputStream input;
+        private final byte[] header = new byte[BLOCK_SIZE];
+
+        /**
+         * The bytes of the current entry not read yet, followed by the padding to the next block.
+         */
+        private long remaining;
+        private long padding;
+
+        /**
+         * @param input the stream of the archive, better buffered, which is not closed by this class
+         */
+        Input(InputStream input) {
+            this.input = input;
+        }
+
+        /**
+         * Method that moves to the next regular file of the archive, skipping what was not read of the current one.
+         *
+         * @return the next regular file, or null at the end of the archive
+         * @throws IOException if the archive cannot be read or it is broken
+         */
+        Entry next() throws IOException {
+            skip(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            String longName = null;
+            while (true) {
+                if (!readHeader()) {
+                    return null;
+                }
+                long size = parseNumber(header, SIZE_OFFSET, SIZE_LENGTH);
+                if (size < 0) {
+                    throw new IOException("The TAR archive has an entry of a negative size!");
+                }
+                remaining = size;
+                padding = -size & (BLOCK_SIZE - 1);
+                byte type = header[TYPE_OFFSET];
+                if (type == 'L') {
+                    longName = trimNul(new String(readExtension(), StandardCharsets.UTF_8));
+                    continue;
+                }
+                if (type == 'x') {
+                    String path = parsePaxPath(readExtension());
+                    if (path != null) {
+                        longName = path;
+                    }
+                    continue;
+                }
+                String name = longName != null ? longName : readName();
+                longName = null;
+                if (type == '0' || type == 0 || type == '7') {
+                    return new Entry(name, size, parseNumber(header, TIME_OFFSET, TIME_LENGTH) * 1000);
+                }
+                // a directory, a link or any other entry, along with its content if any
+                skip(remaining + padding);
+                remaining = 0;
+                padding = 0;
+            }
+        }
+
+        /**
+         * @param content an array of the size of the current entry
+         * @throws IOException if the archive ends before the end of the entry
+         */
+        void readContent(byte[] content) throws IOException {
+            if (content.length != remaining) {
+                throw new IllegalArgumentException("The entry has " + remaining + " bytes left!");
+            }
+            readFully(content, content.length);
+            remaining = 0;
+        }
+
+        /**
+         * @return true if a header was read, false at the end of the archive: its two blocks of zeros, or the end of
+         * the stream right before a header
+         */
+        private boolean readHeader() throws IOException {
+            int read = 0;
+            while (read < BLOCK_SIZE) {
+                int count = input.read(header, read, BLOCK_SIZE - read);
+                if (count < 0) {
+                    if (read == 0) {
+                        return false;
+                    }
+                    throw new EOFException("The TAR archive ends in the middle of a header!");
+                }
+                read += count;
+            }
+            boolean zeros = true;
+            for (byte b : header) {
+                if (b != 0) {
+                    zeros = false;
+                    break;
+                }
+            }
+            if (zeros) {
+                return false;
+            }
+            long checksum = parseNumber(header, CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+            long unsignedSum = 0;
+            long signedSum = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                byte b = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH ? (byte) ' ' : header[i];
+                unsignedSum += b & 0xff;
+                signedSum += b;
+            }
+            // some old archivers summed the bytes as signed
+            if (checksum != unsignedSum && checksum != signedSum) {
+                throw new IOException("The TAR archive has a broken header!");
+            }
+            return true;
+        }
+
+        /**
+         * @return the name of the current header, with its ustar prefix if any
+         */
+        private String readName() {
+            String name = readString(header, NAME_OFFSET, NAME_LENGTH);
+            if (matches(header, MAGIC_OFFSET, MAGIC, 6)) {
+                // the GNU archives, whose magic is followed by a space, use the prefix field for other things
+                String prefix = readString(header, PREFIX_OFFSET, PREFIX_LENGTH);
+                if (!prefix.isEmpty()) {
+                    return prefix + "/" + name;
+                }
+            }
+            return name;
+        }
+
+        /**
+         * @return the content of the current GNU long name or PAX header entry
+         */
+        private byte[] readExtension() throws IOException {
+            if (remaining > MAX_EXTENSION_SIZE) {
+                throw new IOException("The TAR archive has an extended header of " + remaining + " bytes!");
+            }
+            byte[] content = new byte[(int) remaining];
+            readContent(content);
+            skip(padding);
+            padding = 0;
+            return content;
+        }
+
+        private void readFully(byte[] bytes, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int count = input.read(bytes, read, length - read);
+                if (count < 0) {
+                    throw new EOFException("The TAR archive ends in the middle of an entry!");
+                }
+                read += count;
+            }
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = input.skip(count);
+                if (skipped <= 0) {
+                    // some streams can only skip by reading
+                    if (input.read() < 0) {
+                        throw new EOFException("The TAR archive ends in the middle of an entry!");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+    }
+
+    /**
+     * The regular files written one after the other in an archive.
+     */
+    static final class Output {
+        private final OutputStream output;
+        private final byte[] header = new byte[BLOCK_SIZE];
+
+        /**
+         * @param output the stream of the archive, better buffered, which is not closed by this class
+         */
+        Output(OutputStream output) {
+            this.output = output;
+        }
+
+        /**
+         * Method that writes a regular file in the archive.
+         *
+         * @param name         the path of the file in the archive
+         * @param timeInMillis the time the file was last modified
+         * @param content      the content of the file
+         * @throws IOException if the archive cannot be written
+         */
+        void write(String name, long timeInMillis, byte[] content) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int split = -1;
+            if (nameBytes.length > NAME_LENGTH) {
+                // the part before the first slash that leaves a short enough name goes to the prefix
+                for (int i = nameBytes.length - NAME_LENGTH - 1; i < nameBytes.length - 1 && i <= PREFIX_LENGTH; i++) {
+                    if (i > 0 && nameBytes[i] == '/') {
+                        split = i;
+                        break;
+                    }
+                }
+                if (split < 0) {
+                    byte[] longName = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+                    writeHeader(LONG_NAME.getBytes(StandardCharsets.US_ASCII), -1, longName.length, 0, (byte) 'L');
+                    writeContent(longName);
+                    nameBytes = Arrays.copyOf(nameBytes, NAME_LENGTH);
+                }
+            }
+            writeHeader(nameBytes, split, content.length, Math.max(0, timeInMillis / 1000), (byte) '0');
+            writeContent(content);
+        }
+
+        /**
+         * Method that writes the end of the archive, two blocks of zeros, and flushes the stream.
+         */
+        void finish() throws IOException {
+            output.write(new byte[2 * BLOCK_SIZE]);
+            output.flush();
+        }
+
+        /**
+         * @param name  the name, encoded
+         * @param split the index of the slash between the prefix and the name, or -1 if the name is not split
+         */
+        private void writeHeader(byte[] name, int split, long size, long timeInSeconds, byte type) throws IOException {
+            Arrays.fill(header, (byte) 0);
+            if (split < 0) {
+                System.arraycopy(name, 0, header, NAME_OFFSET, name.length);
+            } else {
+                System.arraycopy(name, 0, header, PREFIX_OFFSET, split);
+                System.arraycopy(name, split + 1, header, NAME_OFFSET, name.length - split - 1);
+            }
+            writeOctal(0644, MODE_OFFSET, 8);
+            writeOctal(0, UID_OFFSET, 8);
+            writeOctal(0, GID_OFFSET, 8);
+            writeOctal(size, SIZE_OFFSET, SIZE_LENGTH);
+            writeOctal(timeInSeconds, TIME_OFFSET, TIME_LENGTH);
+            header[TYPE_OFFSET] = type;
+            System.arraycopy(MAGIC, 0, header, MAGIC_OFFSET, MAGIC.length);
+
+            Arrays.fill(header, CHECKSUM_OFFSET, CHECKSUM_OFFSET + CHECKSUM_LENGTH, (byte) ' ');
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            // six digits, a NUL and a space
+            writeOctal(checksum, CHECKSUM_OFFSET, 7);
+            output.write(header);
+        }
+
+        private void writeContent(byte[] content) throws IOException {
+            output.write(content);
+            int padding = -content.length & (BLOCK_SIZE - 1);
+            if (padding > 0) {
+                output.write(new byte[padding]);
+            }
+        }
+
+        /**
+         * Method that writes the given value in octal digits, padded with zeros and followed by a NUL.
+         */
+        private void writeOctal(long value, int offset, int length) {
+            int i = offset + length - 1;
+            header[i--] = 0;
+            for (; i >= offset; i--) {
+                header[i] = (byte) ('0' + (value & 7));
+                value >>>= 3;
+            }
+        }
+    }
+
+    /**
+     * @return the number in the given field: octal digits surrounded by spaces or NULs, or a big endian binary number
+     * if the first byte has its highest bit set (the GNU extension for large values)
+     */
+    private static long parseNumber(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        int i = offset;
+        int end = offset + length;
+        while (i < end && (header[i] == ' ' || header[i] == 0)) {
+            i++;
+        }
+        for (; i < end && header[i] != ' ' && header[i] != 0; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("The TAR archive has a broken header!");
+            }
+            value = (value << 3) | (header[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return the path record of the given PAX header, or null if it has none
+     */
+    private static String parsePaxPath(byte[] content) throws IOException {
+        String path = null;
+        int i = 0;
+        // each record is "<length> <key>=<value>\n", its length counting the whole record
+        while (i < content.length) {
+            int space = i;
+            int length = 0;
+            while (space < content.length && content[space] >= '0' && content[space] <= '9') {
+                length = length * 10 + content[space++] - '0';
+            }
+            if (space >= content.length || content[space] != ' ' || length <= space - i || i + length > content.length) {
+                throw new IOException("The TAR archive has a broken PAX header!");
+            }
+            String record = new String(content, space + 1, i + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) {
+                path = record.substring(5);
+            }
+            i += length;
+        }
+        return path;
+    }
+
+    private static String readString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String string) {
+        int end = string.indexOf('\0');
+        return end < 0 ? string : string.substring(0, end);
+    }
+
+    private static boolean matches(byte[] header, int offset, byte[] expected, int length) {
+        for (int i = 0; i < length; i++) {
+            if (header[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
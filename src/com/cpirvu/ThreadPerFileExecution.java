@@ -0,0 +1,215 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * This class processes many files with one thread per file, so that the files waiting for a slow disk (a network
+ * share, for example) do not hold back the other ones. Many more files are in flight than there are processors, but
+ * their binarization, which only needs the processor, is limited by a semaphore to one file per processor.
+ * <p>
+ * A file is only read once the memory estimated for its cycle is available in a {@link HeapBudget}, and gives it back
+ * once it is written, so that the decoded images waiting for the processor or for the disk stay within the budget
+ * however many files are in flight. The memory mapped files only need their binary images, so many of them are read
+ * at the same time. The large files are read one at a time, with the reserve of the budget. The {@link RasterPool}s of
+ * the platform threads are limited as with [-M], see {@link HeapBudget#limitPools(int)}.
+ * <p>
+ * On Java 21 or later, the threads are virtual threads, which cost almost nothing while waiting for the disk. On older
+ * versions, a pool of {@link #PLATFORM_THREADS_PER_BINARIZER} platform threads per binarizer is used instead, the
+ * other files in flight waiting for one of them.
+ */
+class ThreadPerFileExecution {
+    /**
+     * The maximum number of files in flight when none is given, so that the memory used by the files read and not yet
+     * written stays bounded.
+     */
+    static final int DEFAULT_FILES_IN_FLIGHT = 1000;
+
+    /**
+     * The number of platform threads per binarizer when virtual threads are not available, at least
+     * {@link #MIN_PLATFORM_THREADS}, as [-M auto] allows by default.
+     */
+    static final int PLATFORM_THREADS_PER_BINARIZER = 4;
+    static final int MIN_PLATFORM_THREADS = 16;
+
+    private final int binarizers;
+    private final int filesInFlight;
+    private final HeapBudget budget;
+
+    /**
+     * Lets a single large file at a time use the reserve of the {@link #budget}, see
+     * {@link HeapBudget#admitLarge(long)}.
+     */
+    private final Semaphore largeLane = new Semaphore(1, true);
+
+    /**
+     * Limits the number of files being binarized at the same time.
+     */
+    private final Semaphore binarizationPermits;
+
+    /**
+     * @param binarizers    the maximum number of files binarized at the same time, usually the number of processors
+     * @param filesInFlight the maximum number of files being processed at the same time
+     * @param budget        the heap memory that the files read and not yet written may use
+     * @throws IllegalArgumentException if any of the numbers is lesser than 1
+     */
+    ThreadPerFileExecution(int binarizers, int filesInFlight, HeapBudget budget) {
+        if (binarizers < 1 || filesInFlight < 1) {
+            throw new IllegalArgumentException("The number of binarizers and files in flight must be at least 1!");
+        }
+        this.binarizers = binarizers;
+        this.filesInFlight = filesInFlight;
+        this.budget = budget;
+        this.binarizationPermits = new Semaphore(binarizers);
+    }
+
+    /**
+     * @return true if the threads are virtual threads, false if they are platform threads
+     */
+    static boolean isVirtual() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Method that processes all the given files and returns after all of them are written.
+     *
+     * @param files the image files to process
+     */
+    void process(Iterable<File> files) {
+        process(files, ExecutionCycle::new);
+    }
+
+    /**
+     * Method that processes all the given files, with the cycles created by the given function, and returns after all
+     * of them are written. Each cycle is executed on its own thread, see {@link #processCycle(File, ExecutionCycle)}.
+     *
+     * @param files  the image files to process
+     * @param cycles the function creating the cycle of a file
+     */
+    void process(Iterable<File> files, Function<File, ExecutionCycle> cycles) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            int threads = Math.min(filesInFlight,
+                    Math.max(MIN_PLATFORM_THREADS, PLATFORM_THREADS_PER_BINARIZER * binarizers));
+            executor = Executors.newFixedThreadPool(threads);
+            // the pool of a platform thread keeps its images after its cycles, unlike the pool of a virtual thread
+            budget.limitPools(threads);
+        }
+        Semaphore inFlight = new Semaphore(filesInFlight);
+        try {
+            for (File file : files) {
+                inFlight.acquire();
+                ExecutionCycle cycle = cycles.apply(file);
+                executor.execute(() -> {
+                    try {
+                        processCycle(file, cycle);
+                    } catch (RuntimeException e) {
+                        // a single broken file must not stop the others
+                        e.printStackTrace();
+                        RunMetrics.FAILED_CYCLES.increment();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method that executes the given cycle on the calling thread, waiting for its memory before reading it and for a
+     * permit before binarizing it.
+     *
+     * @param file  the file of the cycle, whose header gives the estimate of its memory
+     * @param cycle the cycle to execute
+     */
+    private void processCycle(File file, ExecutionCycle cycle) {
+        FileTraversal.SizedFile sizedFile = FileTraversal.estimate(file);
+        long bytes = sizedFile.getHeapBytes();
+        boolean large = budget.isLarge(bytes);
+        int permits;
+        try {
+            permits = admit(bytes, large);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (!cycle.read()) {
+                return;
+            }
+            boolean binarized;
+            try {
+                binarizationPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                binarized = cycle.binarize();
+            } finally {
+                binarizationPermits.release();
+            }
+            if (binarized) {
+                cycle.write();
+            }
+        } finally {
+            budget.release(permits);
+            if (large) {
+                largeLane.release();
+            }
+        }
+    }
+
+    /**
+     * Method that waits until the shared part of the {@link #budget} has the given bytes available, or for a large
+     * file until the large lane is free and the part of the bytes beyond its reserve is available, then takes them.
+     *
+     * @return the permits to give back to the budget when the file is written, and the large lane if it is large
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    private int admit(long bytes, boolean large) throws InterruptedException {
+        if (!large) {
+            return budget.admit(bytes);
+        }
+        largeLane.acquire();
+        try {
+            return budget.admitLarge(bytes);
+        } catch (InterruptedException e) {
+            largeLane.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Method that calls Executors.newVirtualThreadPerTaskExecutor(), which only exists on Java 21 or later. It is
+     * called through reflection so that the application still compiles and runs on Java 8.
+     *
+     * @return the new executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.cpirvu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The daemon mode (-W): the image files added to a directory, or to any of its subdirectories, are binarized as they
+ * appear, until the application is stopped. The application stays in memory between them, so the start of the JVM,
+ * the loading of the image readers and the compilation of the binarization are only paid once, and the threads keep
+ * their {@link RasterPool}s.
+ * <p>
+ * The directories are watched with a {@link WatchService}. A file being copied is usually reported before it is
+ * complete, often more than once, so it is only taken once its size and modification time did not change for
+ * {@link #DEBOUNCE_IN_NANOS}, and then only if it is an image, whatever its extension. The files ready at the same
+ * time are processed as one batch, largest first. The time between the first event of a file and its binary image
+ * being written is printed and recorded in {@link RunMetrics#DROP_TO_OUTPUT}.
+ */
+class WatchFolder {
+    /**
+     * A file is taken once it did not change for this long.
+     */
+    static final long DEBOUNCE_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * How often the pending files are checked while no event comes.
+     */
+    private static final long POLL_INTERVAL_IN_MILLIS = 100;
+
+    private final File directory;
+    private final Manifest manifest;
+    private final WatchService watchService;
+    private final ForkJoinPool pool;
+    private final Semaphore inFlight;
+
+    /**
+     * The watched directories, by the key of their registration.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * The files reported by the events that are not yet taken, in the order they were first reported.
+     */
+    private final Map<Path, PendingFile> pendingFiles = new LinkedHashMap<>();
+
+    private volatile boolean stopped;
+
+    /**
+     * Creates the watch and registers the directory and its subdirectories right away, so that no file added from
+     * now on is missed, even while the files already in the directory are still being processed.
+     *
+     * @param directory       the directory to watch
+     * @param numberOfThreads the number of threads binarizing the new files
+     * @param manifest        the manifest of the incremental mode, or null
+     * @throws IOException if the directory cannot be watched
+     */
+    WatchFolder(File directory, int numberOfThreads, Manifest manifest) throws IOException {
+        this.directory = directory;
+        this.manifest = manifest;
+        this.watchService = directory.toPath().getFileSystem().newWatchService();
+        this.pool = new ForkJoinPool(numberOfThreads);
+        this.inFlight = new Semaphore(numberOfThreads * 2);
+        registerTree(directory.toPath());
+    }
+
+    /**
+     * Method that processes the new files as they appear, and only returns after {@link #stop()} is called and the
+     * files already taken are written. The files still pending at that moment are left for the next run.
+     */
+    void process() {
+        try {
+            while (!stopped) {
+                WatchKey key = watchService.poll(POLL_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                Map<File, PendingFile> batch = takeReadyFiles();
+                if (!batch.isEmpty()) {
+                    submit(batch);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pendingFiles.isEmpty()) {
+            EventLog.logFormat(EventLog.Verbosity.QUIET, "[Watch] %d files were still being written and are left for the next run.",
+                    pendingFiles.size());
+        }
+    }
+
+    /**
+     * Method that makes {@link #process()} return, from any thread.
+     */
+    void stop() {
+        stopped = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // the loop still ends, as stopped is set
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path parent = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // some events were lost, the whole tree is checked again
+                registerTree(directory.toPath());
+                addFiles(directory, true);
+                continue;
+            }
+            if (parent == null) {
+                continue;
+            }
+            Path path = parent.resolve((Path) event.context());
+            if (FileTraversal.isSkipped(path)) {
+                continue;
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // the files may have been moved in with the directory, or added before it was registered
+                    registerTree(path);
+                    addFiles(path.toFile(), false);
+                }
+            } else {
+                addFile(path);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key); // the directory is gone
+        }
+    }
+
+    /**
+     * Method that adds the files of the given directory and of its subdirectories to the pending files.
+     *
+     * @param root        the directory
+     * @param onlyMissing if true, only the files without a binary image are added
+     */
+    private void addFiles(File root, boolean onlyMissing) {
+        for (File file : new FileTraversal(root)) {
+            if (!onlyMissing || !ExecutionCycle.getOutputFiles(file)[0].isFile()) {
+                addFile(file.toPath());
+            }
+        }
+    }
+
+    private void addFile(Path path) {
+        PendingFile pendingFile = pendingFiles.get(path);
+        if (pendingFile == null) {
+            pendingFiles.put(path, new PendingFile(System.nanoTime()));
+        } else {
+            // still being written
+            pendingFile.stableSinceInNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the pending files that did not change for {@link #DEBOUNCE_IN_NANOS}, removed from the pending ones, only
+     * keeping the images (found from their first bytes, see {@link FileTraversal#isImage(File)})
+     */
+    private Map<File, PendingFile> takeReadyFiles() {
+        Map<File, PendingFile> ready = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            File file = entry.getKey().toFile();
+            PendingFile pendingFile = entry.getValue();
+            if (!file.isFile()) {
+                iterator.remove(); // deleted or renamed, the new name gets its own event
+                continue;
+            }
+            long size = file.length();
+            long lastModified = file.lastModified();
+            if (size != pendingFile.size || lastModified != pendingFile.lastModified) {
+                pendingFile.size = size;
+                pendingFile.lastModified = lastModified;
+                pendingFile.stableSinceInNanos = now;
+            } else if (now - pendingFile.stableSinceInNanos >= DEBOUNCE_IN_NANOS) {
+                iterator.remove();
+                if (FileTraversal.isImage(file)) {
+                    ready.put(file, pendingFile);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Method that hands a batch of files to the pool, largest first, blocking while the pool is busy.
+     *
+     * @param batch the files to process, with the moment they were first reported
+     */
+    private void submit(Map<File, PendingFile> batch) throws InterruptedException {
+        EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Watch] A batch of %d new files.", batch.size());
+        Iterable<File> files = batch.keySet();
+        if (manifest != null) {
+            files = manifest.filterOutdated(files);
+        }
+        for (File file : FileTraversal.largestFirst(files, batch.size())) {
+            long firstEventInNanos = batch.get(file).firstEventInNanos;
+            inFlight.acquire();
+            pool.execute(() -> {
+                try {
+                    ExecutionCycle cycle = new ExecutionCycle(file);
+                    cycle.run();
+                    if (!cycle.isRunning()) {
+                        // finished successfully, a failed cycle is still marked as running
+                        long latencyInNanos = System.nanoTime() - firstEventInNanos;
+                        RunMetrics.DROP_TO_OUTPUT.record(latencyInNanos);
+                        EventLog.logFormat(EventLog.Verbosity.CYCLES, "[Watch] %s was binarized %d ms after it appeared.",
+                                file.getPath(), TimeUnit.NANOSECONDS.toMillis(latencyInNanos));
+                    }
+                } catch (RuntimeException e) {
+                    // a single broken file must not stop the others
+                    e.printStackTrace();
+                    RunMetrics.FAILED_CYCLES.increment();
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Method that registers the given directory and all its subdirectories, skipping the hidden ones and the symbolic
+     * links, like {@link FileTraversal}.
+     *
+     * @param root the directory to register
+     */
+    private void registerTree(Path root) {
+        try {
+            directories.put(root.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), root);
+        } catch (IOException e) {
+            System.err.println("Could not watch the directory at " + root + "!");
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (Path path : stream) {
+                if (!FileTraversal.isSkipped(path) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    registerTree(path);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not open the directory at " + root + "!");
+        }
+    }
+
+    private static final class PendingFile {
+        private final long firstEventInNanos;
+        private long stableSinceInNanos;
+        private long size = -1;
+        private long lastModified = -1;
+
+        PendingFile(long firstEventInNanos) {
+            this.firstEventInNanos = firstEventInNanos;
+            this.stableSinceInNanos = firstEventInNanos;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.cpirvu;
+
+import jdk.incubator.vector.IntVector;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that {@link VectorRowKernel#binarize(byte[], int, int, boolean, int, byte[], int)} gives exactly the bits of
+ * the scalar code, {@link ImageBinarization#toGray(byte[], int, int, boolean, byte[], int)} followed by
+ * {@link ImageBinarization#pack(byte[], int, int, int, byte[], int)}, on random rows.
+ * <p>
+ * The widths go around one, two and several groups of pixels, so that the pixels left at the end of a row are covered
+ * whatever the length of the vectors, and the rows are placed at the end of their array as well as before its end.
+ */
+class VectorRowKernelTest {
+    private static final int ROWS = 200;
+
+    /**
+     * The pixels of a group of the kernel, see {@link VectorRowKernel}.
+     */
+    private static final int LANES = IntVector.SPECIES_PREFERRED.length();
+
+    private static RowKernel kernel;
+
+    @BeforeAll
+    static void createKernel() {
+        try {
+            kernel = new VectorRowKernel();
+        } catch (UnsupportedOperationException e) {
+            // the vectors of this processor are not used by the application either
+            kernel = null;
+        }
+        assumeTrue(kernel != null, "The vector kernel is not supported on this processor.");
+    }
+
+    @Test
+    void grayRowsWithLuminance() {
+        checkRows(true, false, 1);
+    }
+
+    @Test
+    void colorRowsWithLuminance() {
+        checkRows(true, true, 2);
+    }
+
+    @Test
+    void grayRowsWithoutLuminance() {
+        checkRows(false, false, 3);
+    }
+
+    /**
+     * Without the luminance, a row holding a pixel that is not gray is rejected, wherever that pixel is.
+     */
+    @Test
+    void colorRowsWithoutLuminance() {
+        Random random = new Random(4);
+        for (int width : widths()) {
+            for (int n = 0; n < ROWS; n++) {
+                int offset = random.nextInt(4);
+                byte[] row = randomRow(random, offset, width, random.nextInt(4), false);
+                int colored = offset + 3 * random.nextInt(width);
+                row[colored + 1 + random.nextInt(2)] ^= (byte) (1 + random.nextInt(255));
+                byte[] binaryPixels = new byte[(width + 7) / 8];
+                assertFalse(ImageBinarization.toGray(row, offset, width, false, new byte[width], 0));
+                assertFalse(kernel.binarize(row, offset, width, false, random.nextInt(256), binaryPixels, 0),
+                        "width " + width + ", colored pixel " + (colored - offset) / 3);
+            }
+        }
+    }
+
+    /**
+     * Method that binarizes random rows of every width with both the vector kernel and the scalar code, and compares
+     * their bits and their results.
+     *
+     * @param luminance see {@link RowKernel#binarize(byte[], int, int, boolean, int, byte[], int)}
+     * @param colored   if true, the pixels have random samples, otherwise they are gray
+     * @param seed      the seed of the random rows
+     */
+    private static void checkRows(boolean luminance, boolean colored, long seed) {
+        Random random = new Random(seed);
+        for (int width : widths()) {
+            for (int n = 0; n < ROWS; n++) {
+                // a quarter of the rows end with their array, where the last group cannot load a whole vector
+                int offset = random.nextInt(3 * LANES);
+                int padding = random.nextInt(4) == 0 ? 0 : random.nextInt(3 * LANES);
+                byte[] row = randomRow(random, offset, width, padding, colored);
+                int threshold = n == 0 ? 0 : n == 1 ? 255 : random.nextInt(256);
+                int binaryOffset = random.nextInt(3);
+
+                byte[] expected = new byte[binaryOffset + (width + 7) / 8 + 2];
+                random.nextBytes(expected);
+                byte[] actual = expected.clone();
+                byte[] gray = new byte[width];
+                boolean expectedResult = ImageBinarization.toGray(row, offset, width, luminance, gray, 0);
+                ImageBinarization.pack(gray, 0, width, threshold, expected, binaryOffset);
+                boolean actualResult = kernel.binarize(row, offset, width, luminance, threshold, actual, binaryOffset);
+
+                String description = "width " + width + ", offset " + offset + ", threshold " + threshold;
+                assertEquals(expectedResult, actualResult, description);
+                assertArrayEquals(expected, actual, description);
+            }
+        }
+    }
+
+    /**
+     * @return widths of a few pixels, and of one or more groups of {@link #LANES} pixels, plus or minus one or a few
+     */
+    private static int[] widths() {
+        return new int[]{1, 2, 7, 8, 9, LANES - 1, LANES, LANES + 1, 2 * LANES - 3, 2 * LANES, 2 * LANES + 5,
+                7 * LANES + 3, 1001};
+    }
+
+    /**
+     * @param offset  the number of random bytes before the row
+     * @param padding the number of random bytes after the row
+     * @param colored if true, the pixels have random samples, otherwise they are gray. The luminance of a gray pixel
+     *                is an integer, so the groups holding a pixel one level above the threshold are handed to the
+     *                scalar code by the vector kernel.
+     * @return an array holding the BGR samples of a row of random pixels
+     */
+    private static byte[] randomRow(Random random, int offset, int width, int padding, boolean colored) {
+        byte[] row = new byte[offset + 3 * width + padding];
+        random.nextBytes(row);
+        if (!colored) {
+            for (int i = offset; i < offset + 3 * width; i += 3) {
+                row[i + 1] = row[i + 2] = row[i];
+            }
+        }
+        return row;
+    }
+}
@@ -0,0 +1,146 @@
+package com.cpirvu;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@link RowKernel} using the Vector API (jdk.incubator.vector, Java 16 or later), processing as many pixels at a
+ * time as there are int lanes in the preferred vectors of the processor: 8 with AVX2, 16 with AVX-512.
+ * <p>
+ * For each group of pixels, the BGR samples are loaded as bytes and split in a blue, a green and a red vector by
+ * shuffles. They are widened to ints and the luminance is computed in fixed point, as 2126 * red + 7152 * green +
+ * 722 * blue, which is 10000 times the exact luminance. A pixel is black if its gray level is greater than the
+ * threshold, that is if this sum is at least 10000 * (threshold + 1). The sign of the difference gives the white
+ * pixels, which are weighted by their bit and summed into the bytes of the binary raster. The masks of the comparisons
+ * are avoided on purpose, as converting them to bits is not compiled to a single instruction before Java 19.
+ * <p>
+ * The scalar code truncates the luminance computed in double, see {@link ImageBinarization#luminance(int, int, int)}.
+ * The difference between the exact luminance and the double one is far below 1 / 10000, so both give the same gray
+ * level, except when the exact luminance is an integer: the double one may then be just below it. These rare groups,
+ * and the pixels left at the end of the row, go through the scalar code, so the result is always identical (see
+ * VectorRowKernelTest).
+ * <p>
+ * This class must be compiled with Java 16 or later and run with --add-modules jdk.incubator.vector.
+ */
+final class VectorRowKernel implements RowKernel {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = INTS.length();
+
+    /**
+     * The bytes loaded for a group: 4 per pixel, the last quarter being ignored.
+     */
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(LANES * 32));
+
+    private static final VectorShuffle<Byte> BLUE = channel(0);
+    private static final VectorShuffle<Byte> GREEN = channel(1);
+    private static final VectorShuffle<Byte> RED = channel(2);
+
+    /**
+     * The weight of the bit of each lane in the bits of a group: 2^(LANES - 1) for the first lane, 1 for the last one.
+     */
+    private static final IntVector WEIGHTS = weights();
+
+    /**
+     * @throws UnsupportedOperationException if the vectors of the processor are too short to be worth it, or too long
+     *                                       for the bits of a group to fit in an int
+     */
+    VectorRowKernel() {
+        if (LANES < 8 || LANES > 32) {
+            throw new UnsupportedOperationException("The vectors hold " + LANES + " ints!");
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "vector, " + LANES + " pixels at a time";
+    }
+
+    @Override
+    public boolean binarize(byte[] row, int rowOffset, int width, boolean luminance, int threshold,
+                            byte[] binaryPixels, int binaryOffset) {
+        int boundary = 10000 * (threshold + 1);
+        int i = rowOffset;
+        int out = binaryOffset;
+        int x = 0;
+        // a group loads a whole vector of bytes, which must not go past the end of the array
+        for (; x + LANES <= width && i + BYTES.length() <= row.length; x += LANES, i += 3 * LANES) {
+            ByteVector pixels = ByteVector.fromArray(BYTES, row, i);
+            IntVector blue = widen(pixels.rearrange(BLUE));
+            IntVector green = widen(pixels.rearrange(GREEN));
+            IntVector red = widen(pixels.rearrange(RED));
+            IntVector white;
+            if (luminance) {
+                IntVector sum = red.mul(2126).add(green.mul(7152)).add(blue.mul(722));
+                if (sum.compare(VectorOperators.EQ, boundary).anyTrue()) {
+                    // an integer luminance, the double one may be below it
+                    out = scalar(row, i, LANES, true, threshold, binaryPixels, out);
+                    continue;
+                }
+                // 1 where the sum is below the boundary
+                white = sum.sub(boundary).lanewise(VectorOperators.LSHR, 31);
+            } else {
+                if (blue.lanewise(VectorOperators.XOR, green).or(blue.lanewise(VectorOperators.XOR, red))
+                        .reduceLanes(VectorOperators.OR) != 0) {
+                    return false;
+                }
+                white = blue.sub(threshold + 1).lanewise(VectorOperators.LSHR, 31);
+            }
+            // the first pixel of the group is the most significant bit
+            int bits = white.mul(WEIGHTS).reduceLanes(VectorOperators.ADD);
+            for (int shift = LANES - 8; shift >= 0; shift -= 8) {
+                binaryPixels[out++] = (byte) (bits >>> shift);
+            }
+        }
+        return scalar(row, i, width - x, luminance, threshold, binaryPixels, out) >= 0;
+    }
+
+    /**
+     * @param bytes a vector of bytes
+     * @return its first {@link #LANES} bytes, as unsigned ints
+     */
+    private static IntVector widen(ByteVector bytes) {
+        return ((IntVector) bytes.convertShape(VectorOperators.B2I, INTS, 0)).and(0xff);
+    }
+
+    /**
+     * Method that binarizes the given pixels with the scalar code, 8 at a time.
+     *
+     * @return the index in binaryPixels after the last byte written, or -1 if a pixel that is not gray was found
+     */
+    private static int scalar(byte[] row, int i, int count, boolean luminance, int threshold,
+                              byte[] binaryPixels, int out) {
+        byte[] gray = new byte[8];
+        for (int x = 0; x < count; x += 8, i += 24) {
+            int pixels = Math.min(8, count - x);
+            if (!ImageBinarization.toGray(row, i, pixels, luminance, gray, 0)) {
+                return -1;
+            }
+            ImageBinarization.pack(gray, 0, pixels, threshold, binaryPixels, out++);
+        }
+        return out;
+    }
+
+    private static IntVector weights() {
+        int[] weights = new int[LANES];
+        for (int lane = 0; lane < LANES; lane++) {
+            weights[lane] = 1 << (LANES - 1 - lane);
+        }
+        return IntVector.fromArray(INTS, weights, 0);
+    }
+
+    /**
+     * @param channel 0 for blue, 1 for green, 2 for red
+     * @return the shuffle moving the given sample of every pixel of a group to the lane of the pixel
+     */
+    private static VectorShuffle<Byte> channel(int channel) {
+        int[] indexes = new int[BYTES.length()];
+        for (int lane = 0; lane < LANES; lane++) {
+            indexes[lane] = 3 * lane + channel;
+        }
+        return VectorShuffle.fromArray(BYTES, indexes, 0);
+    }
+}